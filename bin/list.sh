@@ -15,7 +15,7 @@
 # See the License for the specific language governing permissions and
 # limitations under the License.
 
-# list object to hoss
-bin=`cd "$DIRNAME"; pwd`
-hadoop jar "$bin"/hoss.jar list
+# list the objects of hoss page by page
+# usage: list.sh [prefix] [pageSize]
+hadoop org.apache.hadoop.hdfs.hoss.client.ListObjects "$@"
 
@@ -0,0 +1,418 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.bloomfilter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting bloom filter whose buckets of a key all lie in one block of 64
+ * bytes, so that a lookup touches a single cache line instead of one per hash
+ * function. The 4-bit buckets are packed into longs that are updated by
+ * compare-and-set, add, remove and contains take no lock.
+ * <p/>
+ * As in {@link BloomFilter}, a bucket that reached its max count is never
+ * changed again. To reach the same false positive rate, a blocked filter
+ * takes about 30% more buckets than an unblocked one.
+ * <p/>
+ * The filter is stored with a version 3 {@link BloomMetadata} header followed
+ * by the buckets as big-endian longs. The file is memory mapped and the pages
+ * changed since the last flush are marked in a bitset, flush copies only
+ * those pages into the mapping and forces it. The buckets stay on the heap,
+ * since a mapped buffer offers no compare-and-set, so readers never wait for
+ * a flush.
+ */
+public class BlockedBloomFilter implements Closeable {
+
+	private static final BucketSize BUCKET_SIZE = BucketSize.FOUR;
+	private static final int BUCKET_BITS = 4;
+	private static final long BUCKET_MASK = (1L << BUCKET_BITS) - 1;
+	private static final int BUCKETS_PER_WORD = 64 / BUCKET_BITS;
+	// 64 bytes, a cache line
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int BUCKETS_PER_BLOCK = WORDS_PER_BLOCK
+			* BUCKETS_PER_WORD;
+	private static final double BLOCKING_OVERHEAD = 1.3;
+	// words of a 4 KB page
+	private static final int WORDS_PER_PAGE = 4096 / 8;
+
+	private File file;
+	private final BloomMetadata metadata;
+	private final AtomicLongArray words;
+	private final int blocks;
+	private final int hashFns;
+
+	// the mapped file and one bit per page changed since the last flush,
+	// null for memory only
+	private MappedByteBuffer mapping = null;
+	private AtomicLongArray dirtyPages = null;
+
+	/**
+	 * Create an empty filter for the given expected number of items and
+	 * desired false positive rate. The file is overwritten if it exists.
+	 *
+	 * @param f
+	 *            The file to save the filter into, null for memory only
+	 * @param numberOfItems
+	 *            The expected number of items
+	 * @param falsePositiveRate
+	 *            The acceptable false positive rate
+	 * @return A bloom filter
+	 * @throws IOException
+	 */
+	public static BlockedBloomFilter createOptimal(File f, int numberOfItems,
+			double falsePositiveRate) throws IOException {
+		int buckets = BloomFilter.calculateOptimalBucketCount(numberOfItems,
+				falsePositiveRate);
+		// the load of a block varies, more buckets and one hash function less
+		// than an unblocked filter keep the false positive rate
+		int hashFns = Math.max(1, BloomFilter.calculateOptimalHashFunctionCount(
+				numberOfItems, buckets) - 1);
+		buckets = (int) Math.min(Integer.MAX_VALUE - BUCKETS_PER_BLOCK,
+				(long) (buckets * BLOCKING_OVERHEAD));
+		int blocks = (buckets + BUCKETS_PER_BLOCK - 1) / BUCKETS_PER_BLOCK;
+		BlockedBloomFilter filter = new BlockedBloomFilter(f, BloomMetadata
+				.createBlocked(blocks * BUCKETS_PER_BLOCK, hashFns,
+						BUCKET_SIZE));
+		if (f != null) {
+			if (f.exists() && !f.delete()) {
+				throw new IOException("Couldn't delete old file at "
+						+ f.getAbsolutePath());
+			}
+			RandomAccessFile out = new RandomAccessFile(f, "rw");
+			try {
+				filter.metadata.writeToFile(out);
+				out.setLength(filter.metadata.getTotalLength());
+				out.getFD().sync();
+				filter.map(out);
+			} finally {
+				out.close();
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Opens an existing blocked bloom filter.
+	 *
+	 * @param f
+	 *            the file to open
+	 * @return the bloom filter
+	 * @throws IOException
+	 *             if the file is not a blocked bloom filter or could not be
+	 *             read
+	 */
+	public static BlockedBloomFilter openExisting(File f) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "rw");
+		try {
+			BloomMetadata metadata = BloomMetadata.readHeader(in);
+			if (!metadata.isBlocked()) {
+				throw new InvalidBloomFilter(f.getAbsolutePath()
+						+ " is not a blocked bloom filter");
+			}
+			BlockedBloomFilter filter = new BlockedBloomFilter(f, metadata);
+			filter.map(in);
+			int offset = metadata.getHeaderLength();
+			for (int i = 0; i < filter.words.length(); i++) {
+				filter.words.set(i, filter.mapping.getLong(offset + i * 8));
+			}
+			return filter;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if the file holds a blocked bloom filter
+	 * @throws IOException
+	 *             if the header could not be read
+	 */
+	public static boolean isBlocked(File f) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			return BloomMetadata.readHeader(in).isBlocked();
+		} finally {
+			in.close();
+		}
+	}
+
+	private BlockedBloomFilter(File f, BloomMetadata metadata) {
+		this.file = f;
+		this.metadata = metadata;
+		this.hashFns = metadata.getHashFns();
+		this.blocks = metadata.getBucketCount() / BUCKETS_PER_BLOCK;
+		this.words = new AtomicLongArray(blocks * WORDS_PER_BLOCK);
+	}
+
+	/**
+	 * map the file, which stays mapped after it is closed
+	 */
+	private void map(RandomAccessFile raf) throws IOException {
+		mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				metadata.getTotalLength());
+		int pages = (words.length() + WORDS_PER_PAGE - 1) / WORDS_PER_PAGE;
+		dirtyPages = new AtomicLongArray((pages + 63) / 64);
+	}
+
+	/**
+	 * Adds the given key to the bloom filter.
+	 *
+	 * @param data
+	 *            the key
+	 */
+	public void add(byte[] data) {
+		int hashA = RepeatedMurmurHash.hashOnce(data, 0);
+		int hashB = RepeatedMurmurHash.hashOnce(data, hashA);
+		int base = block(hashA) * WORDS_PER_BLOCK;
+		// an odd step visits distinct buckets of the block
+		int step = (hashB >>> 16) | 1;
+		for (int i = 0; i < hashFns; i++) {
+			modifyBucket(base, (hashB + i * step) & (BUCKETS_PER_BLOCK - 1),
+					false);
+		}
+		markDirty(base);
+	}
+
+	/**
+	 * Removes the given key from the bloom filter.
+	 *
+	 * @param data
+	 *            the key
+	 */
+	public void remove(byte[] data) {
+		int hashA = RepeatedMurmurHash.hashOnce(data, 0);
+		int hashB = RepeatedMurmurHash.hashOnce(data, hashA);
+		int base = block(hashA) * WORDS_PER_BLOCK;
+		int step = (hashB >>> 16) | 1;
+		for (int i = 0; i < hashFns; i++) {
+			modifyBucket(base, (hashB + i * step) & (BUCKETS_PER_BLOCK - 1),
+					true);
+		}
+		markDirty(base);
+	}
+
+	/**
+	 * Checks if the bloom filter contains the key.
+	 *
+	 * @param data
+	 *            the key
+	 * @return whether the key likely is in the bloom filter. if false, the key
+	 *         is definitely not in the bloom filter.
+	 */
+	public boolean contains(byte[] data) {
+		int hashA = RepeatedMurmurHash.hashOnce(data, 0);
+		int hashB = RepeatedMurmurHash.hashOnce(data, hashA);
+		int base = block(hashA) * WORDS_PER_BLOCK;
+		int step = (hashB >>> 16) | 1;
+		for (int i = 0; i < hashFns; i++) {
+			int bucket = (hashB + i * step) & (BUCKETS_PER_BLOCK - 1);
+			long word = words.get(base + bucket / BUCKETS_PER_WORD);
+			if (((word >>> shift(bucket)) & BUCKET_MASK) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int block(int hash) {
+		return (int) ((hash & 0xffffffffL) % blocks);
+	}
+
+	private static int shift(int bucket) {
+		return (bucket % BUCKETS_PER_WORD) * BUCKET_BITS;
+	}
+
+	// if decr is false, then it's an incr
+	private void modifyBucket(int base, int bucket, boolean decr) {
+		int index = base + bucket / BUCKETS_PER_WORD;
+		int shift = shift(bucket);
+		long one = 1L << shift;
+		while (true) {
+			long word = words.get(index);
+			long count = (word >>> shift) & BUCKET_MASK;
+			// an overflowing bucket can't be changed, an empty one can't be
+			// decremented
+			if (count == BUCKET_MASK || (decr && count == 0)) {
+				return;
+			}
+			long newWord = decr ? word - one : word + one;
+			if (words.compareAndSet(index, word, newWord)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * mark the page of a block changed, a block never spans two pages
+	 */
+	private void markDirty(int base) {
+		AtomicLongArray dirty = dirtyPages;
+		if (dirty == null) {
+			return;
+		}
+		int page = base / WORDS_PER_PAGE;
+		long bit = 1L << (page % 64);
+		while (true) {
+			long bits = dirty.get(page / 64);
+			if ((bits & bit) != 0
+					|| dirty.compareAndSet(page / 64, bits, bits | bit)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Persists the changed pages of the bloom filter to disk. A page is
+	 * unmarked before it is copied, so a change made meanwhile is flushed by
+	 * the next call.
+	 *
+	 * @throws IOException
+	 *             if I/O errors are encountered.
+	 */
+	public synchronized void flush() throws IOException {
+		if (mapping == null) {
+			return;
+		}
+		boolean changed = false;
+		for (int i = 0; i < dirtyPages.length(); i++) {
+			long bits = dirtyPages.getAndSet(i, 0L);
+			while (bits != 0) {
+				copyPage(i * 64 + Long.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+				changed = true;
+			}
+		}
+		if (changed) {
+			mapping.force();
+		}
+	}
+
+	private void copyPage(int page) {
+		int offset = metadata.getHeaderLength();
+		int end = Math.min(words.length(), (page + 1) * WORDS_PER_PAGE);
+		for (int i = page * WORDS_PER_PAGE; i < end; i++) {
+			mapping.putLong(offset + i * 8, words.get(i));
+		}
+	}
+
+	/**
+	 * Renames the file of the bloom filter, which stays mapped.
+	 *
+	 * @param target
+	 *            the new file, replaced if it exists
+	 * @throws IOException
+	 */
+	public synchronized void moveTo(File target) throws IOException {
+		if (file == null || file.equals(target)) {
+			return;
+		}
+		if (!file.renameTo(target)) {
+			target.delete();
+			if (!file.renameTo(target)) {
+				throw new IOException("rename " + file + " to " + target
+						+ " fail");
+			}
+		}
+		file = target;
+	}
+
+	public synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Flushes the bloom filter.
+	 *
+	 * @throws IOException
+	 *             if I/O errors are encountered
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Does this bloom filter have changes which haven't been sync'd to disk?
+	 *
+	 * @return True IFF there are unflushed changes
+	 */
+	public boolean unflushedChanges() {
+		if (dirtyPages == null) {
+			return false;
+		}
+		for (int i = 0; i < dirtyPages.length(); i++) {
+			if (dirtyPages.get(i) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of hash functions this BloomFilter uses.
+	 *
+	 * @return the number of hash functions
+	 */
+	public int getHashFns() {
+		return hashFns;
+	}
+
+	/**
+	 * @return the number of items the filter was sized for at the given false
+	 *         positive rate
+	 */
+	public int capacity(double falsePositiveRate) {
+		return (int) Math.round((getBucketCount() / BLOCKING_OVERHEAD * Math
+				.log(1.0 / Math.pow(2.0, Math.log(2.0))))
+				/ Math.log(falsePositiveRate));
+	}
+
+	/**
+	 * Estimates the number of items from the share of non empty buckets, for
+	 * a filter whose items were not counted. Reads every bucket.
+	 *
+	 * @return the estimated number of items
+	 */
+	public long approximateCount() {
+		long set = 0;
+		for (int i = 0; i < words.length(); i++) {
+			long word = words.get(i);
+			for (int b = 0; b < BUCKETS_PER_WORD; b++) {
+				if (((word >>> (b * BUCKET_BITS)) & BUCKET_MASK) != 0) {
+					set++;
+				}
+			}
+		}
+		double buckets = getBucketCount();
+		if (set >= buckets) {
+			return Long.MAX_VALUE;
+		}
+		return Math.round(-buckets / hashFns * Math.log(1.0 - set / buckets));
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	public int getBucketCount() {
+		return metadata.getBucketCount();
+	}
+}
@@ -650,6 +650,11 @@ public class BloomFilter implements Closeable {
 		this.closeCallback = closeCallback;
 		file = new RandomAccessFile(f, "rw");
 		this.metadata = BloomMetadata.readHeader(file);
+		if (this.metadata.isBlocked()) {
+			file.close();
+			throw new InvalidBloomFilter(f.getAbsolutePath()
+					+ " is a blocked bloom filter");
+		}
 		unflushedChanges = new ConcurrentSkipListMap<Integer, Byte>();
 
 		// load the cache with the on disk data
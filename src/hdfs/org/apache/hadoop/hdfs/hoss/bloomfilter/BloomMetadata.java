@@ -43,12 +43,16 @@ import org.apache.hadoop.hdfs.hoss.bloomfilter.InvalidBloomFilter;
  * safely identify which is which. If we detect the old format, we can safely
  * assume there are four bits per bucket. This is a little convoluted, but it's
  * the safest way to guarantee backwards compatibility with the old format
+ * <p/>
+ * Header version 3 is the same header for a {@link BlockedBloomFilter}, whose
+ * buckets are laid out in blocks and can't be read by {@link BloomFilter}.
  */
 class BloomMetadata {
 
 	private static final int INT_SIZE = 4;
 	private static final int BITS_IN_BYTE = 8;
 	private static final byte VERSION = 2;
+	private static final byte BLOCKED_VERSION = 3;
 	private static final byte[] MAGIC_WORD = { (byte) 0xB1, (byte) 0xF1,
 			(byte) 0xCA };
 	private static final int EXPECTED_HEADER_BYTES = 32;
@@ -88,6 +92,13 @@ class BloomMetadata {
 				totalLength, hashFns, countBits);
 	}
 
+	public static BloomMetadata createBlocked(final int buckets,
+			final int hashFns, final BucketSize countBits) throws IOException {
+		return new BloomMetadata(null, BLOCKED_VERSION, EXPECTED_HEADER_BYTES,
+				EXPECTED_HEADER_BYTES + bytes(buckets * countBits.getBits()),
+				hashFns, countBits);
+	}
+
 	private BloomMetadata(RandomAccessFile file, byte version,
 			int headerLength, int totalLength, int hashFns,
 			BucketSize bucketSize) throws IOException {
@@ -140,7 +151,7 @@ class BloomMetadata {
 
 		// verify the version is correct
 		final byte version = buffer.readByte();
-		if (!(version == VERSION)) {
+		if (!(version == VERSION || version == BLOCKED_VERSION)) {
 			throw new InvalidBloomFilter("Unrecognized version (" + version
 					+ ")");
 		}
@@ -174,6 +185,10 @@ class BloomMetadata {
 		return version;
 	}
 
+	public boolean isBlocked() {
+		return version == BLOCKED_VERSION;
+	}
+
 	public int getHeaderLength() {
 		return headerLength;
 	}
@@ -208,11 +223,11 @@ class BloomMetadata {
 			file.writeInt(getHashFns());
 			file.writeInt(getTotalLength() / BITS_IN_BYTE);
 		} else {
-			assert getVersion() == VERSION;
+			assert getVersion() == VERSION || getVersion() == BLOCKED_VERSION;
 			file.writeInt(0); // 4 bytes
 			file.writeInt(0); // 8 bytes
 			file.write(MAGIC_WORD); // 11 bytes
-			file.writeByte(VERSION); // 12 bytes
+			file.writeByte(getVersion()); // 12 bytes
 			file.writeInt(EXPECTED_HEADER_BYTES); // 16 bytes
 			file.writeInt(getTotalLength()); // 20 bytes
 			file.writeInt(getHashFns()); // 24 bytes
@@ -20,66 +20,320 @@ package org.apache.hadoop.hdfs.hoss.bloomfilter;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hdfs.hoss.bloomfilter.BloomFilter;
+import org.apache.hadoop.hdfs.hoss.bloomfilter.BlockedBloomFilter;
 import org.apache.hadoop.hdfs.hoss.bloomfilter.HosBloomFilter;
 import org.apache.hadoop.hdfs.hoss.db.HosMetaData;
+import org.apache.hadoop.io.WritableComparator;
 
-
+/**
+ * the object name filter checked by every hoss operation, a lock free
+ * {@link BlockedBloomFilter}. a filter saved by the former
+ * {@link BloomFilter} has another bucket layout, it is replaced by an empty
+ * filter which the meta data rebuilds from the object names.
+ *
+ * when the filter holds more names than it was sized for, the meta data
+ * grows it: a filter of twice the size is filled from the object names in
+ * name order in the background and saved beside the filter. a name changed
+ * meanwhile goes to the new filter too once the scan has passed it, and is
+ * logged otherwise. then the log is replayed, the new filter is swapped in
+ * and its file replaces the old one at the next flush.
+ *
+ * add and remove are called under the lock of the name, the growth is
+ * finished under all the locks.
+ */
 public class HosBloomFilter {
 	
 	private static final Log LOG = LogFactory.getLog(HosBloomFilter.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// the buckets of a larger filter would overflow an int
+	private static final int MAXITEMS = Integer.MAX_VALUE / 16;
+
+	// counters of negative lookups, one cache line apart
+	private static final int COUNTERSTRIPES = 16;
+
+	private static final int COUNTERSPACING = 8;
 	
 	private final File onDiskFile = new File(new File(HosMetaData.HOSSDIR), 
 			HosMetaData.BLOOMFILTER);
+
+	private final File growingFile = new File(new File(HosMetaData.HOSSDIR),
+			HosMetaData.BLOOMFILTER + ".grow");
 	
-	private final int expectedItems = 40000000;
+	private static final int EXPECTEDITEMS = 40000000;
 	
-	private final double desiredFalsePositiveRate = 0.01;
+	private static final double FALSEPOSITIVERATE = 0.01;
+
+	private final double desiredFalsePositiveRate;
 	
-	private BloomFilter bloomFilter = null;
+	private volatile BlockedBloomFilter bloomFilter = null;
 
-	public HosBloomFilter(int expectedItems, double desiredFalsePositiveRate)
-			throws IOException {
-		bloomFilter = new BloomFilter.NewBuilder(onDiskFile, expectedItems,
-				desiredFalsePositiveRate).force(true).build();
-	}
+	// the number of items the filter is sized for
+	private volatile long capacity;
+
+	private final AtomicLong items = new AtomicLong(0);
+
+	// the filter being grown and the names changed since it started, the
+	// value is true for an added name
+	private BlockedBloomFilter growing = null;
+
+	private volatile Map<String, Boolean> changes = null;
+
+	// the UTF-8 bytes of the last name the growth scanned
+	private volatile byte[] growPosition = null;
+
+	// the names in the filter being grown
+	private final AtomicLong growingItems = new AtomicLong(0);
+
+	private long growingCapacity = 0;
+
+	private final AtomicLongArray negatives = new AtomicLongArray(
+			COUNTERSTRIPES * COUNTERSPACING);
+
+	private final AtomicLong falsePositives = new AtomicLong(0);
+
+	// lookups at the last sample of the false positive rate
+	private long sampledNegatives = 0;
+
+	private long sampledFalsePositives = 0;
+
+	private float falsePositiveRate = 0f;
+
+	// the filter does not hold the names of the existing objects
+	private boolean rebuild = false;
 
 	public HosBloomFilter() {
-		if(!onDiskFile.exists()){
+		this(EXPECTEDITEMS, FALSEPOSITIVERATE);
+	}
+
+	/**
+	 * open the filter on disk, or create one for the expected items
+	 */
+	public HosBloomFilter(int expectedItems, double desiredFalsePositiveRate) {
+		this.desiredFalsePositiveRate = desiredFalsePositiveRate;
+		if (onDiskFile.exists()) {
 			try {
-				bloomFilter = new BloomFilter.NewBuilder(onDiskFile, expectedItems,
-					desiredFalsePositiveRate).force(true).build();
+				if (BlockedBloomFilter.isBlocked(onDiskFile)) {
+					bloomFilter = BlockedBloomFilter.openExisting(onDiskFile);
+					items.set(bloomFilter.approximateCount());
+				} else {
+					LOG.info("hos bloom filter " + onDiskFile
+							+ " has the legacy layout, rebuild it");
+				}
 			} catch (IOException e) {
-				LOG.error("hos bloom filter create faild duo to " + e);
+				LOG.error("hos bloom filter create from disk faild duo to " + e);
 			}
+			rebuild = bloomFilter == null;
 		}
-		try {
-			bloomFilter = new BloomFilter.OpenBuilder(onDiskFile).build();
-		} catch (IOException e) {
-			LOG.error("hos bloom filter create from disk faild duo to " + e);
+		if (bloomFilter == null) {
+			try {
+				bloomFilter = BlockedBloomFilter.createOptimal(onDiskFile,
+						expectedItems, desiredFalsePositiveRate);
+			} catch (IOException e) {
+				LOG.error("hos bloom filter create faild duo to " + e);
+			}
 		}
-		
+		capacity = bloomFilter.capacity(desiredFalsePositiveRate);
+		LOG.info("hos bloom filter capacity: " + capacity + " items: "
+				+ items.get());
+	}
+
+	/**
+	 * @return true if the names of the existing objects must be added again
+	 */
+	public boolean needsRebuild() {
+		return rebuild;
 	}
 	
 	public void add(String data) {
-		if(bloomFilter.contains(data.getBytes(Charset.forName("UTF-8")))){
-			System.out.println("******* " + data);
+		byte[] bytes = data.getBytes(UTF8);
+		bloomFilter.add(bytes);
+		items.incrementAndGet();
+		Map<String, Boolean> changed = changes;
+		if (changed != null) {
+			changeGrowing(changed, data, bytes, true);
 		}
-		bloomFilter.add(data.getBytes(Charset.forName("UTF-8")));
 	}
 	
 	public void remove(String data) {
-		bloomFilter.remove(data.getBytes(Charset.forName("UTF-8")));
+		byte[] bytes = data.getBytes(UTF8);
+		bloomFilter.remove(bytes);
+		items.decrementAndGet();
+		Map<String, Boolean> changed = changes;
+		if (changed != null) {
+			changeGrowing(changed, data, bytes, false);
+		}
+	}
+
+	/**
+	 * a name the growth scanned is changed in the larger filter, any other
+	 * is logged for the replay, so that the scan skips it
+	 */
+	private void changeGrowing(Map<String, Boolean> changed, String data,
+			byte[] bytes, boolean added) {
+		byte[] scanned = growPosition;
+		if (scanned != null && !changed.containsKey(data)
+				&& WritableComparator.compareBytes(bytes, 0, bytes.length,
+						scanned, 0, scanned.length) <= 0) {
+			if (added) {
+				growing.add(bytes);
+				growingItems.incrementAndGet();
+			} else {
+				growing.remove(bytes);
+				growingItems.decrementAndGet();
+			}
+		} else {
+			changed.put(data, added);
+		}
 	}
 	
 	public boolean contain(String data) {
-		return bloomFilter.contains(data.getBytes(Charset.forName("UTF-8")));
+		if (bloomFilter.contains(data.getBytes(UTF8))) {
+			return true;
+		}
+		int stripe = (int) (Thread.currentThread().getId() % COUNTERSTRIPES);
+		negatives.incrementAndGet(stripe * COUNTERSPACING);
+		return false;
+	}
+
+	/**
+	 * a name the filter contains turned out not to exist
+	 */
+	public void falsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	/**
+	 * @return the share of the lookups of absent names that were false
+	 *         positives since the last sample, the last rate if there were
+	 *         none
+	 */
+	public synchronized float sampleFalsePositiveRate() {
+		long negative = 0;
+		for (int i = 0; i < COUNTERSTRIPES; i++) {
+			negative += negatives.get(i * COUNTERSPACING);
+		}
+		long falsePositive = falsePositives.get();
+		long absent = (negative - sampledNegatives)
+				+ (falsePositive - sampledFalsePositives);
+		if (absent > 0) {
+			falsePositiveRate = (float) (falsePositive - sampledFalsePositives)
+					/ absent;
+		}
+		sampledNegatives = negative;
+		sampledFalsePositives = falsePositive;
+		return falsePositiveRate;
+	}
+
+	/**
+	 * @return the number of names added and not removed
+	 */
+	public long getItems() {
+		return items.get();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return true if the filter holds more names than it was sized for
+	 */
+	public boolean isFull() {
+		return items.get() > capacity && capacity < MAXITEMS;
+	}
+
+	/**
+	 * create a larger filter and start logging the changed names. the caller
+	 * must hold all the locks of the names.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void beginGrow() throws IOException {
+		growingCapacity = Math.min(MAXITEMS, 2 * Math.max(capacity, items
+				.get()));
+		growing = BlockedBloomFilter.createOptimal(growingFile,
+				(int) growingCapacity, desiredFalsePositiveRate);
+		growingItems.set(0);
+		growPosition = null;
+		changes = new ConcurrentHashMap<String, Boolean>();
+	}
+
+	/**
+	 * add an existing name to the larger filter, unless it was changed since
+	 * the growth started. the names must be added in the byte order of their
+	 * UTF-8 bytes, each under its lock.
+	 */
+	public void addGrowing(String data) {
+		byte[] bytes = data.getBytes(UTF8);
+		if (!changes.containsKey(data)) {
+			growing.add(bytes);
+			growingItems.incrementAndGet();
+		}
+		growPosition = bytes;
+	}
+
+	/**
+	 * save the larger filter before it is swapped in, so that the swap only
+	 * flushes the replayed names
+	 * 
+	 * @throws IOException
+	 */
+	public void flushGrowing() throws IOException {
+		growing.flush();
+	}
+
+	/**
+	 * replay the changed names and swap the larger filter in. the caller must
+	 * hold all the locks of the names.
+	 */
+	public synchronized void finishGrow() {
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			if (change.getValue()) {
+				growing.add(change.getKey().getBytes(UTF8));
+				growingItems.incrementAndGet();
+			}
+		}
+		bloomFilter = growing;
+		capacity = growingCapacity;
+		items.set(growingItems.get());
+		LOG.info("hos bloom filter grown to capacity: " + capacity
+				+ " items: " + items.get());
+		changes = null;
+		growPosition = null;
+		growing = null;
+	}
+
+	public synchronized void abortGrow() {
+		changes = null;
+		growPosition = null;
+		growing = null;
+		growingFile.delete();
+	}
+
+	/**
+	 * write the changed pages of the filter, a grown filter replaces the
+	 * file of the old one. readers are not blocked.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		BlockedBloomFilter current = bloomFilter;
+		current.flush();
+		current.moveTo(onDiskFile);
+		rebuild = false;
 	}
 	
 	public void close() throws IOException {
+		flush();
 		bloomFilter.close();
 		bloomFilter = null;
 	}
@@ -46,7 +46,7 @@ public class RepeatedMurmurHash {
 		return result;
 	}
 
-	private static int hashOnce(byte[] data, int seed) {
+	static int hashOnce(byte[] data, int seed) {
 		int len = data.length;
 		int m = 0x5bd1e995;
 		int r = 24;
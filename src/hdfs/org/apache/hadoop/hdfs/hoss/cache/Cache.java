@@ -17,51 +17,61 @@
  */
 package org.apache.hadoop.hdfs.hoss.cache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
 
-
+/**
+ * one tier of the hoss cache, objects ordered by hotness. it is not
+ * thread-safe, HossCache holds the stripe lock around every call. a hit only
+ * adds to the hotness of an entry, the order catches up when the least hot
+ * entry is looked for.
+ */
 public class Cache implements ICache<String, Metadata, Float> {
 	// maintain object name --- object id + object path + object offset
-	private HashMap<String, Metadata> cache = null;
-	// maintain object name --- object hotness
-	private TreeMap<String, Float> name2Hot = null;
-	// maintain object hot --- object name
-	// private TreeMap<Float, String> hot2Name = null;
+	private HashMap<String, CacheEntry> cache = null;
+	// objects ordered by hotness, the least hot first
+	private TreeSet<CacheEntry> hotOrder = null;
 
 	// cache size
 	private int capacity;
 
 	public Cache(int capacity) {
 		this.capacity = capacity;
-		cache = new HashMap<String, Metadata>(capacity);
-		name2Hot = new TreeMap<String, Float>();
-		// hot2Name = new TreeMap<Float, String>();
+		cache = new HashMap<String, CacheEntry>(capacity);
+		hotOrder = new TreeSet<CacheEntry>();
 	}
 
 	@Override
-	public synchronized Metadata get(String objName, Float hot) {
-		Metadata meta = cache.get(objName);
-		// update object name to hotness relationship
-		float historyHot = name2Hot.get(objName);
-		float currentHot = historyHot + hot;
-		name2Hot.put(objName, currentHot);
-		// update hotness to object name relationship
-		// hot2Name.remove(historyHot);
-		// hot2Name.put(currentHot, objName);
-		return meta;
+	public Metadata get(String objName, Float hot) {
+		CacheEntry entry = cache.get(objName);
+		if (entry == null) {
+			return null;
+		}
+		entry.addHot(hot);
+		return entry.getMetadata();
 	}
 
 	@Override
-	public synchronized void add(String objName, Metadata hossMetadata,
-			Float hot) {
+	public void add(String objName, Metadata hossMetadata, Float hot) {
+		add(new CacheEntry(objName, hossMetadata, hot));
+	}
+
+	void add(CacheEntry entry) {
 		// objName + objId + path position
-		hossMetadata.setObjName(objName);
-		cache.put(objName, hossMetadata);
-		name2Hot.put(objName, hot);
-		// hot2Name.put(hot, objName);
+		entry.getMetadata().setObjName(entry.getName());
+		CacheEntry old = cache.put(entry.getName(), entry);
+		if (old != null) {
+			hotOrder.remove(old);
+		}
+		entry.index();
+		hotOrder.add(entry);
+	}
+
+	CacheEntry getEntry(String objName) {
+		return cache.get(objName);
 	}
 
 	public int size() {
@@ -78,47 +88,69 @@ public class Cache implements ICache<String, Metadata, Float> {
 	}
 
 	/**
-	 * get the object name with least hotness
-	 * 
-	 * @return
+	 * the least hot entry. entries hit since they were indexed are put back
+	 * in order first, hits only make an entry hotter so the first entry
+	 * which is up to date is the least hot one.
 	 */
-	private synchronized String getLeastHotKey() {
-		String keyMin = null;
-		float hotMin = Float.MAX_VALUE;
-		for (Entry<String, Float> entry : name2Hot.entrySet()) {
-			float curHot = entry.getValue();
-			if (curHot < hotMin) {
-				hotMin = curHot;
-				keyMin = entry.getKey();
+	private CacheEntry least() {
+		while (!hotOrder.isEmpty()) {
+			CacheEntry first = hotOrder.first();
+			if (!first.isStale()) {
+				return first;
 			}
+			hotOrder.remove(first);
+			first.index();
+			hotOrder.add(first);
 		}
-		return keyMin;
+		return null;
 	}
 
-	public synchronized float getLeastHot() {
-		float hotMin = Float.MAX_VALUE;
-		for (Entry<String, Float> entry : name2Hot.entrySet()) {
-			float curHot = entry.getValue();
-			if (curHot < hotMin) {
-				hotMin = curHot;
-			}
+	public float getLeastHot() {
+		CacheEntry least = least();
+		if (least == null) {
+			return Float.MAX_VALUE;
+		}
+		return least.getHot();
+	}
+
+	/**
+	 * remove the least hot entry
+	 * 
+	 * @return the removed entry, null if the cache is empty
+	 */
+	CacheEntry pollLeast() {
+		CacheEntry least = least();
+		if (least != null) {
+			hotOrder.remove(least);
+			cache.remove(least.getName());
 		}
-		return hotMin;
+		return least;
 	}
 
 	/**
 	 * remove least hot object metadata
+	 * 
+	 * @return the removed metadata, null if the cache is empty
 	 */
 	@Override
-	public synchronized Metadata removeLeast() {
-		// remove least hot metadata
-		String objName = getLeastHotKey();
-		Metadata metadata = null;
-		if(objName != null){
-		   name2Hot.remove(objName);
-		   cache.remove(objName);
+	public Metadata removeLeast() {
+		CacheEntry least = pollLeast();
+		return least == null ? null : least.getMetadata();
+	}
+
+	/**
+	 * remove the entry if it is still in the cache
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	boolean remove(CacheEntry entry) {
+		if (cache.get(entry.getName()) != entry) {
+			return false;
 		}
-		return metadata;
+		cache.remove(entry.getName());
+		hotOrder.remove(entry);
+		return true;
 	}
 
 	/**
@@ -127,60 +159,82 @@ public class Cache implements ICache<String, Metadata, Float> {
 	 * @param key
 	 * @return
 	 */
-	public synchronized Metadata remove(String objName) {
-		Metadata metadata = null;
-		if (cache.containsKey(objName)) {
-			metadata = cache.remove(objName);
-			name2Hot.remove(objName);
-			// hot2Name.remove(hot);
+	public Metadata remove(String objName) {
+		CacheEntry entry = cache.get(objName);
+		if (entry != null && remove(entry)) {
+			return entry.getMetadata();
 		}
-		return metadata;
+		return null;
 	}
 
 	/**
 	 * only for warm cache
 	 * 
 	 * @param size
+	 * @return the removed entries
 	 */
-	public synchronized void freeSpace(int size) {
-		for (int i = 0; i < size; i++) {
-			// Entry<Float, String> least = hot2Name.pollFirstEntry();
-			String objName = getLeastHotKey();
-			if (objName != null) {
-				name2Hot.remove(objName);
-				cache.remove(objName);
-			}
+	public List<CacheEntry> freeSpace(int size) {
+		List<CacheEntry> removed = new ArrayList<CacheEntry>(size);
+		for (int i = 0; i < size && !hotOrder.isEmpty(); i++) {
+			removed.add(pollLeast());
 		}
+		return removed;
 	}
 
 	public float getHot(String objName) {
-		return name2Hot.get(objName);
+		return cache.get(objName).getHot();
 	}
 
-	public synchronized void ageCache(float hotMin) {
-		TreeMap<String, Float> name2HotTmp = new TreeMap<String, Float>();
-		for (Entry<String, Float> entry : name2Hot.entrySet()) {
-			name2HotTmp.put(entry.getKey(), entry.getValue() - hotMin);
+	public void ageCache(float hotMin) {
+		hotOrder.clear();
+		for (CacheEntry entry : cache.values()) {
+			entry.addHot(-hotMin);
+			entry.index();
+			hotOrder.add(entry);
 		}
-		name2Hot.clear();
-		name2Hot = name2HotTmp;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder cache = new StringBuilder();
-		for (Entry<String, Float> entry : name2Hot.entrySet()) {
-			cache.append(entry.getKey() + " " + entry.getValue() + "\n");
+		for (CacheEntry entry : hotOrder) {
+			cache.append(entry.getName() + " " + entry.getHot() + "\n");
 		}
 		return cache.toString();
 	}
 	
 	public TreeSet<HotObject> listHot(){
 		TreeSet<HotObject> hotSet= new TreeSet<HotObject>();
-		for (Entry<String, Float> entry : name2Hot.entrySet()) {
-			hotSet.add(new HotObject(entry.getValue(), entry.getKey()));
+		for (CacheEntry entry : hotOrder) {
+			hotSet.add(new HotObject(entry.getHot(), entry.getName()));
 		}
 		return hotSet;
 	}
+
+	/**
+	 * @param top
+	 * @return the top hottest objects, the hottest first
+	 */
+	public List<HotObject> topHot(int top) {
+		// put the entries hit since they were indexed back in order
+		List<CacheEntry> stale = new ArrayList<CacheEntry>();
+		for (CacheEntry entry : hotOrder) {
+			if (entry.isStale()) {
+				stale.add(entry);
+			}
+		}
+		for (CacheEntry entry : stale) {
+			hotOrder.remove(entry);
+			entry.index();
+			hotOrder.add(entry);
+		}
+		List<HotObject> topHotList = new ArrayList<HotObject>();
+		Iterator<CacheEntry> it = hotOrder.descendingIterator();
+		while (topHotList.size() < top && it.hasNext()) {
+			CacheEntry entry = it.next();
+			topHotList.add(new HotObject(entry.getHot(), entry.getName()));
+		}
+		return topHotList;
+	}
 	
 }
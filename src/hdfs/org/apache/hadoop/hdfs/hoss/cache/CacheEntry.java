@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a cached object. hits add to its hotness without any lock, the tier it
+ * belongs to orders it by the hotness it had when it was last indexed.
+ */
+class CacheEntry implements Comparable<CacheEntry> {
+	private final String name;
+
+	private final Metadata metadata;
+
+	// bits of the float hotness
+	private final AtomicInteger hot;
+
+	// hotness the entry is ordered by, only changed out of the tier
+	private float indexedHot;
+
+	private volatile boolean inHot = false;
+
+	CacheEntry(String name, Metadata metadata, float hot) {
+		this.name = name;
+		this.metadata = metadata;
+		this.hot = new AtomicInteger(Float.floatToIntBits(hot));
+		this.indexedHot = hot;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	Metadata getMetadata() {
+		return metadata;
+	}
+
+	float getHot() {
+		return Float.intBitsToFloat(hot.get());
+	}
+
+	void addHot(float delta) {
+		while (true) {
+			int bits = hot.get();
+			float next = Float.intBitsToFloat(bits) + delta;
+			if (hot.compareAndSet(bits, Float.floatToIntBits(next))) {
+				return;
+			}
+		}
+	}
+
+	void setHot(float value) {
+		hot.set(Float.floatToIntBits(value));
+	}
+
+	/**
+	 * @return true if hits changed the hotness since it was indexed
+	 */
+	boolean isStale() {
+		return indexedHot != getHot();
+	}
+
+	/**
+	 * order the entry by its current hotness, the entry must not be in a tier
+	 */
+	void index() {
+		indexedHot = getHot();
+	}
+
+	boolean isInHot() {
+		return inHot;
+	}
+
+	void setInHot(boolean inHot) {
+		this.inHot = inHot;
+	}
+
+	@Override
+	public int compareTo(CacheEntry o) {
+		int result = Float.compare(indexedHot, o.indexedHot);
+		if (result == 0) {
+			result = name.compareTo(o.name);
+		}
+		return result;
+	}
+}
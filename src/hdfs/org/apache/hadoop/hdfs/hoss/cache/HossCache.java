@@ -18,114 +18,238 @@
 package org.apache.hadoop.hdfs.hoss.cache;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * two tier hot/warm cache of object metadata. object names are partitioned
+ * by hash into stripes, each stripe has its own lock and its own warm and hot
+ * tier. a hit looks up the entry without any lock and adds to its hotness
+ * atomically, a warm hit promotes the entry to the hot tier if the stripe
+ * lock is free, otherwise a later hit does.
+ * 
+ * in off-heap mode the entries are kept in an {@link OffHeapCache} instead,
+ * which has a single tier.
+ */
 public class HossCache {
 	private static final Log LOG = LogFactory.getLog(HossCache.class);
-	
-	private static Cache warmCache = null;
-	
-	private static Cache hotCache = null;
-	
+
+	private static final int STRIPES = 32;
+
+	// all the cached objects of both tiers
+	private ConcurrentHashMap<String, CacheEntry> entries = null;
+
+	private ReentrantLock[] locks = null;
+
+	private Cache[] warmCaches = null;
+
+	private Cache[] hotCaches = null;
+
+	// not null in off-heap mode
+	private OffHeapCache offHeap = null;
+
 	public HossCache(int warmCapacity, int hotCapacity) {
-		warmCache = new Cache(warmCapacity);
-		hotCache = new Cache(hotCapacity);
+		this(warmCapacity, hotCapacity, STRIPES);
 	}
 
-	public synchronized boolean exist(String objName) {
-		return warmCache.exist(objName) || hotCache.exist(objName);
+	public HossCache(int warmCapacity, int hotCapacity, int stripes) {
+		entries = new ConcurrentHashMap<String, CacheEntry>(warmCapacity
+				+ hotCapacity, 0.75f, stripes);
+		locks = new ReentrantLock[stripes];
+		warmCaches = new Cache[stripes];
+		hotCaches = new Cache[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new ReentrantLock();
+			warmCaches[i] = new Cache(Math.max(1, warmCapacity / stripes));
+			hotCaches[i] = new Cache(Math.max(1, hotCapacity / stripes));
+		}
+	}
+
+	/**
+	 * off-heap mode
+	 * 
+	 * @param offHeapCapacity
+	 *            the number of objects to cache
+	 * @param stripes
+	 */
+	public HossCache(long offHeapCapacity, int stripes) {
+		offHeap = new OffHeapCache(offHeapCapacity, stripes);
 	}
 
-	public synchronized void addCache(String objName, Metadata metadata,
-			float hot) {
-		if (warmCache.isFull()) {
-			warmCache.removeLeast();
+	/**
+	 * @return the number of cached objects
+	 */
+	public long size() {
+		if (offHeap != null) {
+			return offHeap.size();
 		}
-		warmCache.add(objName, metadata, hot);
+		return entries.size();
 	}
 
-	public synchronized Metadata hit(String objName, float hot) {
-		Metadata metadata = null;
-		if (warmCache.exist(objName)) {// hit in warm Cache
-			metadata = getWarmCache(objName, hot);
-			/*
-			 * LOG.info("hit warm cache: objectName: " + objName + " hotness: "
-			 * + hot + " " + metadata);
-			 */
-		} else {// hit in hot Cache
-			metadata = getHotCache(objName, hot);
-			/*
-			 * LOG.info("hit hot cache: objectName: " + objName + " hotness: " +
-			 * hot + " " + metadata);
-			 */
-		}
-		return metadata;
+	/**
+	 * @return the direct memory used by the cache in bytes
+	 */
+	public long offHeapBytes() {
+		return offHeap == null ? 0 : offHeap.memoryBytes();
 	}
 
-	private synchronized Metadata getWarmCache(String objName, float hot) {
-		Metadata metadata = null;
-		metadata = warmCache.get(objName, hot);
-		float historyHot = warmCache.getHot(objName);
-		float currentHot = historyHot + hot;
-		if (hotCache.isFull()) {
-			// warm cache is full, free some space for metadata from hot cache
-			if (warmCache.isFull()) {
-				int freeWarmSpace = warmCache.size() / 10 + 1;
-				warmCache.freeSpace(freeWarmSpace);
+	private int stripe(String objName) {
+		return (objName.hashCode() & Integer.MAX_VALUE) % locks.length;
+	}
+
+	public boolean exist(String objName) {
+		if (offHeap != null) {
+			return offHeap.exist(objName);
+		}
+		return entries.containsKey(objName);
+	}
+
+	public void addCache(String objName, Metadata metadata, float hot) {
+		if (offHeap != null) {
+			offHeap.add(objName, metadata, hot);
+			return;
+		}
+		int s = stripe(objName);
+		locks[s].lock();
+		try {
+			CacheEntry old = entries.get(objName);
+			if (old != null) {
+				removeFromTier(s, old);
 			}
-			// migrate meatadata with the lowest hotness from hot cache to warm
-			// cache
-
-			float hInhot = hotCache.getLeastHot();
-			Metadata metaInHot = hotCache.removeLeast();
-			// hotCache.ageCache(hot);
-			if (metaInHot != null) {
-				warmCache.add(metaInHot.getObjName(), metaInHot, hInhot);
-				LOG.info("migrate object: " + metaInHot.getObjName()
-						+ " hotness: " + hInhot);
+			if (warmCaches[s].isFull()) {
+				evict(warmCaches[s].pollLeast());
 			}
+			CacheEntry entry = new CacheEntry(objName, metadata, hot);
+			warmCaches[s].add(entry);
+			entries.put(objName, entry);
+		} finally {
+			locks[s].unlock();
 		}
-		hotCache.add(objName, metadata, currentHot);
-		warmCache.remove(objName);
-		return metadata;
 	}
 
-	private Metadata getHotCache(String objName, float hot) {
-		Metadata metadata = null;
-		metadata = hotCache.get(objName, hot);
-		return metadata;
+	/**
+	 * @param objName
+	 * @param hot
+	 * @return the metadata, null if the object is not cached. in off-heap
+	 *         mode it may be the metadata of another name with the same
+	 *         hash, the caller checks the object id.
+	 */
+	public Metadata hit(String objName, float hot) {
+		if (offHeap != null) {
+			return offHeap.hit(objName, hot);
+		}
+		CacheEntry entry = entries.get(objName);
+		if (entry == null) {
+			return null;
+		}
+		entry.addHot(hot);
+		if (!entry.isInHot()) {
+			promote(entry);
+		}
+		return entry.getMetadata();
+	}
+
+	/**
+	 * move a warm entry to the hot tier, the least hot entry of a full hot
+	 * tier moves to the warm tier.
+	 */
+	private void promote(CacheEntry entry) {
+		int s = stripe(entry.getName());
+		if (!locks[s].tryLock()) {
+			return;
+		}
+		try {
+			Cache warmCache = warmCaches[s];
+			Cache hotCache = hotCaches[s];
+			if (entry.isInHot() || !warmCache.remove(entry)) {
+				return;
+			}
+			if (hotCache.isFull()) {
+				// warm cache is full, free some space for metadata from hot
+				// cache
+				if (warmCache.isFull()) {
+					int freeWarmSpace = warmCache.size() / 10 + 1;
+					for (CacheEntry evicted : warmCache.freeSpace(freeWarmSpace)) {
+						evict(evicted);
+					}
+				}
+				// migrate meatadata with the lowest hotness from hot cache to
+				// warm cache
+				CacheEntry least = hotCache.pollLeast();
+				if (least != null) {
+					least.setInHot(false);
+					warmCache.add(least);
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("migrate object: " + least.getName()
+								+ " hotness: " + least.getHot());
+					}
+				}
+			}
+			entry.setInHot(true);
+			hotCache.add(entry);
+		} finally {
+			locks[s].unlock();
+		}
 	}
-	
-	
+
+	private void evict(CacheEntry entry) {
+		if (entry != null) {
+			entries.remove(entry.getName(), entry);
+		}
+	}
+
+	private void removeFromTier(int s, CacheEntry entry) {
+		if (!warmCaches[s].remove(entry)) {
+			hotCaches[s].remove(entry);
+		}
+	}
+
 	public List<HotObject> topHot(int top){
+		if (offHeap != null) {
+			return offHeap.topHot(top);
+		}
 		List<HotObject> topHotList = new ArrayList<HotObject>();
-		int cur = 0;
-		if(top > 0){
-			Set<HotObject> hotSet = hotCache.listHot().descendingSet();
-			for(HotObject ho: hotSet){
-				cur++;
-				if(cur > top){
-					break;
-				}
-				topHotList.add(ho);
+		if (top <= 0) {
+			return topHotList;
+		}
+		for (int s = 0; s < locks.length; s++) {
+			locks[s].lock();
+			try {
+				topHotList.addAll(hotCaches[s].topHot(top));
+			} finally {
+				locks[s].unlock();
 			}
 		}
+		Collections.sort(topHotList, Collections.reverseOrder());
+		if (topHotList.size() > top) {
+			topHotList = new ArrayList<HotObject>(topHotList.subList(0, top));
+		}
 		return topHotList;
 	}
+
 	/**
 	 * remove the object from hoss cache
 	 * @param objName
 	 */
 	public void remove(String objName) {
-		if(hotCache.exist(objName)){
-			hotCache.remove(objName);
+		if (offHeap != null) {
+			offHeap.remove(objName);
+			return;
 		}
-		if(warmCache.exist(objName)){
-			warmCache.remove(objName);
+		int s = stripe(objName);
+		locks[s].lock();
+		try {
+			CacheEntry entry = entries.remove(objName);
+			if (entry != null) {
+				removeFromTier(s, entry);
+			}
+		} finally {
+			locks[s].unlock();
 		}
 	}
 
@@ -0,0 +1,332 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.hoss.db.PathPosition;
+
+/**
+ * object metadata cache in direct memory. an entry is a 40 bytes record of
+ * 64-bit name hash, object id, path id, offset, hotness and length in an open
+ * addressing table, no object is kept on heap per entry. names are not
+ * stored: the caller verifies the object id of a hit to rule out hash
+ * collisions. when a stripe is full, the least hot of a few sampled entries
+ * is evicted.
+ */
+class OffHeapCache {
+	private static final Log LOG = LogFactory.getLog(OffHeapCache.class);
+
+	// hash, object id, path id, offset, hotness, length
+	private static final int RECORD = 40;
+
+	private static final int OBJID = 8;
+
+	private static final int PATHID = 16;
+
+	private static final int OFFSET = 24;
+
+	private static final int HOT = 32;
+
+	// int, -1 if the length is unknown or larger
+	private static final int LENGTH = 36;
+
+	private static final float LOADFACTOR = 0.75f;
+
+	// entries sampled to choose the one to evict
+	private static final int EVICTSAMPLES = 8;
+
+	private final Stripe[] stripes;
+
+	OffHeapCache(long capacity, int nStripes) {
+		stripes = new Stripe[nStripes];
+		int perStripe = (int) Math.max(1, capacity / nStripes);
+		for (int i = 0; i < nStripes; i++) {
+			stripes[i] = new Stripe(perStripe, i);
+		}
+		LOG.info("off-heap cache of " + capacity + " entries uses "
+				+ memoryBytes() + " bytes");
+	}
+
+	/**
+	 * 64-bit FNV-1a of the name, mixed by the MurmurHash3 finalizer. 0 marks
+	 * an empty slot so it is never returned.
+	 */
+	static long hash(String objName) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < objName.length(); i++) {
+			h ^= objName.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	private Stripe stripe(long hash) {
+		return stripes[(int) ((hash >>> 33) % stripes.length)];
+	}
+
+	boolean exist(String objName) {
+		long hash = hash(objName);
+		return stripe(hash).find(hash) >= 0;
+	}
+
+	/**
+	 * @return the cached metadata, null if the name is not cached
+	 */
+	Metadata hit(String objName, float hot) {
+		long hash = hash(objName);
+		return stripe(hash).hit(hash, objName, hot);
+	}
+
+	void add(String objName, Metadata metadata, float hot) {
+		long hash = hash(objName);
+		stripe(hash).put(hash, metadata.getObjId(), metadata
+				.getPathPosition(), hot);
+	}
+
+	void remove(String objName) {
+		long hash = hash(objName);
+		stripe(hash).remove(hash);
+	}
+
+	/**
+	 * the names are not cached, the hottest objects are named by object id
+	 */
+	List<HotObject> topHot(int top) {
+		PriorityQueue<HotObject> heap = new PriorityQueue<HotObject>();
+		for (Stripe stripe : stripes) {
+			stripe.topHot(top, heap);
+		}
+		List<HotObject> topHotList = new ArrayList<HotObject>(heap);
+		Collections.sort(topHotList, Collections.reverseOrder());
+		return topHotList;
+	}
+
+	long size() {
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size;
+		}
+		return size;
+	}
+
+	long memoryBytes() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			bytes += stripe.buf.capacity();
+		}
+		return bytes;
+	}
+
+	private static final class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final ByteBuffer buf;
+
+		private final int mask;
+
+		private final int capacity;
+
+		private final Random random;
+
+		private volatile int size = 0;
+
+		Stripe(int capacity, int seed) {
+			int slots = Integer.highestOneBit((int) Math.min(
+					Integer.MAX_VALUE / RECORD / 2, capacity / LOADFACTOR)) * 2;
+			this.capacity = Math.min(capacity, (int) (slots * LOADFACTOR));
+			this.mask = slots - 1;
+			this.buf = ByteBuffer.allocateDirect(slots * RECORD);
+			this.random = new Random(seed);
+		}
+
+		private long hashAt(int slot) {
+			return buf.getLong(slot * RECORD);
+		}
+
+		/**
+		 * @return the slot of the hash, -1 if it is not cached
+		 */
+		private int find(long hash) {
+			lock.lock();
+			try {
+				return slotOf(hash);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private int slotOf(long hash) {
+			int slot = (int) hash & mask;
+			while (true) {
+				long h = hashAt(slot);
+				if (h == 0) {
+					return -1;
+				}
+				if (h == hash) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		Metadata hit(long hash, String objName, float hot) {
+			lock.lock();
+			try {
+				int slot = slotOf(hash);
+				if (slot < 0) {
+					return null;
+				}
+				int pos = slot * RECORD;
+				buf.putFloat(pos + HOT, buf.getFloat(pos + HOT) + hot);
+				PathPosition pp = new PathPosition(buf.getLong(pos + PATHID),
+						buf.getLong(pos + OFFSET), buf.getInt(pos + LENGTH));
+				return new Metadata(buf.getLong(pos + OBJID), pp, objName);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(long hash, long objId, PathPosition pp, float hot) {
+			lock.lock();
+			try {
+				int slot = slotOf(hash);
+				if (slot < 0) {
+					if (size >= capacity) {
+						evict();
+					}
+					slot = (int) hash & mask;
+					while (hashAt(slot) != 0) {
+						slot = (slot + 1) & mask;
+					}
+					size++;
+				}
+				int pos = slot * RECORD;
+				buf.putLong(pos, hash);
+				buf.putLong(pos + OBJID, objId);
+				buf.putLong(pos + PATHID, pp.getPathId());
+				buf.putLong(pos + OFFSET, pp.getOffset());
+				buf.putFloat(pos + HOT, hot);
+				buf.putInt(pos + LENGTH, pp.getLength() > Integer.MAX_VALUE ? -1
+						: (int) pp.getLength());
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(long hash) {
+			lock.lock();
+			try {
+				int slot = slotOf(hash);
+				if (slot >= 0) {
+					delete(slot);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * evict the least hot of EVICTSAMPLES entries at random slots
+		 */
+		private void evict() {
+			int victim = -1;
+			float victimHot = Float.MAX_VALUE;
+			for (int i = 0; i < EVICTSAMPLES; i++) {
+				int slot = random.nextInt(mask + 1);
+				while (hashAt(slot) == 0) {
+					slot = (slot + 1) & mask;
+				}
+				float hot = buf.getFloat(slot * RECORD + HOT);
+				if (victim < 0 || hot < victimHot) {
+					victimHot = hot;
+					victim = slot;
+				}
+			}
+			delete(victim);
+		}
+
+		/**
+		 * empty the slot, shifting back the entries of the probe sequence
+		 * behind it so that no tombstone is needed
+		 */
+		private void delete(int slot) {
+			int hole = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				long h = hashAt(next);
+				if (h == 0) {
+					break;
+				}
+				int home = (int) h & mask;
+				// move the entry if the hole is between its home and its slot
+				boolean movable = hole <= next ? (home <= hole || home > next)
+						: (home <= hole && home > next);
+				if (movable) {
+					copy(next, hole);
+					hole = next;
+				}
+			}
+			buf.putLong(hole * RECORD, 0);
+			size--;
+		}
+
+		private void copy(int from, int to) {
+			for (int i = 0; i < RECORD; i += 8) {
+				buf.putLong(to * RECORD + i, buf.getLong(from * RECORD + i));
+			}
+		}
+
+		void topHot(int top, PriorityQueue<HotObject> heap) {
+			lock.lock();
+			try {
+				for (int slot = 0; slot <= mask; slot++) {
+					if (hashAt(slot) == 0) {
+						continue;
+					}
+					int pos = slot * RECORD;
+					float hot = buf.getFloat(pos + HOT);
+					if (heap.size() < top) {
+						heap.add(new HotObject(hot, Long.toString(buf
+								.getLong(pos + OBJID))));
+					} else if (top > 0 && hot > heap.peek().getHot()) {
+						heap.poll();
+						heap.add(new HotObject(hot, Long.toString(buf
+								.getLong(pos + OBJID))));
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
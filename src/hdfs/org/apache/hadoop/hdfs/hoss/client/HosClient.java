@@ -5,6 +5,9 @@ import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.hoss.db.ObjectAttributes;
+import org.apache.hadoop.hdfs.hoss.db.ObjectListing;
+import org.apache.hadoop.hdfs.hoss.db.ObjectQuery;
 import org.apache.hadoop.hdfs.protocol.ClientProtocol;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
 import org.apache.hadoop.io.Text;
@@ -16,6 +19,9 @@ public class HosClient {
 	private static final Log LOG = LogFactory.getLog(HosClient.class);
 	
 	private static ClientProtocol client = null;
+
+	// objects in a page of listObjects()
+	private static final int PAGESIZE = 1000;
 	
 	static {
 		try {
@@ -34,8 +40,59 @@ public class HosClient {
 		RPC.stopProxy(client);
 	}
 	
+	/**
+	 * get all the objects(name and id) in hoss, listed page by page
+	 * @return "name#id" of the objects separated by tabs, null if a page
+	 *         could not be listed
+	 */
 	public Text listObjects(){
-		return client.listObjects();
+		StringBuilder sb = new StringBuilder();
+		String token = null;
+		do {
+			ObjectListing page = client.listObjects(null, token, PAGESIZE);
+			if (page == null) {
+				LOG.error("list objects fail after " + token);
+				return null;
+			}
+			String[] names = page.getNames();
+			long[] ids = page.getIds();
+			for (int i = 0; i < names.length; i++) {
+				sb.append(names[i]).append("#").append(ids[i]).append("\t");
+			}
+			token = page.getContinuationToken();
+		} while (token != null);
+		return new Text(sb.toString().trim());
+	}
+	
+	/**
+	 * list a page of the objects whose name has the prefix, in name order
+	 * @param prefix null or empty to list all the objects
+	 * @param startAfter the continuation token of the previous page, null for
+	 *        the first page
+	 * @param maxKeys objects in a page
+	 * @return
+	 */
+	public ObjectListing listObjects(String prefix, String startAfter,
+			int maxKeys) {
+		return client.listObjects(prefix, startAfter, maxKeys);
+	}
+	
+	/**
+	 * find the objects whose attributes match the query
+	 * @param query
+	 * @param limit objects in a page
+	 * @return
+	 */
+	public ObjectListing queryObjects(ObjectQuery query, int limit) {
+		return client.queryObjects(query, limit);
+	}
+	
+	/**
+	 * @param objName
+	 * @return the user defined attributes of the object, null if it has none
+	 */
+	public ObjectAttributes getObjectAttributes(String objName) {
+		return client.getObjectAttributes(objName);
 	}
 	
 	public Text topHotObject(int top){
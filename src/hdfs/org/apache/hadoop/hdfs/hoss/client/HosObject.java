@@ -4,20 +4,18 @@ import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BufferedFSInputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.hoss.db.ObjectAttributes;
+import org.apache.hadoop.hdfs.hoss.db.ObjectInfo;
 import org.apache.hadoop.hdfs.hoss.db.PathPosition;
-import org.apache.hadoop.hdfs.hoss.smallobject.KeyWritable;
-import org.apache.hadoop.hdfs.hoss.smallobject.SmallObjectsManager;
-import org.apache.hadoop.hdfs.hoss.smallobject.ValueWritable;
+import org.apache.hadoop.hdfs.hoss.smallobject.ContainerReader;
 import org.apache.hadoop.hdfs.hoss.util.HDFSUtil;
 import org.apache.hadoop.hdfs.protocol.ClientProtocol;
 import org.apache.hadoop.io.IOUtils;
-import org.apache.hadoop.io.SequenceFile;
 
 public class HosObject {
 
@@ -35,26 +33,78 @@ public class HosObject {
 
 	private static ClientProtocol client = null;
 
+	// combined small objects are read from the containers shared by the jvm
+	private static final ContainerReader containers = ContainerReader.get(fs);
+
 	private String objName = null;
 
 	static {
 		client = HosClient.client();
 	}
 
+	// path position of the object, null if not resolved yet
+	private PathPosition pp = null;
+
+	// object id, -1 if not resolved yet
+	private long objId = -1L;
+
+	// bytes of an inlined object, null if not resolved yet
+	private byte[] data = null;
+
+	// user defined attributes given to the put, null if none
+	private ObjectAttributes attributes = null;
+
 	public HosObject(final String objName) {
 		this.objName = objName;
 	}
 
+	private HosObject(final String objName, final PathPosition pp) {
+		this.objName = objName;
+		this.pp = pp;
+	}
+
 	private PathPosition putObject() {
+		if (attributes != null) {
+			return client.putObject(objName, attributes);
+		}
 		return client.putObject(objName);
 	}
 
+	/**
+	 * set the user defined attributes put with the object by the writer
+	 * @param attributes
+	 */
+	public void setAttributes(ObjectAttributes attributes) {
+		this.attributes = attributes;
+	}
+
 	private long getObjectId() {
-		return client.getObjectId(objName);
+		if (objId < 0) {
+			objId = client.getObjectId(objName);
+		}
+		return objId;
+	}
+
+	/**
+	 * resolve object id and path position in one call.
+	 * @return false if object does not exist
+	 */
+	private boolean openObject() {
+		ObjectInfo info = client.openObject(objName);
+		if (info == null) {
+			return false;
+		}
+		objId = info.getObjId();
+		pp = info.getPathPosition();
+		data = info.getData();
+		return true;
 	}
 
 	private PathPosition getPathPosition() {
-		return client.getPathPosition(objName);
+		if (pp == null) {
+			pp = client.getPathPosition(objName);
+		}
+		return pp;
 	}
 
 	private long deleteObj() {
@@ -74,8 +124,7 @@ public class HosObject {
 		PathPosition pp = this.putObject();
 		if (pp != null) {
 			try {
-				out = fs.create(new Path(pp.getPath()), overwrite, BUFFERSIZE,
-						replication, BLOCKSIZE);
+				out = create(objName, pp, overwrite, replication);
 			} catch (IOException e) {
 				LOG.error("Initalize FSDataOutputStream error: " + e);
 			}
@@ -89,17 +138,31 @@ public class HosObject {
 	 * @return
 	 */
 	private boolean initReader() {
-		if (!isExist()) {
+		if (pp == null && !openObject()) {
+			LOG.warn("object  " + objName + " not exists");
+			return false;
+		}
+		// the bytes of an inlined object come with openObject
+		if (pp.isInline() && data == null && !openObject()) {
 			LOG.warn("object  " + objName + " not exists");
 			return false;
 		}
-		PathPosition pp = this.getPathPosition();
 		Path path = new Path(pp.getPath());
 		long offset = pp.getOffset();
 		//LOG.info("initReader  id " + getObjectId() + " offset " + offset);
-		//read combined small object
-		if (offset > 0) {
-			byte[] buf = getSmallObject(getObjectId(), offset);	
+		if (pp.isInline()) {
+			if (data == null) {
+				return false;
+			}
+			try {
+				in = new FSDataInputStream(new BufferedFSInputStream(
+						new BytesInputStream(data), data.length));
+			} catch (IOException e) {
+				LOG.error("in inline initalize FSDataInputStream error: " + e);
+			}
+		} else if (offset > 0) {
+			//read combined small object
+			byte[] buf = getSmallObject(getObjectId(), pp);
 			try {
 				if(buf != null){
 				in = new FSDataInputStream(new BufferedFSInputStream(
@@ -120,6 +183,12 @@ public class HosObject {
 		return true;
 	}
 
+	private static FSDataOutputStream create(String objName, PathPosition pp,
+			boolean overwrite, short replication) throws IOException {
+		return new ObjectOutputStream(objName, fs.create(new Path(pp
+				.getPath()), overwrite, BUFFERSIZE, replication, BLOCKSIZE));
+	}
+
 	/**
 	 * get output stream
 	 * 
@@ -177,11 +246,11 @@ public class HosObject {
 	 */
 	public void deleteObject() {
 		boolean flag = false;
-		if (!isExist()) {
+		PathPosition pp = this.getPathPosition();
+		if (pp == null) {
 			LOG.warn("object  " + objName + " not exists");
 			return;
 		}
-		PathPosition pp = this.getPathPosition();
 		Path path = new Path(pp.getPath());
 		long offset = pp.getOffset();
 		try {
@@ -197,29 +266,127 @@ public class HosObject {
 		}
 	}
 	
-	public byte[] getSmallObject(long objId, long offset){
-		SequenceFile.Reader reader = null;
-		byte[] bytes = null;
-		try {
-			String superObj = SmallObjectsManager.STABLEOBJECT;
-			reader = new SequenceFile.Reader(fs, new Path(superObj), new Configuration());
-			KeyWritable kw = new KeyWritable();
-			ValueWritable vw = new ValueWritable();
-			reader.seek(offset);
-			reader.next(kw, vw);
-			if(kw.getObjId() == objId) {
-				bytes = vw.getValue();
-			}else{
-				LOG.error("Read small object mismatch excepted object id " + kw.getObjId()
-						+", actual object id " + objId);
+	/**
+	 * put a batch of objects with one metadata call, and open the output
+	 * stream of each object.
+	 * 
+	 * @param objNames
+	 * @param replication
+	 * @return hoss objects in the order of objNames, null for the object which
+	 *         has existed or could not be created
+	 */
+	public static HosObject[] putObjects(String[] objNames, short replication) {
+		HosObject[] objects = new HosObject[objNames.length];
+		PathPosition[] pps = client.putObjects(objNames);
+		for (int i = 0; i < objNames.length; i++) {
+			if (pps[i] == null) {
+				LOG.warn("object  " + objNames[i] + " already exists.");
+				continue;
 			}
-		} catch (IOException e) {
-			LOG.error("combine small object initilize SequenceFile Reader error: "
-					+ e);
-		} finally {
-			IOUtils.closeStream(reader);
+			HosObject object = new HosObject(objNames[i], pps[i]);
+			try {
+				object.out = create(objNames[i], pps[i], false, replication);
+				objects[i] = object;
+			} catch (IOException e) {
+				LOG.error("Initalize FSDataOutputStream error: " + e);
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * put a batch of tiny objects with one metadata call, their bytes are kept
+	 * in the meta data instead of a file.
+	 * 
+	 * @param objNames
+	 * @param data
+	 * @return object ids in the order of objNames, -1 for the object which has
+	 *         existed or is larger than the inline threshold
+	 */
+	public static long[] putInlineObjects(String[] objNames, byte[][] data) {
+		return client.putInlineObjects(objNames, data);
+	}
+
+	/**
+	 * resolve a batch of objects with one metadata call, the reader of each
+	 * object is got by {@link #getReader()}.
+	 * 
+	 * @param objNames
+	 * @return hoss objects in the order of objNames, null for the object which
+	 *         does not exist
+	 */
+	public static HosObject[] getObjects(String[] objNames) {
+		HosObject[] objects = new HosObject[objNames.length];
+		PathPosition[] pps = client.getPathPositions(objNames);
+		for (int i = 0; i < objNames.length; i++) {
+			if (pps[i] == null) {
+				LOG.warn("object  " + objNames[i] + " not exists");
+				continue;
+			}
+			objects[i] = new HosObject(objNames[i], pps[i]);
+		}
+		return objects;
+	}
+
+	/**
+	 * delete a batch of objects with two metadata calls.
+	 * 
+	 * @param objNames
+	 * @return the number of deleted objects
+	 */
+	public static int deleteObjects(String[] objNames) {
+		PathPosition[] pps = client.getPathPositions(objNames);
+		for (int i = 0; i < objNames.length; i++) {
+			// combined object has no file of its own
+			if (pps[i] != null && pps[i].getOffset() == 0) {
+				try {
+					if (!fs.delete(new Path(pps[i].getPath()), false)) {
+						LOG.warn("delete object " + objNames[i] + "fail");
+					}
+				} catch (IOException e) {
+					LOG.error(e);
+				}
+			}
+		}
+		int deleted = 0;
+		long[] ids = client.deleteObjects(objNames);
+		for (long id : ids) {
+			if (id != -1) {
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	public byte[] getSmallObject(long objId, PathPosition pp) {
+		return containers.read(objId, pp);
+	}
+
+	/**
+	 * output stream of an object, the size of the object is recorded in the
+	 * meta data when the stream is closed.
+	 */
+	private static class ObjectOutputStream extends FSDataOutputStream {
+		private final String objName;
+
+		private boolean closed = false;
+
+		ObjectOutputStream(String objName, FSDataOutputStream out)
+				throws IOException {
+			super(out, null);
+			this.objName = objName;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			long size = getPos();
+			super.close();
+			client.closeObject(objName, size);
 		}
-		return bytes;
 	}
 
 }
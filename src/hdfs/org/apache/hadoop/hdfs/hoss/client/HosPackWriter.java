@@ -0,0 +1,299 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.hoss.smallobject.ContainerWriter;
+import org.apache.hadoop.hdfs.hoss.util.HDFSUtil;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+
+/**
+ * writes small objects into a container of the client instead of a file
+ * each. objects are buffered and appended to the open container in batches,
+ * with ids leased in blocks. when the container is full or the writer is
+ * closed, the container is sealed: its objects are put and pointed into it
+ * by one metadata call. objects not smaller than the threshold get their own
+ * file, objects not larger than the inline threshold are kept in the meta
+ * data. the ids left are given back when the writer is closed.
+ *
+ * an object does not exist before its container is sealed. the ids of a
+ * container which could not be sealed are reused when their lease expires.
+ */
+public class HosPackWriter implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(HosPackWriter.class);
+
+	private static FileSystem fs = HDFSUtil.getFileSystem();
+
+	private static ClientProtocol client = HosClient.client();
+
+	private static final long BLOCKSIZE = 64 * 1024 * 1024L;
+
+	private static final int THRESHOLD = 1024 * 1024;
+
+	private static final int BATCHBYTES = 4 * 1024 * 1024;
+
+	private static final int INLINETHRESHOLD = 1024;
+
+	private static final int LEASEIDS = 1024;
+
+	private final short replication;
+
+	// objects smaller than this are packed
+	private final int threshold;
+
+	// objects up to this size are inlined in the meta data
+	private final int inlineThreshold;
+
+	// bytes buffered before the objects are put
+	private final int batchBytes;
+
+	// size the container is sealed at
+	private final long containerBytes;
+
+	// ids leased at a time, 0 to lease the ids of each batch
+	private final int leaseIds;
+
+	// the leased ids not used yet are nextId until leaseEnd, excluded
+	private long nextId = 0;
+
+	private long leaseEnd = 0;
+
+	private final List<String> pendingNames = new ArrayList<String>();
+
+	private final List<byte[]> pendingValues = new ArrayList<byte[]>();
+
+	private int pendingBytes = 0;
+
+	private final List<String> inlineNames = new ArrayList<String>();
+
+	private final List<byte[]> inlineValues = new ArrayList<byte[]>();
+
+	private int inlineBytes = 0;
+
+	private ContainerWriter writer = null;
+
+	// objects in the open container
+	private final List<String> packedNames = new ArrayList<String>();
+
+	public HosPackWriter() {
+		this((short) 1);
+	}
+
+	public HosPackWriter(short replication) {
+		Configuration conf = new Configuration();
+		conf.addResource("hoss-site.xml");
+		this.replication = replication;
+		this.threshold = conf.getInt("hoss.pack.threshold", THRESHOLD);
+		this.inlineThreshold = conf.getInt("hoss.inline.threshold",
+				INLINETHRESHOLD);
+		this.batchBytes = conf.getInt("hoss.pack.batchBytes", BATCHBYTES);
+		this.containerBytes = conf.getLong("hoss.pack.containerBytes",
+				BLOCKSIZE);
+		this.leaseIds = conf.getInt("hoss.pack.leaseIds", LEASEIDS);
+	}
+
+	/**
+	 * write an object, a small one is readable after the writer is flushed
+	 * or closed.
+	 *
+	 * @param objName
+	 * @param value
+	 * @throws IOException
+	 */
+	public void put(String objName, byte[] value) throws IOException {
+		if (value.length >= threshold) {
+			putFile(objName, value);
+			return;
+		}
+		if (value.length <= inlineThreshold) {
+			inlineNames.add(objName);
+			inlineValues.add(value);
+			inlineBytes += value.length;
+			if (inlineBytes >= batchBytes) {
+				writeInline();
+			}
+			return;
+		}
+		pendingNames.add(objName);
+		pendingValues.add(value);
+		pendingBytes += value.length;
+		if (pendingBytes >= batchBytes) {
+			writeBatch();
+		}
+	}
+
+	private void putFile(String objName, byte[] value) throws IOException {
+		HosObject object = new HosObject(objName);
+		FSDataOutputStream out = object.getWriter(replication);
+		if (out == null) {
+			LOG.warn("object  " + objName + " could not be created");
+			return;
+		}
+		try {
+			out.write(value);
+		} finally {
+			object.close();
+		}
+	}
+
+	/**
+	 * put the buffered tiny objects with their bytes
+	 */
+	private void writeInline() throws IOException {
+		if (inlineNames.isEmpty()) {
+			return;
+		}
+		String[] objNames = inlineNames.toArray(new String[inlineNames.size()]);
+		byte[][] data = inlineValues.toArray(new byte[inlineValues.size()][]);
+		inlineNames.clear();
+		inlineValues.clear();
+		inlineBytes = 0;
+		long[] ids = client.putInlineObjects(objNames, data);
+		for (int i = 0; i < objNames.length; i++) {
+			if (ids[i] < 0) {
+				LOG.warn("object  " + objNames[i] + " could not be inlined");
+			}
+		}
+	}
+
+	/**
+	 * append the buffered objects to the container with leased ids, they are
+	 * put when the container is sealed. if no ids are leased, each object is
+	 * written to its own file.
+	 */
+	private void writeBatch() throws IOException {
+		if (pendingNames.isEmpty()) {
+			return;
+		}
+		long[] ids = leaseIds(pendingNames.size());
+		if (ids == null) {
+			for (int i = 0; i < pendingNames.size(); i++) {
+				putFile(pendingNames.get(i), pendingValues.get(i));
+			}
+		} else {
+			if (writer == null) {
+				writer = new ContainerWriter(fs, new Configuration(),
+						new Path(".pack-" + UUID.randomUUID()), replication);
+			}
+			for (int i = 0; i < ids.length; i++) {
+				writer.append(ids[i], pendingValues.get(i));
+				packedNames.add(pendingNames.get(i));
+			}
+		}
+		pendingNames.clear();
+		pendingValues.clear();
+		pendingBytes = 0;
+		if (writer != null && writer.getLength() >= containerBytes) {
+			seal();
+		}
+	}
+
+	/**
+	 * @return count leased ids, null if the lease is refused
+	 */
+	private long[] leaseIds(int count) {
+		long[] ids = new long[count];
+		for (int i = 0; i < count; i++) {
+			if (nextId == leaseEnd) {
+				int size = Math.max(leaseIds, count - i);
+				long start = client.leaseObjectIds(size);
+				if (start < 0) {
+					LOG.warn("lease of " + size + " object ids fail");
+					return null;
+				}
+				nextId = start;
+				leaseEnd = start + size;
+			}
+			ids[i] = nextId++;
+		}
+		return ids;
+	}
+
+	/**
+	 * give back the leased ids not used
+	 */
+	private void releaseIds() {
+		if (nextId < leaseEnd) {
+			client.releaseObjectIds(nextId, (int) (leaseEnd - nextId));
+		}
+		nextId = 0;
+		leaseEnd = 0;
+	}
+
+	/**
+	 * close the container and put its objects. if it could not be
+	 * registered, it is deleted.
+	 */
+	private void seal() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		long pathId = -1L;
+		Path container = writer.getPath();
+		try {
+			writer.close();
+			pathId = client.sealContainer(container.toString(), packedNames
+					.toArray(new String[packedNames.size()]), writer.getIds(),
+					writer.getOffsets(), writer.getLengths());
+		} finally {
+			if (pathId < 0) {
+				LOG.error("seal container " + container + " of "
+						+ writer.size() + " objects fail");
+				fs.delete(container, false);
+			}
+			packedNames.clear();
+			writer = null;
+		}
+		if (pathId < 0) {
+			throw new IOException("seal container fail");
+		}
+	}
+
+	/**
+	 * write the buffered objects and seal the container, the objects written
+	 * so far become readable.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		writeInline();
+		writeBatch();
+		seal();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			releaseIds();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.client;
+
+import java.io.PrintStream;
+
+import org.apache.hadoop.hdfs.hoss.db.ObjectListing;
+
+/**
+ * prints the objects of hoss page by page, one "name id" line per object.
+ * 
+ * Usage: ListObjects [prefix] [pageSize]
+ */
+public class ListObjects {
+
+	private static final int PAGESIZE = 1000;
+
+	public static void main(String[] args) {
+		String prefix = args.length > 0 ? args[0] : null;
+		int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : PAGESIZE;
+		HosClient hosClient = new HosClient();
+		PrintStream out = System.out;
+		long count = 0;
+		String token = null;
+		try {
+			do {
+				ObjectListing page = hosClient.listObjects(prefix, token,
+						pageSize);
+				if (page == null) {
+					System.err.println("list objects fail after " + token);
+					System.exit(1);
+				}
+				String[] names = page.getNames();
+				long[] ids = page.getIds();
+				for (int i = 0; i < names.length; i++) {
+					out.println(names[i] + "\t" + ids[i]);
+				}
+				count += names.length;
+				token = page.getContinuationToken();
+			} while (token != null);
+			out.flush();
+			System.err.println(count + " objects");
+		} finally {
+			HosClient.closeRPC();
+		}
+	}
+}
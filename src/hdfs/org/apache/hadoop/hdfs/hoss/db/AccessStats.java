@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * the last access time and the access count of the objects recently read,
+ * kept in memory so that a read does not write the hot store. the count
+ * halves every half life. objects are partitioned by id, each partition has
+ * its own lock and holds at most its share of the capacity: a new object
+ * evicts the one with the lowest count among the least recently read of
+ * the partition.
+ */
+class AccessStats {
+
+	// an object whose count decayed below this is forgotten once flushed
+	private static final double MINCOUNT = 0.5;
+
+	// least recently read objects an eviction chooses from
+	private static final int EVICTSAMPLE = 8;
+
+	private final Stripe[] stripes;
+
+	// objects tracked by a stripe
+	private final int stripeCapacity;
+
+	private final int mask;
+
+	private final double halfLife;
+
+	/**
+	 * the accesses of an object, the count is decayed to the last access
+	 */
+	static class Access {
+		long lastTime;
+
+		double count;
+
+		// the last access time is not in the hot store yet
+		boolean dirty;
+
+		Access(long lastTime, double count) {
+			this.lastTime = lastTime;
+			this.count = count;
+		}
+	}
+
+	private static class Stripe {
+		// in the order of the last read, the least recently read first
+		final LinkedHashMap<Long, Access> accesses = new LinkedHashMap<Long, Access>(
+				16, 0.75f, true);
+
+		// last access times of the evicted objects not in the hot store yet
+		final Map<Long, Long> evicted = new HashMap<Long, Long>();
+	}
+
+	/**
+	 * @param stripes
+	 *            rounded up to a power of two
+	 * @param halfLife
+	 *            milliseconds an access count takes to halve
+	 * @param capacity
+	 *            objects tracked at most
+	 */
+	AccessStats(int stripes, long halfLife, int capacity) {
+		int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.mask = n - 1;
+		this.halfLife = halfLife;
+		this.stripeCapacity = Math.max(1, capacity / n);
+	}
+
+	private Stripe stripe(long objId) {
+		long h = objId * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 40) & mask];
+	}
+
+	private double decay(double count, long elapsed) {
+		if (elapsed <= 0) {
+			return count;
+		}
+		return count * Math.pow(0.5, elapsed / halfLife);
+	}
+
+	/**
+	 * record an access of an object
+	 *
+	 * @param objId
+	 * @param current
+	 *            the access time
+	 * @return the previous last access time, -1 if the object is not tracked,
+	 *         and the count including this access
+	 */
+	Access access(long objId, long current) {
+		Stripe stripe = stripe(objId);
+		synchronized (stripe) {
+			Access access = stripe.accesses.get(objId);
+			if (access == null) {
+				if (stripe.accesses.size() >= stripeCapacity) {
+					evict(stripe, current);
+				}
+				access = new Access(current, 1);
+				access.dirty = true;
+				stripe.accesses.put(objId, access);
+				Long evictedTime = stripe.evicted.remove(objId);
+				return new Access(evictedTime == null ? -1 : evictedTime, 1);
+			}
+			Access previous = new Access(access.lastTime, decay(access.count,
+					current - access.lastTime) + 1);
+			if (current > access.lastTime) {
+				access.lastTime = current;
+			}
+			access.count = previous.count;
+			access.dirty = true;
+			return previous;
+		}
+	}
+
+	/**
+	 * forget the object with the lowest count among the least recently read
+	 * of a full stripe. the caller holds the lock of the stripe.
+	 */
+	private void evict(Stripe stripe, long current) {
+		Map.Entry<Long, Access> coldest = null;
+		double lowest = Double.MAX_VALUE;
+		Iterator<Map.Entry<Long, Access>> it = stripe.accesses.entrySet()
+				.iterator();
+		for (int i = 0; i < EVICTSAMPLE && it.hasNext(); i++) {
+			Map.Entry<Long, Access> e = it.next();
+			double count = decay(e.getValue().count, current
+					- e.getValue().lastTime);
+			if (count < lowest) {
+				lowest = count;
+				coldest = e;
+			}
+		}
+		Access access = stripe.accesses.remove(coldest.getKey());
+		// its last access time is written at the next flush, unless too many
+		// are waiting
+		if (access.dirty && stripe.evicted.size() < stripeCapacity) {
+			stripe.evicted.put(coldest.getKey(), access.lastTime);
+		}
+	}
+
+	/**
+	 * forget an object, its id is reused by a new object
+	 */
+	void remove(long objId) {
+		Stripe stripe = stripe(objId);
+		synchronized (stripe) {
+			stripe.accesses.remove(objId);
+			stripe.evicted.remove(objId);
+		}
+	}
+
+	/**
+	 * take the last access times not in the hot store yet, and forget the
+	 * objects which are not read any more.
+	 *
+	 * @param current
+	 * @return object id to last access time, ordered by id
+	 */
+	TreeMap<Long, Long> drain(long current) {
+		TreeMap<Long, Long> dirty = new TreeMap<Long, Long>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				dirty.putAll(stripe.evicted);
+				stripe.evicted.clear();
+				Iterator<Map.Entry<Long, Access>> it = stripe.accesses
+						.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Long, Access> e = it.next();
+					Access access = e.getValue();
+					if (access.dirty) {
+						dirty.put(e.getKey(), access.lastTime);
+						access.dirty = false;
+					} else if (decay(access.count, current - access.lastTime) < MINCOUNT) {
+						it.remove();
+					}
+				}
+			}
+		}
+		return dirty;
+	}
+
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.accesses.size();
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * the user defined attributes of the objects and a sorted index of them,
+ * kept in an ObjectsMap of their own next to the objects map, so they are
+ * flushed and merged the same way.
+ *
+ * an attribute of an object is the name "a" attribute \0 value \0 object
+ * with the object id as its value. an integer value is written as 8 bytes
+ * in sign flipped big endian after an "i", another value as its UTF-8 bytes
+ * after an "s", so the names of an attribute are ordered by value. the name
+ * "o" object holds the attributes of the object for the delete. the bytes
+ * are kept as the chars of the names, which UTF-8 encodes in the same order.
+ */
+class AttributeIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final char INDEX = 'a';
+
+	private static final char OBJECT = 'o';
+
+	private static final char INTEGER = 'i';
+
+	private static final char STRING = 's';
+
+	// names read from the index at a time
+	private static final int SCANSIZE = 1000;
+
+	private final ObjectsMap map;
+
+	AttributeIndex(File dir) throws IOException {
+		map = new ObjectsMap(dir);
+	}
+
+	private static String toChars(String s) {
+		return new String(s.getBytes(UTF8), LATIN1);
+	}
+
+	private static String fromChars(String chars) {
+		return new String(chars.getBytes(LATIN1), UTF8);
+	}
+
+	private static String attributePrefix(String attribute) {
+		return INDEX + toChars(attribute) + '\0';
+	}
+
+	private static String encodeValue(String value, boolean integer) {
+		if (integer) {
+			long v = Long.parseLong(value) ^ Long.MIN_VALUE;
+			return INTEGER
+					+ new String(ByteBuffer.allocate(8).putLong(v).array(),
+							LATIN1);
+		}
+		return STRING + toChars(value);
+	}
+
+	private static String indexName(String attribute, String value,
+			String objName) {
+		return attributePrefix(attribute)
+				+ encodeValue(value, ObjectQuery.isInteger(value)) + '\0'
+				+ toChars(objName);
+	}
+
+	private static String objectName(String objName) {
+		return OBJECT + toChars(objName);
+	}
+
+	/**
+	 * @param name
+	 *            an index name
+	 * @param offset
+	 *            where its value starts
+	 * @return the value and the object name
+	 */
+	private static String[] decode(String name, int offset) {
+		String value;
+		int end;
+		if (name.charAt(offset) == INTEGER) {
+			end = offset + 9;
+			long v = ByteBuffer.wrap(
+					name.substring(offset + 1, end).getBytes(LATIN1))
+					.getLong();
+			value = Long.toString(v ^ Long.MIN_VALUE);
+		} else {
+			end = name.indexOf('\0', offset + 1);
+			value = fromChars(name.substring(offset + 1, end));
+		}
+		return new String[] { value, fromChars(name.substring(end + 1)) };
+	}
+
+	/**
+	 * index the attributes of a new object. the caller holds the lock of the
+	 * object name.
+	 * 
+	 * @param objName
+	 * @param objId
+	 * @param attributes
+	 * @throws IOException
+	 */
+	void put(String objName, long objId, ObjectAttributes attributes)
+			throws IOException {
+		if (attributes == null || attributes.size() == 0) {
+			return;
+		}
+		for (Map.Entry<String, String> e : attributes.asMap().entrySet()) {
+			map.put(indexName(e.getKey(), e.getValue(), objName), objId);
+		}
+		DataOutputBuffer out = new DataOutputBuffer();
+		attributes.write(out);
+		map.putInline(objectName(objName), objId, Arrays.copyOf(out.getData(),
+				out.getLength()));
+	}
+
+	/**
+	 * @param objName
+	 * @return the attributes of the object, null if it has none
+	 * @throws IOException
+	 */
+	ObjectAttributes get(String objName) throws IOException {
+		byte[] bytes = map.getInline(objectName(objName));
+		if (bytes == null) {
+			return null;
+		}
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(bytes, bytes.length);
+		ObjectAttributes attributes = new ObjectAttributes();
+		attributes.readFields(in);
+		return attributes;
+	}
+
+	/**
+	 * remove the attributes of a deleted object. the caller holds the lock
+	 * of the object name.
+	 * 
+	 * @param objName
+	 * @throws IOException
+	 */
+	void remove(String objName) throws IOException {
+		ObjectAttributes attributes = get(objName);
+		if (attributes == null) {
+			return;
+		}
+		for (Map.Entry<String, String> e : attributes.asMap().entrySet()) {
+			map.delete(indexName(e.getKey(), e.getValue(), objName));
+		}
+		map.delete(objectName(objName));
+	}
+
+	/**
+	 * find the objects matching a query. the objects of the first term are
+	 * read from the index in value order, the other terms are checked on
+	 * their attributes.
+	 * 
+	 * @param query
+	 * @param limit
+	 *            objects in a page
+	 * @param objects
+	 *            the objects map, an index entry left by a crash is skipped
+	 *            if its object does not have the same id
+	 * @return the names and ids of the objects, and the continuation token of
+	 *         the next page
+	 * @throws IOException
+	 */
+	ObjectListing query(ObjectQuery query, int limit, ObjectsMap objects)
+			throws IOException {
+		List<ObjectQuery.Term> terms = query.getTerms();
+		if (terms.isEmpty()) {
+			throw new IOException("a query needs at least one term");
+		}
+		ObjectQuery.Term first = terms.get(0);
+		String prefix = attributePrefix(first.getAttribute());
+		// where the value starts in the index names
+		int offset = prefix.length();
+		String start = null;
+		if (!first.isOpen()) {
+			prefix += first.isNumeric() ? INTEGER : STRING;
+			if (first.getLower() != null) {
+				start = attributePrefix(first.getAttribute())
+						+ encodeValue(first.getLower(), first.isNumeric());
+			}
+		}
+		boolean inclusive = true;
+		if (query.getStartAfter() != null) {
+			start = query.getStartAfter();
+			inclusive = false;
+		}
+		List<String> names = new ArrayList<String>();
+		List<Long> ids = new ArrayList<Long>();
+		String last = null;
+		while (true) {
+			ObjectListing scan = map.list(prefix, start, inclusive, SCANSIZE);
+			String[] keys = scan.getNames();
+			for (int i = 0; i < keys.length; i++) {
+				String[] entry = decode(keys[i], offset);
+				if (!first.isOpen() && first.isAbove(entry[0])) {
+					return toListing(names, ids, null);
+				}
+				if (!first.matches(entry[0])
+						|| !matchesOthers(terms, entry[1])
+						|| objects.get(entry[1]) != scan.getIds()[i]) {
+					continue;
+				}
+				if (names.size() == limit) {
+					return toListing(names, ids, last);
+				}
+				names.add(entry[1]);
+				ids.add(scan.getIds()[i]);
+				last = keys[i];
+			}
+			if (!scan.isTruncated()) {
+				return toListing(names, ids, null);
+			}
+			start = scan.getContinuationToken();
+			inclusive = false;
+		}
+	}
+
+	private boolean matchesOthers(List<ObjectQuery.Term> terms, String objName)
+			throws IOException {
+		if (terms.size() == 1) {
+			return true;
+		}
+		ObjectAttributes attributes = get(objName);
+		if (attributes == null) {
+			return false;
+		}
+		for (int i = 1; i < terms.size(); i++) {
+			ObjectQuery.Term term = terms.get(i);
+			if (!term.matches(attributes.get(term.getAttribute()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ObjectListing toListing(List<String> names, List<Long> ids,
+			String token) {
+		long[] idArray = new long[ids.size()];
+		for (int i = 0; i < idArray.length; i++) {
+			idArray[i] = ids.get(i);
+		}
+		return new ObjectListing(names.toArray(new String[names.size()]),
+				idArray, token);
+	}
+
+	/**
+	 * @return the names and deletes waiting for the flush
+	 */
+	int memSize() {
+		return map.memSize();
+	}
+
+	/**
+	 * @return the bytes of the attributes waiting for the flush
+	 */
+	long memInlineBytes() {
+		return map.memInlineBytes();
+	}
+
+	/**
+	 * flush the memory map and merge the full tiers. the ids the merges drop
+	 * are those of objects, they are not recycled here.
+	 * 
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		if (map.memSize() != 0) {
+			map.append();
+		}
+		while (map.needCompact()) {
+			map.compact();
+		}
+	}
+
+	void close() {
+		map.close();
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.hoss.util.ByteUtil;
+import org.apache.hadoop.hdfs.hoss.util.FileUtil;
+
+/**
+ * the small object containers: the path id of each container with the bytes
+ * of the objects it was written with and the bytes of those deleted since.
+ * stored as (path id, bytes, deleted bytes) longs.
+ */
+class ContainerStore {
+	private static final Log LOG = LogFactory.getLog(ContainerStore.class);
+
+	private final File file;
+
+	// path id -> bytes, deleted bytes
+	private final Map<Long, long[]> containers = new TreeMap<Long, long[]>();
+
+	ContainerStore() {
+		file = new File(new File(HosMetaData.HOSSDIR), HosMetaData.CONTAINERFILE);
+		if (file.exists()) {
+			try {
+				long[] array = ByteUtil.toLongArray(FileUtil
+						.readBytesFromFile(file));
+				for (int i = 0; i + 2 < array.length; i += 3) {
+					containers.put(array[i], new long[] { array[i + 1],
+							array[i + 2] });
+				}
+			} catch (IOException e) {
+				LOG.error("read containers fail", e);
+			}
+		}
+	}
+
+	synchronized boolean exists() {
+		return file.exists();
+	}
+
+	synchronized boolean contains(long pathId) {
+		return containers.containsKey(pathId);
+	}
+
+	synchronized void add(long pathId, long bytes, long deletedBytes) {
+		containers.put(pathId, new long[] { bytes, deletedBytes });
+	}
+
+	synchronized void remove(long pathId) {
+		containers.remove(pathId);
+	}
+
+	/**
+	 * count the bytes of a deleted object against its container
+	 */
+	synchronized void delete(long pathId, long bytes) {
+		long[] container = containers.get(pathId);
+		if (container != null) {
+			container[1] += bytes;
+		}
+	}
+
+	/**
+	 * @return the containers whose deleted bytes are at least ratio of their
+	 *         bytes
+	 */
+	synchronized List<Long> garbage(float ratio) {
+		List<Long> garbage = new ArrayList<Long>();
+		for (Map.Entry<Long, long[]> entry : containers.entrySet()) {
+			long[] container = entry.getValue();
+			if (container[1] > 0 && container[1] >= ratio * container[0]) {
+				garbage.add(entry.getKey());
+			}
+		}
+		return garbage;
+	}
+
+	synchronized void save() throws IOException {
+		long[] array = new long[containers.size() * 3];
+		int i = 0;
+		for (Map.Entry<Long, long[]> entry : containers.entrySet()) {
+			array[i++] = entry.getKey();
+			array[i++] = entry.getValue()[0];
+			array[i++] = entry.getValue()[1];
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileUtil.writeBytesToFile(tmp, ByteUtil.toByteArray(array));
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("rename " + tmp + " to " + file + " fail");
+			}
+		}
+	}
+}
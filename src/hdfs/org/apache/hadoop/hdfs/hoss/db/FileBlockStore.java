@@ -20,26 +20,29 @@ package org.apache.hadoop.hdfs.hoss.db;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hdfs.hoss.ds.BufferStacker;
-import org.apache.hadoop.hdfs.hoss.ds.IntHashMap;
 import org.apache.hadoop.hdfs.hoss.util.Check64bitsJVM;
 import org.apache.hadoop.hdfs.hoss.util.StringSerializer;
 
 
 
 /**
- * File based Storage of fixed size blocks This class is NOT Thread-Safe
+ * File based Storage of fixed size blocks, addressed by long index. With mmap
+ * enabled the file is mapped in segments of about 1GB, each holding a whole
+ * number of blocks, which are mapped on demand and grown as blocks past their
+ * end are accessed. This class is NOT Thread-Safe, except
+ * {@link #readLongs(long, long[])} and {@link #writeLongs(long, long[])}
+ * once {@link #enableConcurrentAccess()} is called: reads take no lock and
+ * retry when a write of the same record runs, so a record is never torn.
  * 
  */
 public class FileBlockStore {
@@ -75,7 +78,11 @@ public class FileBlockStore {
 	/**
 	 * In Valid State?
 	 */
-	private boolean validState = false;
+	private volatile boolean validState = false;
+	/**
+	 * Opened for read only?
+	 */
+	private boolean readOnly = false;
 	/**
 	 * Callback called when flush buffers to disk
 	 */
@@ -84,6 +91,15 @@ public class FileBlockStore {
 	 * File Lock
 	 */
 	private FileLock lock = null;
+	/**
+	 * Support for lock free reads
+	 */
+	private boolean concurrent = false;
+	/**
+	 * Seqlock versions of the records, odd while a record is written. A
+	 * version guards the records hashed to it, one per cache line.
+	 */
+	private AtomicLongArray versions = null;
 
 	/**
 	 * Instantiate FileBlockStore
@@ -142,6 +158,7 @@ public class FileBlockStore {
 		if (LOG.isDebugEnabled())
 			LOG.debug("open(" + file + ")");
 		try {
+			this.readOnly = readOnly;
 			raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
 			fileChannel = raf.getChannel();
 			if (useLock)
@@ -171,7 +188,8 @@ public class FileBlockStore {
 	 * Close file
 	 */
 	public void close() {
-		mmaps.clear(false);
+		// the mappings are released when they are collected
+		segments = new MappedByteBuffer[0];
 		try {
 			unlock();
 		} catch (Exception ign) {
@@ -243,14 +261,14 @@ public class FileBlockStore {
 	 * @return size of file in blocks
 	 * @see #getBlockSize()
 	 */
-	public int numBlocks() {
+	public long numBlocks() {
 		try {
 			final long len = file.length();
 			final long num_blocks = ((len / blockSize) + (((len % blockSize) == 0) ? 0
 					: 1));
 			if (LOG.isDebugEnabled())
 				LOG.debug("size()=" + num_blocks);
-			return (int) num_blocks;
+			return num_blocks;
 		} catch (Exception e) {
 			LOG.error("Exception in sizeInBlocks()", e);
 		}
@@ -302,14 +320,14 @@ public class FileBlockStore {
 	 *            of block
 	 * @return ByteBuffer from pool with data
 	 */
-	public ByteBuffer get(final int index) {
+	public ByteBuffer get(final long index) {
 		if (!validState)
 			throw new InvalidStateException();
 		if (LOG.isDebugEnabled())
 			LOG.debug("get(" + index + ")");
 		try {
 			if (useMmap) {
-				final MappedByteBuffer mbb = getMmapForIndex(index, true);
+				final MappedByteBuffer mbb = getMmapForIndex(index);
 				if (mbb != null) {
 					return mbb;
 				}
@@ -334,7 +352,7 @@ public class FileBlockStore {
 	 *            ByteBuffer to write
 	 * @return true if write is OK
 	 */
-	public boolean set(final int index, final ByteBuffer buf) {
+	public boolean set(final long index, final ByteBuffer buf) {
 		if (!validState)
 			throw new InvalidStateException();
 		if (LOG.isDebugEnabled())
@@ -345,7 +363,7 @@ public class FileBlockStore {
 						+ " > blocksize=" + blockSize);
 			}
 			if (useMmap) {
-				final MappedByteBuffer mbb = getMmapForIndex(index, true);
+				final MappedByteBuffer mbb = getMmapForIndex(index);
 				if (mbb != null) {
 					mbb.put(buf);
 					return true;
@@ -367,9 +385,9 @@ public class FileBlockStore {
 	 *            of block
 	 * @return WriteBuffer
 	 */
-	public WriteBuffer set(final int index) {
+	public WriteBuffer set(final long index) {
 		if (useMmap) {
-			final ByteBuffer buf = getMmapForIndex(index, true);
+			final ByteBuffer buf = getMmapForIndex(index);
 			if (buf != null) {
 				return new WriteBuffer(this, index, useMmap, buf);
 			}
@@ -414,11 +432,11 @@ public class FileBlockStore {
 
 	public static class WriteBuffer {
 		private final FileBlockStore storage;
-		private final int index;
+		private final long index;
 		private final boolean mmaped;
 		private ByteBuffer buf;
 
-		private WriteBuffer(final FileBlockStore storage, final int index,
+		private WriteBuffer(final FileBlockStore storage, final long index,
 				final boolean mmaped, final ByteBuffer buf) {
 			this.storage = storage;
 			this.index = index;
@@ -447,31 +465,26 @@ public class FileBlockStore {
 
 	// ========= Mmap ===============
 
-	private static final int segmentSize = (32 * 4096); // N_PAGES * PAGE=4KB //
-	// 128KB
-	@SuppressWarnings("rawtypes")
-	private final IntHashMap<BufferReference> mmaps = new IntHashMap<BufferReference>(
-			128, BufferReference.class);
-	/**
-	 * Comparator for write by Idx
-	 */
-	private Comparator<BufferReference<MappedByteBuffer>> comparatorByIdx = new Comparator<BufferReference<MappedByteBuffer>>() {
-		@Override
-		public int compare(final BufferReference<MappedByteBuffer> o1,
-				final BufferReference<MappedByteBuffer> o2) {
-			if (o1 == null) {
-				if (o2 == null)
-					return 0; // o1 == null & o2 == null
-				return 1; // o1 == null & o2 != null
-			}
-			if (o2 == null)
-				return -1; // o1 != null & o2 == null
-			final int thisVal = (o1.idx < 0 ? -o1.idx : o1.idx);
-			final int anotherVal = (o2.idx < 0 ? -o2.idx : o2.idx);
-			return ((thisVal < anotherVal) ? -1 : ((thisVal == anotherVal) ? 0
-					: 1));
-		}
-	};
+	/**
+	 * Most bytes of a segment, a segment holds the most blocks fitting in
+	 */
+	private static final long MAXSEGMENTSIZE = (1L << 30); // 1GB
+	/**
+	 * Bytes a segment is first mapped with
+	 */
+	private static final long MINMAPSIZE = (32 * 4096); // N_PAGES * PAGE=4KB
+	/**
+	 * Mapped segments, null if not mapped yet
+	 */
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	/**
+	 * Number of seqlock versions
+	 */
+	private static final int VERSIONS = 1024;
+	/**
+	 * Longs between two versions, so that each has its own cache line
+	 */
+	private static final int VERSIONPAD = 8;
 
 	/**
 	 * Is enabled mmap for this store?
@@ -535,66 +548,216 @@ public class FileBlockStore {
 		}
 	}
 
-	private final int addressIndexToSegment(final int index) {
-		return (int) (((long) index * blockSize) / segmentSize);
+	/**
+	 * Enable lock free reads and concurrent writes of records by
+	 * {@link #readLongs(long, long[])} and {@link #writeLongs(long, long[])},
+	 * call before use {@link #open()}. Requires mmap.
+	 */
+	public void enableConcurrentAccess() {
+		if (validState)
+			throw new InvalidStateException();
+		concurrent = true;
+		versions = new AtomicLongArray(VERSIONS * VERSIONPAD);
 	}
 
-	private final int addressIndexToSegmentOffset(final int index) {
-		return (index % (segmentSize / blockSize));
+	/**
+	 * @return number of blocks of a segment
+	 */
+	private final long blocksPerSegment() {
+		return MAXSEGMENTSIZE / blockSize;
 	}
 
 	/**
-	 * map a block(4KB) or a segment(256KB)
-	 * @param index 
-	 *          the index of block
-	 * @param useSegments
-	 *           whether use segmeng?
-	 * @return   the mapping Buffer
+	 * map the block of an index, its segment is mapped or grown if the block
+	 * is past the mapped end
+	 * 
+	 * @param index
+	 *            the index of block
+	 * @return the mapping Buffer of the block
 	 */
-	@SuppressWarnings("unchecked")
-	public final MappedByteBuffer getMmapForIndex(final int index,
-			boolean useSegments) {
+	public final MappedByteBuffer getMmapForIndex(final long index) {
 		if (!validState)
 			throw new InvalidStateException();
-		final int mapIdx = (useSegments ? addressIndexToSegment(index) : index);
-		final int mapSize = (useSegments ? segmentSize : blockSize);
+		if (index < 0) {
+			LOG.error("Invalid index " + index);
+			return null;
+		}
+		final long blocks = blocksPerSegment();
+		final int seg = (int) (index / blocks);
+		final int offset = (int) ((index % blocks) * blockSize);
 		try {
-			final Reference<MappedByteBuffer> bref = mmaps.get(mapIdx);
-			MappedByteBuffer mbb = null;
-			if (bref != null) {
-				mbb = bref.get();
+			final MappedByteBuffer mbb = getSegment(seg, offset + blockSize);
+			if (mbb == null) {
+				return null;
 			}
-			if (mbb == null) { // Create mmap
-				final long mapOffset = ((long) mapIdx * mapSize);
-				mbb = fileChannel.map(FileChannel.MapMode.READ_WRITE,
-						mapOffset, mapSize);
-				// mbb.load();
-				mmaps.put(mapIdx, new BufferReference<MappedByteBuffer>(mapIdx,
-						mbb));
-			} else {
-				mbb.clear();
-			}
-			if (useSegments) { // slice segment
-				final int sliceBegin = (addressIndexToSegmentOffset(index) * blockSize);
-				final int sliceEnd = (sliceBegin + blockSize);
-				mbb.limit(sliceEnd);
-				mbb.position(sliceBegin);
-				mbb = (MappedByteBuffer) mbb.slice();
-			}
-			return mbb;
+			final ByteBuffer slice = mbb.duplicate();
+			slice.limit(offset + blockSize);
+			slice.position(offset);
+			return (MappedByteBuffer) slice.slice();
 		} catch (IOException e) {
 			LOG.error("IOException in getMmapForIndex(" + index + ")", e);
 		}
 		return null;
 	}
-	@SuppressWarnings("unchecked")
+
+	/**
+	 * @return the mapping of a segment with at least the given bytes, null if
+	 *         the store is read only and the file is shorter
+	 */
+	private MappedByteBuffer getSegment(final int seg, final int bytes)
+			throws IOException {
+		final MappedByteBuffer[] mapped = segments;
+		final MappedByteBuffer mbb = (seg < mapped.length ? mapped[seg] : null);
+		if (mbb != null && mbb.capacity() >= bytes) {
+			return mbb;
+		}
+		return mapSegment(seg, bytes);
+	}
+
+	/**
+	 * map a segment with at least the given bytes, doubling its mapping so
+	 * that a growing store is remapped a few times only. the segment table is
+	 * replaced, not changed, so that it is read without lock.
+	 * 
+	 * @return the mapping, null if the store is read only and the file is
+	 *         shorter
+	 */
+	private synchronized MappedByteBuffer mapSegment(final int seg,
+			final int bytes) throws IOException {
+		if (!validState)
+			throw new InvalidStateException();
+		final long segmentSize = blocksPerSegment() * blockSize;
+		final long start = seg * segmentSize;
+		final MappedByteBuffer[] mapped = segments;
+		final MappedByteBuffer old = (seg < mapped.length ? mapped[seg] : null);
+		if (old != null && old.capacity() >= bytes) {
+			// mapped by another thread
+			return old;
+		}
+		long size = Math.max(bytes, Math.max(MINMAPSIZE,
+				old == null ? 0 : 2L * old.capacity()));
+		// keep the mapping of a segment a whole number of blocks
+		size = Math.min(segmentSize, (size + blockSize - 1) / blockSize
+				* blockSize);
+		if (readOnly) {
+			size = Math.min(size, fileChannel.size() - start);
+			if (size < bytes) {
+				return null;
+			}
+		}
+		final MappedByteBuffer mbb = fileChannel.map(
+				readOnly ? FileChannel.MapMode.READ_ONLY
+						: FileChannel.MapMode.READ_WRITE, start, size);
+		// the old mapping shares the pages, it is released when collected
+		final MappedByteBuffer[] grown = Arrays.copyOf(mapped, Math.max(
+				mapped.length, seg + 1));
+		grown[seg] = mbb;
+		segments = grown;
+		return mbb;
+	}
+
+	private int versionSlot(final long index) {
+		return (int) ((index * 0x9E3779B97F4A7C15L) >>> 54) * VERSIONPAD;
+	}
+
+	/**
+	 * Read the longs of a block without lock, retried while the block is
+	 * written. Requires {@link #enableConcurrentAccess()}.
+	 * 
+	 * @param index
+	 *            of block
+	 * @param values
+	 *            filled with the first longs of the block
+	 * @return false if the block could not be mapped
+	 */
+	public boolean readLongs(final long index, final long[] values) {
+		if (!concurrent)
+			throw new IllegalStateException("concurrent access not enabled");
+		if (index < 0 || values.length * 8 > blockSize)
+			throw new IllegalArgumentException("block " + index + " of "
+					+ values.length + " longs");
+		final long blocks = blocksPerSegment();
+		final int seg = (int) (index / blocks);
+		final int offset = (int) ((index % blocks) * blockSize);
+		final int slot = versionSlot(index);
+		try {
+			while (true) {
+				final long version = versions.get(slot);
+				if ((version & 1) != 0) {
+					// a write runs
+					Thread.yield();
+					continue;
+				}
+				final MappedByteBuffer mbb = getSegment(seg, offset
+						+ blockSize);
+				if (mbb == null) {
+					return false;
+				}
+				for (int i = 0; i < values.length; i++) {
+					values[i] = mbb.getLong(offset + 8 * i);
+				}
+				// a full fence, the reads above are done before the check
+				if (versions.compareAndSet(slot, version, version)) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("IOException in readLongs(" + index + ")", e);
+		} catch (InvalidStateException e) {
+			// closed
+		}
+		return false;
+	}
+
+	/**
+	 * Write longs at the start of a block, readers see all of them or none.
+	 * Requires {@link #enableConcurrentAccess()}.
+	 * 
+	 * @param index
+	 *            of block
+	 * @param values
+	 * @return false if the block could not be mapped
+	 */
+	public boolean writeLongs(final long index, final long[] values) {
+		if (!concurrent)
+			throw new IllegalStateException("concurrent access not enabled");
+		if (index < 0 || values.length * 8 > blockSize)
+			throw new IllegalArgumentException("block " + index + " of "
+					+ values.length + " longs");
+		final long blocks = blocksPerSegment();
+		final int seg = (int) (index / blocks);
+		final int offset = (int) ((index % blocks) * blockSize);
+		final int slot = versionSlot(index);
+		try {
+			final MappedByteBuffer mbb = getSegment(seg, offset + blockSize);
+			if (mbb == null) {
+				return false;
+			}
+			long version;
+			while (true) {
+				version = versions.get(slot);
+				if ((version & 1) == 0
+						&& versions.compareAndSet(slot, version, version + 1)) {
+					break;
+				}
+				Thread.yield();
+			}
+			try {
+				for (int i = 0; i < values.length; i++) {
+					mbb.putLong(offset + 8 * i, values[i]);
+				}
+			} finally {
+				versions.set(slot, version + 2);
+			}
+			return true;
+		} catch (IOException e) {
+			LOG.error("IOException in writeLongs(" + index + ")", e);
+		}
+		return false;
+	}
+
 	private void syncAllMmaps() {
-		final BufferReference<MappedByteBuffer>[] maps = mmaps.getValues();
-		Arrays.sort(maps, comparatorByIdx);
-		for (final Reference<MappedByteBuffer> ref : maps) {
-			if (ref == null)
-				break;
-			final MappedByteBuffer mbb = ref.get();
+		for (final MappedByteBuffer mbb : segments) {
 			if (mbb != null) {
 				try {
 					mbb.force();
@@ -604,16 +767,6 @@ public class FileBlockStore {
 		}
 	}
 
-	static class BufferReference<T extends MappedByteBuffer> extends
-			SoftReference<T> {
-		final int idx;
-
-		public BufferReference(final int idx, final T referent) {
-			super(referent);
-			this.idx = idx;
-		}
-	}
-
 	// ========= Exceptions =========
 
 	/**
@@ -19,12 +19,15 @@ package org.apache.hadoop.hdfs.hoss.db;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.commons.logging.Log;
@@ -36,10 +39,11 @@ import org.apache.hadoop.hdfs.hoss.bloomfilter.HosBloomFilter;
 import org.apache.hadoop.hdfs.hoss.cache.HossCache;
 import org.apache.hadoop.hdfs.hoss.cache.HotObject;
 import org.apache.hadoop.hdfs.hoss.cache.Metadata;
-import org.apache.hadoop.hdfs.hoss.util.ByteUtil;
-import org.apache.hadoop.hdfs.hoss.util.FileUtil;
+import org.apache.hadoop.hdfs.hoss.metrics.HossInstrumentation;
 import org.apache.hadoop.hdfs.hoss.util.HDFSUtil;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class HosMetaData {
 
 	private static final Log LOG = LogFactory.getLog(HosMetaData.class);
@@ -50,21 +54,60 @@ public class HosMetaData {
 
 	public static final String IDSFILE = "ids";
 
+	public static final String IDBITMAPFILE = "ids.bitmap";
+
 	public static final String INDEXFILE = "hoss.spi";
 
 	public static final String DATAFILE = "hoss.spl";
 
+	public static final String MANIFEST = "hoss.manifest";
+
 	public static final String BLOOMFILTER = "bloomfilter";
 
-	public static final String PATHFILE = "pathposition";
+	public static final String PATHFILE = "pathid";
+
+	// string paths, migrated to PATHFILE on startup
+	public static final String LEGACYPATHFILE = "pathposition";
 
 	public static final String HOTFILE = "hotness";
 
+	public static final String CONTAINERFILE = "containers";
+
+	public static final String SMALLFILE = "smallobjects";
+
+	// directory of the attribute index in the meta directory
+	public static final String ATTRIBUTEDIR = "attributes";
+
 	private static final int BUFFERSIZE = 3000000;
 
-	private static final int WARMCAPACITY = 4000;
+	// inlined bytes held in memory before a flush
+	private static final long BUFFERBYTES = 256 * 1024 * 1024L;
+
+	private static final int WARMCAPACITY = 1000000;
+
+	private static final int HOTCAPACITY = 200000;
+
+	private static final int LOCKSTRIPES = 32;
+
+	private static final int INLINETHRESHOLD = 1024;
+
+	private static final int BLOOMITEMS = 40000000;
+
+	private static final float BLOOMFALSEPOSITIVERATE = 0.01f;
+
+	private static final long HOTFLUSHINTERVAL = 60 * 1000L;
 
-	private static final int HOTCAPACITY = 800;
+	private static final long HOTHALFLIFE = 60 * 60 * 1000L;
+
+	private static final long IDLEASETIMEOUT = 10 * 60 * 1000L;
+
+	private static final int IDLEASEMAX = 65536;
+
+	private static final int LISTMAXKEYS = 1000;
+
+	public static final String OFFHEAPCACHE = "offheap";
+
+	private static final long OFFHEAPCAPACITY = 10000000L;
 
 	private static HossCache hossCache = null;
 
@@ -72,15 +115,16 @@ public class HosMetaData {
 
 	private ObjectsMap objectsMap = null;
 
-	private AtomicLong currentId = null;
+	// user defined attributes of the objects
+	private AttributeIndex attributes = null;
 
-	// deleted ids in hoss.spl
-	private TreeSet<Long> ids = null;
+	// only one flush of the memory map is queued at a time
+	private AtomicBoolean flushing = new AtomicBoolean(false);
 
-	// deleted object names in hoss.spl
-	private TreeSet<String> deletedObjs = new TreeSet<String>();
+	// flushes the memory map and merges segments in the background
+	private ExecutorService flusher = null;
 
-	private ObjectId objId = null;
+	private IdAllocator idAllocator = null;
 
 	private HosBloomFilter hosBloomFilter = null;
 
@@ -88,45 +132,265 @@ public class HosMetaData {
 
 	private HotStore hs = null;
 
+	private ContainerStore containers = null;
+
+	// closed small objects which are not combined yet
+	private SmallObjectStore smallObjectIds = null;
+
 	// for test cache hit ratio
 	// public static long requests = 0L;
 
 	// public static long hits = 0L;
 
-	private ReentrantReadWriteLock hosLock = new ReentrantReadWriteLock();
+	// object names are partitioned by hash, each partition has its own lock
+	private ReentrantReadWriteLock[] hosLocks = null;
+
+	// objects up to this size may be inlined in the objects map
+	private int inlineThreshold = INLINETHRESHOLD;
+
+	// initial size of the bloom filter
+	private int bloomItems = BLOOMITEMS;
+
+	private float bloomFalsePositiveRate = BLOOMFALSEPOSITIVERATE;
+
+	// grows the bloom filter in the background when it is full
+	private ExecutorService bloomGrower = null;
+
+	private AtomicBoolean growing = new AtomicBoolean(false);
+
+	// milliseconds between two writes of the last access times
+	private long hotFlushInterval = HOTFLUSHINTERVAL;
+
+	private long hotHalfLife = HOTHALFLIFE;
 
-	public HosMetaData() {
+	// milliseconds after which the unused ids of a lease are freed
+	private long idLeaseTimeout = IDLEASETIMEOUT;
+
+	// most ids of one lease
+	private int idLeaseMax = IDLEASEMAX;
+
+	// most names of one listing page
+	private int listMaxKeys = LISTMAXKEYS;
+
+	/**
+	 * open the meta data, fails if the objects map can not be read
+	 * 
+	 * @throws IOException
+	 */
+	public HosMetaData() throws IOException {
 		Configuration conf = new Configuration();
 		String hosDir = conf.get("hoss.meta.dir", HOSSDIR);
 		int hotCapacity = conf.getInt("hoss.hotCapacity", HOTCAPACITY);
 		int warmCapacity = conf.getInt("hoss.warmCapacity", WARMCAPACITY);
+		int lockStripes = conf.getInt("hoss.lockStripes", LOCKSTRIPES);
+		inlineThreshold = conf.getInt("hoss.inline.threshold", INLINETHRESHOLD);
+		bloomItems = conf.getInt("hoss.bloomfilter.expectedItems", BLOOMITEMS);
+		bloomFalsePositiveRate = conf.getFloat(
+				"hoss.bloomfilter.falsePositiveRate", BLOOMFALSEPOSITIVERATE);
+		hotFlushInterval = conf.getLong("hoss.hotness.flushInterval",
+				HOTFLUSHINTERVAL);
+		hotHalfLife = conf.getLong("hoss.hotness.halfLife", HOTHALFLIFE);
+		idLeaseTimeout = conf.getLong("hoss.idLease.timeout", IDLEASETIMEOUT);
+		idLeaseMax = conf.getInt("hoss.idLease.maxIds", IDLEASEMAX);
+		listMaxKeys = conf.getInt("hoss.list.maxKeys", LISTMAXKEYS);
+		// 0 for the on-heap hot/warm cache
+		long offHeapCapacity = 0;
+		if (OFFHEAPCACHE.equals(conf.get("hoss.cacheMode"))) {
+			offHeapCapacity = conf.getLong("hoss.offHeapCapacity",
+					OFFHEAPCAPACITY);
+			LOG.info("hoss off-heap cache capacity:  " + offHeapCapacity);
+		}
 		LOG.info("hoss meta directory: " + conf.get("hoss.meta.dir"));
 		LOG.info("hoss hot cache capacity:  " + conf.get("hoss.hotCapacity"));
 		LOG.info("hoss warm cache capacity:  " + conf.get("hoss.warmCapacity"));
-		initialize(hosDir, warmCapacity, hotCapacity);
+		LOG.info("hoss lock stripes:  " + lockStripes);
+		initialize(hosDir, warmCapacity, hotCapacity, offHeapCapacity,
+				lockStripes);
 		// this.addShutdownHook();
 	}
 
-	private void initialize(String metaDir, int warmCapacity, int hotCapacity) {
+	@SuppressWarnings("unchecked")
+	private void initialize(String metaDir, int warmCapacity, int hotCapacity,
+			long offHeapCapacity, int lockStripes) throws IOException {
 		objectsMap = new ObjectsMap(new File(metaDir));
-		objId = new ObjectId();
-		currentId = new AtomicLong(objId.getCurrentId());
-		ids = objId.getDeletedIDSet();
-		LOG.info("current id: " + currentId);
-		hosBloomFilter = new HosBloomFilter();
+		attributes = new AttributeIndex(new File(metaDir, ATTRIBUTEDIR));
+		idAllocator = new IdAllocator(idLeaseTimeout);
+		hosLocks = new ReentrantReadWriteLock[lockStripes];
+		for (int i = 0; i < lockStripes; i++) {
+			hosLocks[i] = new ReentrantReadWriteLock();
+		}
+		flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true).setNameFormat("hoss meta data flusher").build());
+		bloomGrower = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true).setNameFormat("hoss bloom filter grower")
+				.build());
+		LOG.info("current id: " + idAllocator.getCurrentId());
+		hosBloomFilter = new HosBloomFilter(bloomItems, bloomFalsePositiveRate);
+		if (hosBloomFilter.needsRebuild()) {
+			rebuildBloomFilter();
+		}
+		HossInstrumentation.get().setBloomFilter(hosBloomFilter);
 		ps = new PathStore();
-		hs = new HotStore();
+		hs = new HotStore(hotFlushInterval, hotHalfLife);
+		containers = new ContainerStore();
+		smallObjectIds = new SmallObjectStore();
+		if (!containers.exists()) {
+			adoptLegacyContainer();
+		}
 		if (!disablecache) {
-			hossCache = new HossCache(warmCapacity, hotCapacity);
+			if (offHeapCapacity > 0) {
+				hossCache = new HossCache(offHeapCapacity, lockStripes);
+			} else {
+				hossCache = new HossCache(warmCapacity, hotCapacity,
+						lockStripes);
+			}
+			HossInstrumentation.get().setCache(hossCache);
+		}
+	}
+
+	/**
+	 * add the names of all the objects to a new bloom filter
+	 */
+	private void rebuildBloomFilter() {
+		long count = 0;
+		String token = null;
+		try {
+			do {
+				ObjectListing page = objectsMap.list(null, token,
+						LISTMAXKEYS);
+				for (String objName : page.getNames()) {
+					hosBloomFilter.add(objName);
+				}
+				count += page.getNames().length;
+				token = page.getContinuationToken();
+			} while (token != null);
+		} catch (IOException e) {
+			LOG.error("list the objects to rebuild bloom filter error", e);
+			return;
+		}
+		try {
+			hosBloomFilter.flush();
+		} catch (IOException e) {
+			LOG.error("flush rebuilt bloom filter error", e);
 		}
+		LOG.info("bloom filter rebuilt from " + count + " objects");
+	}
+
+	/**
+	 * grow the bloom filter in the background when it holds more names than
+	 * it was sized for. the caller does not wait.
+	 */
+	private void growBloomFilterIfNeeded() {
+		if (hosBloomFilter.isFull() && growing.compareAndSet(false, true)) {
+			bloomGrower.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						growBloomFilter();
+					} finally {
+						growing.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * fill a larger bloom filter from the object names in name order, each
+	 * under its stripe lock, then swap it in under all the stripe locks.
+	 */
+	private void growBloomFilter() {
+		long start = System.currentTimeMillis();
+		for (int s = 0; s < hosLocks.length; s++) {
+			hosLocks[s].writeLock().lock();
+		}
+		try {
+			hosBloomFilter.beginGrow();
+		} catch (IOException e) {
+			LOG.error("create larger bloom filter fail", e);
+			return;
+		} finally {
+			for (int s = hosLocks.length - 1; s >= 0; s--) {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		long count = 0;
+		String token = null;
+		try {
+			do {
+				ObjectListing page = objectsMap.list(null, token,
+						LISTMAXKEYS);
+				for (String objName : page.getNames()) {
+					ReentrantReadWriteLock lock = hosLocks[stripe(objName)];
+					lock.readLock().lock();
+					try {
+						hosBloomFilter.addGrowing(objName);
+					} finally {
+						lock.readLock().unlock();
+					}
+				}
+				count += page.getNames().length;
+				token = page.getContinuationToken();
+			} while (token != null);
+		} catch (IOException e) {
+			LOG.error("list the objects to grow bloom filter fail", e);
+			hosBloomFilter.abortGrow();
+			return;
+		}
+		try {
+			hosBloomFilter.flushGrowing();
+		} catch (IOException e) {
+			LOG.error("save larger bloom filter fail", e);
+			hosBloomFilter.abortGrow();
+			return;
+		}
+		for (int s = 0; s < hosLocks.length; s++) {
+			hosLocks[s].writeLock().lock();
+		}
+		try {
+			hosBloomFilter.finishGrow();
+		} finally {
+			for (int s = hosLocks.length - 1; s >= 0; s--) {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		try {
+			hosBloomFilter.flush();
+		} catch (IOException e) {
+			LOG.error("flush grown bloom filter fail", e);
+		}
+		LOG.info("bloom filter grown from " + count + " objects in "
+				+ (System.currentTimeMillis() - start) + " ms");
 	}
 
 	public void saveMetaData() throws IOException {
-		// first save the object id
-		objId.saveDeletedIDs(currentId.get(), ids);
+		// wait for the background growth and flush
+		bloomGrower.shutdown();
+		try {
+			bloomGrower.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// first save the object map
+		if (objectsMap.memSize() != 0) {
+			objectsMap.append();
+		}
+		while (objectsMap.needCompact()) {
+			recycle(objectsMap.compact());
+		}
+		objectsMap.close();
+		attributes.flush();
+		attributes.close();
 
-		// second save the object map
-		objectsMap.compact(hosBloomFilter);
+		// second save the object id
+		idAllocator.save();
 
 		// third save the hos bloom filter
 		hosBloomFilter.close();
@@ -134,17 +398,291 @@ public class HosMetaData {
 		ps.close();
 
 		hs.close();
+
+		containers.save();
+
+		smallObjectIds.save();
 	}
 
-	private long nextObjectId() {
-		long id = 0;
-		if (ids.size() != 0) {
-			id = ids.first();
-			ids.remove(id);
-		} else {
-			id = currentId.getAndIncrement();
+	/**
+	 * the single container rewritten by every combine before the containers
+	 * were numbered is compacted into a numbered one by the next combine.
+	 */
+	private void adoptLegacyContainer() {
+		try {
+			if (fs.exists(new Path(PathPosition.toPath(0L)))) {
+				LOG.info("adopt the legacy small object container");
+				containers.add(0L, 1L, 1L);
+			}
+		} catch (IOException e) {
+			LOG.error("check the legacy small object container fail", e);
 		}
-		return id;
+	}
+
+	/**
+	 * the lock stripe of the object name
+	 */
+	private int stripe(String objName) {
+		return (objName.hashCode() & Integer.MAX_VALUE) % hosLocks.length;
+	}
+
+	/**
+	 * group the indexes of a batch of object names by lock stripe, so that a
+	 * batch takes each stripe lock once.
+	 */
+	private int[][] groupByStripe(String[] objNames) {
+		int[] stripes = new int[objNames.length];
+		int[] counts = new int[hosLocks.length];
+		for (int i = 0; i < objNames.length; i++) {
+			stripes[i] = stripe(objNames[i]);
+			counts[stripes[i]]++;
+		}
+		int[][] groups = new int[hosLocks.length][];
+		for (int s = 0; s < hosLocks.length; s++) {
+			groups[s] = new int[counts[s]];
+			counts[s] = 0;
+		}
+		for (int i = 0; i < objNames.length; i++) {
+			groups[stripes[i]][counts[stripes[i]]++] = i;
+		}
+		return groups;
+	}
+
+	/**
+	 * give the ids recycled by segment merges to the allocator
+	 * 
+	 * @param recycled
+	 */
+	private void recycle(List<Long> recycled) {
+		// a recycled id is no small object any more, when it is allocated
+		// again the new object is added at its close
+		smallObjectIds.removeAll(recycled);
+		idAllocator.free(recycled);
+	}
+
+	/**
+	 * flush the memory map to a segment in the background when it is too
+	 * large, merge the segments of full tiers and checkpoint the bloom
+	 * filter. the caller does not wait for any.
+	 */
+	private void flushIfNeeded() {
+		boolean full = objectsMap.memSize() > BUFFERSIZE
+				|| attributes.memSize() > BUFFERSIZE
+				|| objectsMap.memInlineBytes() > BUFFERBYTES
+				|| attributes.memInlineBytes() > BUFFERBYTES;
+		if (full && flushing.compareAndSet(false, true)) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						objectsMap.append();
+						while (objectsMap.needCompact()) {
+							recycle(objectsMap.compact());
+						}
+						attributes.flush();
+						// the ids of the flushed segment are allocated
+						idAllocator.save();
+						// and the recycled ones are no combine candidates
+						smallObjectIds.save();
+						// checkpoint the names of the flushed segment
+						hosBloomFilter.flush();
+					} catch (IOException e) {
+						LOG.error("flush memory data to segment fail", e);
+					} finally {
+						flushing.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * allocate the path id of a new small object container, it is not used
+	 * by any object until the container is removed.
+	 * 
+	 * @return
+	 */
+	public long newContainerId() {
+		return idAllocator.next();
+	}
+
+	/**
+	 * register a written container
+	 * 
+	 * @param pathId
+	 * @param bytes
+	 *            bytes of the objects in the container
+	 * @throws IOException
+	 */
+	public void addContainer(long pathId, long bytes) throws IOException {
+		containers.add(pathId, bytes, 0L);
+		containers.save();
+	}
+
+	/**
+	 * unregister a compacted or failed container and recycle its path id
+	 * 
+	 * @param pathId
+	 * @throws IOException
+	 */
+	public void removeContainer(long pathId) throws IOException {
+		containers.remove(pathId);
+		containers.save();
+		// 0 is the legacy container, it was not allocated
+		if (pathId > 0) {
+			recycle(Collections.singletonList(pathId));
+		}
+	}
+
+	/**
+	 * register a container of combined small objects and point the objects
+	 * into it. an object deleted since it was chosen, whose id is free, dead
+	 * or reused by an object created later, is not pointed into it and its
+	 * bytes are garbage.
+	 * 
+	 * @param path
+	 *            the written container, renamed to the path of its path id
+	 * @param objIds
+	 * @param createTimes
+	 *            create times of the objects when they were chosen, see
+	 *            {@link #getCreateTime(long)}
+	 * @param offsets
+	 * @param lengths
+	 * @return path id of the container, -1 if it could not be registered
+	 * @throws IOException
+	 */
+	public long sealContainer(String path, long[] objIds, long[] createTimes,
+			long[] offsets, long[] lengths) throws IOException {
+		if (objIds.length != createTimes.length
+				|| objIds.length != offsets.length
+				|| objIds.length != lengths.length) {
+			LOG.warn("seal container " + path + " with mismatched objects");
+			return -1L;
+		}
+		long pathId = renameContainer(path);
+		if (pathId < 0) {
+			return -1L;
+		}
+		long bytes = 0;
+		long deleted = 0;
+		// the names of the ids are not known, deletes and puts of any name
+		// wait until the objects are pointed
+		for (int s = 0; s < hosLocks.length; s++) {
+			hosLocks[s].writeLock().lock();
+		}
+		try {
+			for (int i = 0; i < objIds.length; i++) {
+				bytes += lengths[i];
+				if (deleted(objIds[i])
+						|| hs.getCreateTime(objIds[i]) != createTimes[i]) {
+					deleted += lengths[i];
+					continue;
+				}
+				updatePathPos(objIds[i], pathId, offsets[i], lengths[i]);
+				hs.setSize(objIds[i], lengths[i]);
+			}
+		} finally {
+			for (int s = hosLocks.length - 1; s >= 0; s--) {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		containers.add(pathId, bytes, deleted);
+		containers.save();
+		return pathId;
+	}
+
+	/**
+	 * @param objId
+	 * @return the create time of the object, -1 if it is not recorded
+	 */
+	public long getCreateTime(long objId) {
+		return hs.getCreateTime(objId);
+	}
+
+	/**
+	 * register a container of small objects packed by the client and put its
+	 * objects with their leased ids. an object which exists or whose id is
+	 * not leased any more is not put, its bytes are garbage.
+	 * 
+	 * @param path
+	 *            the written container, renamed to the path of its path id
+	 * @param objNames
+	 * @param objIds
+	 * @param offsets
+	 * @param lengths
+	 * @return path id of the container, -1 if it could not be registered
+	 * @throws IOException
+	 */
+	public long sealContainer(String path, String[] objNames, long[] objIds,
+			long[] offsets, long[] lengths) throws IOException {
+		if (objNames.length != objIds.length
+				|| objIds.length != offsets.length
+				|| objIds.length != lengths.length) {
+			LOG.warn("seal container " + path + " with mismatched objects");
+			return -1L;
+		}
+		long pathId = renameContainer(path);
+		if (pathId < 0) {
+			return -1L;
+		}
+		long bytes = 0;
+		long deleted = 0;
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].writeLock().lock();
+			try {
+				for (int i : groups[s]) {
+					bytes += lengths[i];
+					if (existLocked(objNames[i])) {
+						LOG.warn("object " + objNames[i] + " has existed in Hos ");
+						deleted += lengths[i];
+						continue;
+					}
+					if (!idAllocator.useLeased(objIds[i])) {
+						LOG.warn("id " + objIds[i] + " of object " + objNames[i]
+								+ " is not leased");
+						deleted += lengths[i];
+						continue;
+					}
+					putWithId(objNames[i], objIds[i]);
+					updatePathPos(objIds[i], pathId, offsets[i], lengths[i]);
+					hs.setSize(objIds[i], lengths[i]);
+				}
+			} finally {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		containers.add(pathId, bytes, deleted);
+		containers.save();
+		flushIfNeeded();
+		growBloomFilterIfNeeded();
+		return pathId;
+	}
+
+	/**
+	 * rename a written container to the path of a new path id
+	 * 
+	 * @return the path id, -1 if the container could not be renamed
+	 */
+	private long renameContainer(String path) throws IOException {
+		long pathId = newContainerId();
+		if (!fs.rename(new Path(path), new Path(PathPosition.toPath(pathId)))) {
+			LOG.warn("rename container " + path + " fail");
+			removeContainer(pathId);
+			return -1L;
+		}
+		return pathId;
+	}
+
+	/**
+	 * @param ratio
+	 * @return the containers with at least ratio of their bytes deleted
+	 */
+	public List<Long> garbageContainers(float ratio) {
+		return containers.garbage(ratio);
 	}
 
 	/**
@@ -154,14 +692,15 @@ public class HosMetaData {
 	 * @throws IOException
 	 */
 	public PathPosition setNameId(String objName, long objId) {
-		hosLock.writeLock().lock();
+		ReentrantReadWriteLock lock = hosLocks[stripe(objName)];
+		lock.writeLock().lock();
 		PathPosition pp = null;
 		try {
 			objectsMap.put(objName, objId);
 			pp = ps.put(objId);
 			hosBloomFilter.add(objName);
 		} finally {
-			hosLock.writeLock().unlock();
+			lock.writeLock().unlock();
 		}
 		return pp;
 	}
@@ -172,39 +711,276 @@ public class HosMetaData {
 	 * @throws IOException
 	 */
 	public PathPosition put(String objName) throws IOException {
-		boolean exist = hosBloomFilter.contain(objName);
+		return put(objName, null);
+	}
+
+	/**
+	 * put an object with user defined attributes, which are indexed for
+	 * {@link #queryObjects(ObjectQuery, int)}.
+	 * 
+	 * @param objName
+	 * @param objAttributes
+	 *            null if the object has none
+	 * @return null if the object has existed in hoss
+	 * @throws IOException
+	 */
+	public PathPosition put(String objName, ObjectAttributes objAttributes)
+			throws IOException {
+		if (objAttributes != null) {
+			try {
+				objAttributes.validate();
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		int stripe = stripe(objName);
 		PathPosition pp = null;
-		if (exist) {
-			LOG.warn("object " + objName + " has existed in Hos ");
-			return null;
-		} else {
-			hosLock.writeLock().lock();
+		hosLocks[stripe].writeLock().lock();
+		try {
+			// checked under the stripe lock, so that the same name put
+			// concurrently gets only one id
+			if (existLocked(objName)) {
+				LOG.warn("object " + objName + " has existed in Hos ");
+				return null;
+			}
+			pp = putInternal(objName, stripe);
+			if (pp != null && objAttributes != null) {
+				// the new name is in the memory map
+				attributes.put(objName, objectsMap.get(objName), objAttributes);
+			}
+		} finally {
+			hosLocks[stripe].writeLock().unlock();
+		}
+		flushIfNeeded();
+		growBloomFilterIfNeeded();
+		return pp;
+	}
+
+	/**
+	 * put a batch of objects, taking each stripe lock once for the whole
+	 * batch.
+	 * 
+	 * @param objNames
+	 * @return path positions in the order of objNames, null for the object
+	 *         which has existed in hoss or could not be put
+	 * @throws IOException
+	 */
+	public PathPosition[] put(String[] objNames) throws IOException {
+		PathPosition[] pps = new PathPosition[objNames.length];
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].writeLock().lock();
 			try {
-				long id = this.nextObjectId();
-				if (id == -1) {
-					LOG.warn("object name: " + objName + "  id: " + id);
-					return null;
+				for (int i : groups[s]) {
+					// a failed object is reported in its result, the others
+					// of the batch are put
+					try {
+						if (existLocked(objNames[i])) {
+							LOG.warn("object " + objNames[i]
+									+ " has existed in Hos ");
+							continue;
+						}
+						pps[i] = putInternal(objNames[i], s);
+					} catch (IOException e) {
+						LOG.error("put object " + objNames[i] + " fail", e);
+					}
 				}
-				// LOG.info("put objName: "+ objName + "  id: " + id);
-				if (objectsMap.memSize() > BUFFERSIZE) {
-					objectsMap.append(deletedObjs);
-					deletedObjs.clear();
+			} finally {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		flushIfNeeded();
+		growBloomFilterIfNeeded();
+		return pps;
+	}
+
+	/**
+	 * lease a block of new contiguous ids, so that a client putting many
+	 * objects does not have them allocated one by one.
+	 * 
+	 * @param count
+	 * @return the first id of the block, -1 if count is not in (0, max ids
+	 *         of a lease]
+	 */
+	public long leaseIds(int count) {
+		if (count <= 0 || count > idLeaseMax) {
+			LOG.warn("lease of " + count + " ids is refused");
+			return -1;
+		}
+		return idAllocator.lease(count);
+	}
+
+	/**
+	 * free the ids of a lease which were not used
+	 * 
+	 * @param start
+	 * @param count
+	 */
+	public void releaseIds(long start, int count) {
+		idAllocator.release(start, count);
+	}
+
+	/**
+	 * put a batch of objects with ids leased by {@link #leaseIds(int)}
+	 * 
+	 * @param objNames
+	 * @param objIds
+	 * @return path positions in the order of objNames, null for the object
+	 *         which has existed in hoss or whose id is not leased
+	 * @throws IOException
+	 */
+	public PathPosition[] put(String[] objNames, long[] objIds)
+			throws IOException {
+		if (objNames.length != objIds.length) {
+			throw new IOException("got " + objNames.length + " names but "
+					+ objIds.length + " ids");
+		}
+		PathPosition[] pps = new PathPosition[objNames.length];
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].writeLock().lock();
+			try {
+				for (int i : groups[s]) {
+					try {
+						if (existLocked(objNames[i])) {
+							LOG.warn("object " + objNames[i]
+									+ " has existed in Hos ");
+							continue;
+						}
+						if (!idAllocator.useLeased(objIds[i])) {
+							LOG.warn("id " + objIds[i] + " of object "
+									+ objNames[i] + " is not leased");
+							continue;
+						}
+						pps[i] = putWithId(objNames[i], objIds[i]);
+					} catch (IOException e) {
+						LOG.error("put object " + objNames[i] + " fail", e);
+					}
 				}
-				objectsMap.put(objName, id);
-				pp = ps.put(id);
-				// set object size -1L. we will rest its size
-				// after finishing putting.
-				setObjectSize(id, -1L);
-				// add hos filter
-				hosBloomFilter.add(objName);
 			} finally {
-				hosLock.writeLock().unlock();
+				hosLocks[s].writeLock().unlock();
 			}
 		}
+		flushIfNeeded();
+		growBloomFilterIfNeeded();
+		return pps;
+	}
+
+	/**
+	 * the caller must hold the write lock of the stripe.
+	 * 
+	 * @param objName
+	 * @param stripe
+	 * @throws IOException
+	 */
+	private PathPosition putInternal(String objName, int stripe)
+			throws IOException {
+		long id = idAllocator.next();
+		if (id == -1) {
+			LOG.warn("object name: " + objName + "  id: " + id);
+			return null;
+		}
+		return putWithId(objName, id);
+	}
+
+	/**
+	 * the caller must hold the write lock of the stripe of the name.
+	 */
+	private PathPosition putWithId(String objName, long id)
+			throws IOException {
+		// LOG.info("put objName: "+ objName + "  id: " + id);
+		objectsMap.put(objName, id);
+		PathPosition pp = ps.put(id);
+		// set object size -1L. we will rest its size
+		// after finishing putting.
+		setObjectSize(id, -1L);
+		// add hos filter
+		hosBloomFilter.add(objName);
 		return pp;
 	}
 
-	private synchronized void setObjectSize(long objId, long size) {
+	/**
+	 * put a batch of tiny objects whose bytes are kept in the objects map, so
+	 * that they are returned by openObject without reading hdfs.
+	 * 
+	 * @param objNames
+	 * @param data
+	 * @return object ids in the order of objNames, -1 for the object which
+	 *         has existed in hoss or is larger than the inline threshold
+	 * @throws IOException
+	 */
+	public long[] putInline(String[] objNames, byte[][] data)
+			throws IOException {
+		long[] objIds = new long[objNames.length];
+		Arrays.fill(objIds, -1L);
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].writeLock().lock();
+			try {
+				for (int i : groups[s]) {
+					if (data[i] == null || data[i].length > inlineThreshold) {
+						LOG.warn("object " + objNames[i]
+								+ " is too large to be inlined");
+						continue;
+					}
+					try {
+						if (existLocked(objNames[i])) {
+							LOG.warn("object " + objNames[i]
+									+ " has existed in Hos ");
+							continue;
+						}
+					} catch (IOException e) {
+						LOG.error("put object " + objNames[i] + " fail", e);
+						continue;
+					}
+					long id = idAllocator.next();
+					if (id == -1) {
+						continue;
+					}
+					objectsMap.putInline(objNames[i], id, data[i]);
+					ps.put(id, id, PathPosition.INLINE, data[i].length);
+					setObjectSize(id, data[i].length);
+					hosBloomFilter.add(objNames[i]);
+					objIds[i] = id;
+				}
+			} finally {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		flushIfNeeded();
+		growBloomFilterIfNeeded();
+		return objIds;
+	}
+
+	/**
+	 * the caller must hold the lock of the stripe.
+	 * 
+	 * @param objName
+	 * @return true if the object exists, a name the bloom filter contains is
+	 *         looked up in the objects map
+	 * @throws IOException
+	 */
+	private boolean existLocked(String objName) throws IOException {
+		if (!hosBloomFilter.contain(objName)) {
+			return false;
+		}
+		if (objectsMap.get(objName) >= 0) {
+			return true;
+		}
+		hosBloomFilter.falsePositive();
+		return false;
+	}
+
+	private void setObjectSize(long objId, long size) {
 		// write create time + last access time + size
 		long current = System.currentTimeMillis();
 		hs.put(objId, current, current, size);
@@ -215,9 +991,36 @@ public class HosMetaData {
 	 * @param objId
 	 * @param pathId
 	 * @param offset
+	 * @param length
+	 */
+	public void updatePathPos(long objId, long pathId, long offset,
+			long length) {
+		ps.put(objId, pathId, offset, length);
+		if (offset > 0) {
+			smallObjectIds.remove(objId);
+		}
+	}
+
+	/**
+	 * record the size of an object when its writer is closed, a small object
+	 * becomes a candidate of the next combine.
+	 * 
+	 * @param objName
+	 * @param size
+	 *            object size(unit:bytes)
+	 * @return false if object does not exist
+	 * @throws IOException
 	 */
-	public synchronized void updatePathPos(long objId, long pathId, long offset) {
-		ps.put(objId, pathId, offset);
+	public boolean closeObject(String objName, long size) throws IOException {
+		long objId = getId(objName);
+		if (objId < 0) {
+			return false;
+		}
+		hs.setSize(objId, size);
+		if (isSmall(size)) {
+			smallObjectIds.add(objId);
+		}
+		return true;
 	}
 
 	public boolean exist(String objName) {
@@ -230,7 +1033,19 @@ public class HosMetaData {
 	 * @return
 	 */
 	public boolean exist(long objId) {
-		return ids.contains(objId);
+		return idAllocator.isFree(objId);
+	}
+
+	/**
+	 * @param objId
+	 * @return true if the id is free or its object is deleted
+	 */
+	public boolean deleted(long objId) {
+		if (exist(objId)) {
+			return true;
+		}
+		PathPosition pp = ps.get(objId);
+		return pp == null || pp.isDeleted();
 	}
 
 	/**
@@ -242,11 +1057,15 @@ public class HosMetaData {
 	public long getId(String objName) throws IOException {
 		long objId = -1L;
 		if (exist(objName)) {
-			hosLock.readLock().lock();
+			ReentrantReadWriteLock lock = hosLocks[stripe(objName)];
+			lock.readLock().lock();
 			try {
 				objId = objectsMap.get(objName);
 			} finally {
-				hosLock.readLock().unlock();
+				lock.readLock().unlock();
+			}
+			if (objId < 0) {
+				hosBloomFilter.falsePositive();
 			}
 		} else {
 			LOG.warn("object " + objName + " does not exist in Hos.");
@@ -254,6 +1073,47 @@ public class HosMetaData {
 		return objId;
 	}
 
+	/**
+	 * get a batch of object ids, taking each stripe lock once for the whole
+	 * batch.
+	 * 
+	 * @param objNames
+	 * @return object ids in the order of objNames, -1 if object does not
+	 *         exist
+	 * @throws IOException
+	 */
+	public long[] getIds(String[] objNames) throws IOException {
+		long[] objIds = new long[objNames.length];
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].readLock().lock();
+			try {
+				for (int i : groups[s]) {
+					objIds[i] = -1L;
+					if (exist(objNames[i])) {
+						try {
+							objIds[i] = objectsMap.get(objNames[i]);
+						} catch (IOException e) {
+							LOG.error("get object " + objNames[i] + " fail", e);
+							continue;
+						}
+						if (objIds[i] < 0) {
+							hosBloomFilter.falsePositive();
+						}
+					} else {
+						LOG.warn("object " + objNames[i] + " does not exist in Hos.");
+					}
+				}
+			} finally {
+				hosLocks[s].readLock().unlock();
+			}
+		}
+		return objIds;
+	}
+
 	/**
 	 * 
 	 * @param objName
@@ -261,18 +1121,77 @@ public class HosMetaData {
 	 * @throws IOException
 	 */
 	public PathPosition getPathPosition(String objName) throws IOException {
-		PathPosition pp = null;
 		long objId = getId(objName);
 		if (objId < 0) {
 			LOG.warn("object " + objName + " does not exist in Hos.");
 			return null;
 		}
+		return getPathPosition(objName, objId);
+	}
+
+	/**
+	 * 
+	 * @param objNames
+	 * @return path positions in the order of objNames, null if object does
+	 *         not exist
+	 * @throws IOException
+	 */
+	public PathPosition[] getPathPositions(String[] objNames)
+			throws IOException {
+		PathPosition[] pps = new PathPosition[objNames.length];
+		long[] objIds = getIds(objNames);
+		for (int i = 0; i < objNames.length; i++) {
+			if (objIds[i] >= 0) {
+				pps[i] = getPathPosition(objNames[i], objIds[i]);
+			}
+		}
+		return pps;
+	}
+
+	/**
+	 * resolve object id, path position and size of the object in one call.
+	 * 
+	 * @param objName
+	 * @return null if object does not exist
+	 * @throws IOException
+	 */
+	public ObjectInfo openObject(String objName) throws IOException {
+		long objId = getId(objName);
+		if (objId < 0) {
+			LOG.warn("object " + objName + " does not exist in Hos.");
+			return null;
+		}
+		PathPosition pp = getPathPosition(objName, objId);
+		byte[] data = null;
+		if (pp != null && pp.isInline()) {
+			ReentrantReadWriteLock lock = hosLocks[stripe(objName)];
+			lock.readLock().lock();
+			try {
+				data = objectsMap.getInline(objName);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return new ObjectInfo(objId, pp, hs.getObjectSizeBytes(objId), data);
+	}
+
+	private PathPosition getPathPosition(String objName, long objId) {
+		PathPosition pp = null;
 		// requests++;
 		if (!disablecache) {
-			if (hossCache.exist(objName)) {// read from flash
+			Metadata cached = null;
+			if (hossCache.exist(objName)) {
 				// hits++;
 				float hotness = hs.hot(objId);
-				pp = hossCache.hit(objName, hotness).getPathPosition();
+				// null if the entry was evicted after exist
+				cached = hossCache.hit(objName, hotness);
+				// the off-heap cache may return another name of the same hash
+				if (cached != null && cached.getObjId() != objId) {
+					cached = null;
+				}
+			}
+			if (cached != null) {// read from cache
+				pp = cached.getPathPosition();
 			} else {// read from flash
 				pp = getPathPosition(objId);
 				float hotness = getHotness(objId, pp);
@@ -302,21 +1221,22 @@ public class HosMetaData {
 	 * get from hoss system
 	 * 
 	 * @param objId
-	 * @return object size(unit:bytes), if object has combined return -1;
+	 * @return object size(unit:bytes), if object has combined or its
+	 *         position can not be read return -1;
 	 */
 	public long getObjectSizeBytes(long objId) {
 		long bytes = -1L;
 		PathPosition pp = ps.get(objId);
-		if (pp.getOffset() == 0) {
+		if (pp != null && pp.getOffset() == 0) {
 			Path f = new Path(pp.getPath());
 			FileStatus status = null;
 			try {
 				status = fs.getFileStatus(f);
+				// unit:bytes
+				bytes = status.getLen();
 			} catch (IOException e) {
 				LOG.error("get object size, object id is " + objId);
 			}
-			// unit:bytes
-			bytes = status.getLen();
 		}
 		return bytes;
 	}
@@ -331,16 +1251,49 @@ public class HosMetaData {
 	 * @return the small objects set (objectId + size bytes)
 	 */
 	public Map<Long, Integer> smallObjects() {
+		if (!smallObjectIds.exists()) {
+			seedSmallObjects();
+		}
 		Map<Long, Integer> smallObjectsSet = new HashMap<Long, Integer>();
-		long curId = this.currentId.get();
+		for (long id : smallObjectIds.list()) {
+			PathPosition pp = ps.get(id);
+			long bytes = hs.getObjectSizeBytes(id);
+			// deleted, combined, reused by an object not closed yet or by a
+			// large one
+			if (pp == null || pp.getOffset() != 0 || bytes < 0
+					|| !isSmall(bytes) || exist(id)) {
+				smallObjectIds.remove(id);
+				continue;
+			}
+			smallObjectsSet.put(id, (int) bytes);
+		}
+		return smallObjectsSet;
+	}
+
+	/**
+	 * find the small objects by the length of their files, once for the meta
+	 * data written before the sizes were recorded at close.
+	 */
+	private void seedSmallObjects() {
+		LOG.info("scan the object files for small objects");
+		long curId = idAllocator.getCurrentId();
 		for (long i = 1L; i < curId; i++) {
+			if (containers.contains(i) || exist(i)) {
+				continue;
+			}
 			//object is combined if bytes is -1, 
 			long bytes = getObjectSizeBytes(i);
 			if (bytes != -1L && isSmall(bytes)) {
-				smallObjectsSet.put(i, (int) bytes);
+				hs.setSize(i, bytes);
+				smallObjectIds.add(i);
 			}
 		}
-		return smallObjectsSet;
+		try {
+			smallObjectIds.save();
+		} catch (IOException e) {
+			LOG.error("save small object ids fail", e);
+		}
+		LOG.info("found " + smallObjectIds.size() + " small objects");
 	}
 
 	/**
@@ -361,25 +1314,96 @@ public class HosMetaData {
 	 * @throws IOException
 	 */
 	public long delete(String objName) throws IOException {
-		boolean exist = hosBloomFilter.contain(objName);
-		if (!exist) {
-			LOG.warn("object " + objName + " does not exit.");
-			return -1;
-		}
-		hosLock.writeLock().lock();
+		int stripe = stripe(objName);
+		hosLocks[stripe].writeLock().lock();
 		long id = -1;
 		try {
-			deletedObjs.add(objName);
-			id = objectsMap.delete(objName);
-			if (id > -1) {
-				ids.add(id);
-			}
-			//delete object from cache
-			hossCache.remove(objName);
-			//delete object from bloom filter
-			hosBloomFilter.remove(objName);
+			// checked under the stripe lock, so that the same name deleted
+			// concurrently is removed from the bloom filter only once
+			if (!hosBloomFilter.contain(objName)) {
+				LOG.warn("object " + objName + " does not exit.");
+				return -1;
+			}
+			id = deleteInternal(objName, stripe);
 		} finally {
-			hosLock.writeLock().unlock();
+			hosLocks[stripe].writeLock().unlock();
+		}
+		return id;
+	}
+
+	/**
+	 * delete a batch of objects, taking each stripe lock once for the whole
+	 * batch.
+	 * 
+	 * @param objNames
+	 * @return the to-be-deleted object ids in the order of objNames, -1 if
+	 *         object is not existed or could not be deleted.
+	 * @throws IOException
+	 */
+	public long[] delete(String[] objNames) throws IOException {
+		long[] deleted = new long[objNames.length];
+		int[][] groups = groupByStripe(objNames);
+		for (int s = 0; s < groups.length; s++) {
+			if (groups[s].length == 0) {
+				continue;
+			}
+			hosLocks[s].writeLock().lock();
+			try {
+				for (int i : groups[s]) {
+					deleted[i] = -1;
+					if (!hosBloomFilter.contain(objNames[i])) {
+						LOG.warn("object " + objNames[i] + " does not exit.");
+						continue;
+					}
+					try {
+						deleted[i] = deleteInternal(objNames[i], s);
+					} catch (IOException e) {
+						LOG.error("delete object " + objNames[i] + " fail", e);
+					}
+				}
+			} finally {
+				hosLocks[s].writeLock().unlock();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * the caller must hold the write lock of the stripe.
+	 * 
+	 * @param objName
+	 * @param stripe
+	 * @throws IOException
+	 */
+	private long deleteInternal(String objName, int stripe) throws IOException {
+		// the name may be in a segment, where delete does not return its id
+		long objId = objectsMap.get(objName);
+		boolean existed = objId > -1;
+		// the bytes of a combined object are garbage in its container,
+		// resolved before a freed id is allocated again
+		PathPosition pp = existed ? ps.get(objId) : null;
+		if (existed) {
+			// the id of a name in a segment stays allocated until a merge
+			// recycles it, mark it dead before a freed id is reused
+			ps.put(objId, -1L, PathPosition.DELETED, -1L);
+			smallObjectIds.remove(objId);
+		}
+		long id = objectsMap.delete(objName);
+		attributes.remove(objName);
+		if (id > -1) {
+			idAllocator.free(id);
+		}
+		if (pp != null && pp.getOffset() > 0) {
+			containers.delete(pp.getPathId(), Math.max(pp.getLength(), 0));
+		}
+		//delete object from cache
+		hossCache.remove(objName);
+		//delete object from bloom filter, a name it does not hold would
+		//clear the buckets of other names
+		if (existed) {
+			hosBloomFilter.remove(objName);
+		} else {
+			hosBloomFilter.falsePositive();
 		}
 		return id;
 	}
@@ -393,105 +1417,79 @@ public class HosMetaData {
 	public Map<String, Long> listObjects() {
 		Map<String, Long> objects = null;
 		try {
-			objects = objectsMap.list(hosBloomFilter);
+			objects = objectsMap.list();
 		} catch (IOException e) {
 			LOG.error("get all the objects IOException");
 		}
 		return objects;
 	}
 
-	public List<HotObject> topHotObject(int top) {
-		return hossCache.topHot(top);
-	}
-
-	/**********************************************************************/
-
 	/**
-	 * allocate the global unique object
-	 * 
-	 * @author desire
+	 * list a page of the objects whose name has the prefix, in name order
 	 * 
+	 * @param prefix
+	 *            null or empty to list all the objects
+	 * @param startAfter
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param maxKeys
+	 *            objects in a page, no more than hoss.list.maxKeys
+	 * @return null if the listing fails
 	 */
-	class ObjectId {
-
-		private long currentId = 1;
-
-		private TreeSet<Long> deletedIDSet = new TreeSet<Long>();
-		// the file to store deleted ids for recycle use
-		private File deFile = null;
-
-		public ObjectId() {
-			File deletedIdFile = new File(new File(HOSSDIR), IDSFILE);
-			deFile = deletedIdFile;
-			if (!deletedIdFile.exists()) {
-				boolean success = false;
-				try {
-					success = FileUtil.createEmpty(deletedIdFile);
-				} catch (IOException e) {
-					LOG.error("create deleted id file fail.");
-				}
-				if (!success)
-					try {
-						throw new IOException("Could not create log directory "
-								+ deletedIdFile.getAbsolutePath());
-					} catch (IOException e) {
-						LOG.error("Could not create log directory ");
-					}
-			}
-			initDeletedIds();
+	public ObjectListing listObjects(String prefix, String startAfter,
+			int maxKeys) {
+		if (maxKeys <= 0 || maxKeys > listMaxKeys) {
+			maxKeys = listMaxKeys;
 		}
-
-		/**
-		 * read deleted ids from disk.
-		 */
-		private void initDeletedIds() {
-			byte[] array = null;
-			try {
-				array = FileUtil.readBytesFromFile(deFile);
-			} catch (IOException e) {
-				LOG.error("initilize deleted ids fail", e);
-			}
-			if (array != null && array.length != 0) {
-				long[] ids = ByteUtil.toLongArray(array);
-				// init the current id
-				this.setCurrentId(ids[0]);
-				for (int i = 1; i < ids.length; i++) {
-					deletedIDSet.add(ids[i]);
-				}
-			}
-		}
-
-		public long getCurrentId() {
-			return currentId;
+		try {
+			return objectsMap.list(prefix, startAfter, maxKeys);
+		} catch (IOException e) {
+			LOG.error("list objects with prefix " + prefix + " after "
+					+ startAfter + " fail", e);
+			return null;
 		}
+	}
 
-		public void setCurrentId(long currentId) {
-			this.currentId = currentId;
+	/**
+	 * @param objName
+	 * @return the user defined attributes of the object, null if it has none
+	 */
+	public ObjectAttributes getAttributes(String objName) {
+		int stripe = stripe(objName);
+		hosLocks[stripe].readLock().lock();
+		try {
+			return attributes.get(objName);
+		} catch (IOException e) {
+			LOG.error("get attributes of " + objName + " fail", e);
+			return null;
+		} finally {
+			hosLocks[stripe].readLock().unlock();
 		}
+	}
 
-		public TreeSet<Long> getDeletedIDSet() {
-			return deletedIDSet;
+	/**
+	 * find the objects whose attributes match the query from the attribute
+	 * index, in the value order of the attribute of its first term
+	 * 
+	 * @param query
+	 * @param limit
+	 *            objects in a page, no more than hoss.list.maxKeys
+	 * @return null if the query fails
+	 */
+	public ObjectListing queryObjects(ObjectQuery query, int limit) {
+		if (limit <= 0 || limit > listMaxKeys) {
+			limit = listMaxKeys;
 		}
-
-		public void setDeletedIDSet(TreeSet<Long> deletedIDSet) {
-			this.deletedIDSet = deletedIDSet;
+		try {
+			return attributes.query(query, limit, objectsMap);
+		} catch (IOException e) {
+			LOG.error("query objects " + query + " fail", e);
+			return null;
 		}
+	}
 
-		public void saveDeletedIDs(long currentId, Set<Long> deletedIds)
-				throws IOException {
-			// clear file
-			FileUtil.clearFile(deFile);
-			// current id + deleted ids
-			int length = deletedIds.size() + 1;
-			long[] ids = new long[length];
-			ids[0] = currentId;
-			int i = 1;
-			for (Long id : deletedIds) {
-				ids[i++] = id;
-			}
-			byte[] bArray = ByteUtil.toByteArray(ids);
-			FileUtil.writeBytesToFile(deFile, bArray);
-		}
+	public List<HotObject> topHotObject(int top) {
+		return hossCache.topHot(top);
 	}
 
 }
@@ -18,14 +18,24 @@
 package org.apache.hadoop.hdfs.hoss.db;
 
 import java.io.File;
-import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hdfs.hoss.db.FileBlockStore.WriteBuffer;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * the create time, last access time and size of every object. a read only
+ * updates the access statistics in memory, the last access times are
+ * written in batches ordered by id every flush interval. records are read
+ * without lock, writes of a record read first are serialized.
+ */
 public class HotStore {
 	private static final Log LOG = LogFactory.getLog(HotStore.class);
 
@@ -39,34 +49,106 @@ public class HotStore {
 
 	private final static int HOTLENGTH = 32;
 
+	private final static long FLUSHINTERVAL = 60 * 1000;
+
+	private final static long HALFLIFE = 60 * 60 * 1000;
+
+	private final static int STRIPES = 64;
+
+	// objects whose accesses are kept in memory
+	private final static int ACCESSCAPACITY = 1 << 20;
+
+	// last access times written under one lock
+	private final static int FLUSHBATCH = 4096;
+
+	private final AccessStats accesses;
+
+	private final ScheduledExecutorService accessFlusher;
+
 	public HotStore() {
+		this(FLUSHINTERVAL, HALFLIFE);
+	}
+
+	/**
+	 * @param flushInterval
+	 *            milliseconds between two writes of the last access times
+	 * @param halfLife
+	 *            milliseconds an access count takes to halve
+	 */
+	public HotStore(long flushInterval, long halfLife) {
 		File hotFile = new File(new File(HosMetaData.HOSSDIR),
 				HosMetaData.HOTFILE);
 		fbs = new FileBlockStore(hotFile, HOTLENGTH, true);
 		fbs.enableMmap();
+		fbs.enableConcurrentAccess();
 		fbs.open();
+		accesses = new AccessStats(STRIPES, halfLife, ACCESSCAPACITY);
+		accessFlusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+						.setDaemon(true).setNameFormat("hoss access flusher")
+						.build());
+		accessFlusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushAccesses();
+				} catch (RuntimeException e) {
+					LOG.error("flush access times fail", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
 	}
 	/**
 	 * 
 	 * @param objId
 	 * @param createTime
 	 * @param lastTime
-	 * @param size  object size(unit:MB)
+	 * @param size  object size(unit:bytes), -1 if unknown
 	 * @return
 	 */
-	public boolean put(long objId, long createTime, long lastTime, long size) {
-		final WriteBuffer wbuf = fbs.set((int) objId);
-		final ByteBuffer buf = wbuf.buf();
-		// create time
-		buf.putLong(createTime);
-		// last access time
-		buf.putLong(lastTime);
+	public synchronized boolean put(long objId, long createTime, long lastTime, long size) {
+		// the id may be reused, the accesses of the old object do not count
+		accesses.remove(objId);
 		long sizeMB = size < 0 ? -1 :convertMB(size); 
-		// object size(unit:MB)
-		buf.putLong(sizeMB);
-		buf.flip();
-		boolean ret = wbuf.save();
-		return ret;
+		return put(objId, createTime, lastTime, sizeMB, size);
+	}
+
+	private boolean put(long objId, long createTime, long lastTime,
+			long sizeMB, long size) {
+		// create time, last access time, object size(unit:MB), object
+		// size(unit:bytes)
+		return fbs.writeLongs(objId, new long[] { createTime, lastTime,
+				sizeMB, size });
+	}
+
+	/**
+	 * @return create time, last access time, size(unit:MB), size(unit:bytes),
+	 *         null if the record could not be read
+	 */
+	private long[] read(long objId) {
+		final long[] record = new long[HOTLENGTH / 8];
+		if (!fbs.readLongs(objId, record)) {
+			LOG.error("Error trying read object " + objId);
+			return null;
+		}
+		return record;
+	}
+
+	/**
+	 * record the size of an object, keeping its access times
+	 * 
+	 * @param objId
+	 * @param size
+	 *            object size(unit:bytes)
+	 * @return
+	 */
+	public synchronized boolean setSize(long objId, long size) {
+		final long[] record = read(objId);
+		if (record == null) {
+			return false;
+		}
+		return put(objId, record[0], record[1], size < 0 ? -1
+				: convertMB(size), size);
 	}
 
 	private long convertMB(long size) {
@@ -79,14 +161,29 @@ public class HotStore {
 	 * @return
 	 */
 	public long getObjectSizeMB(long objId) {
-		final ByteBuffer buf = fbs.get((int) objId);
-		if (buf == null) {
-			LOG.error("Error trying read object " + objId);
-		}
-		buf.getLong();
-		buf.getLong();
-		long size = buf.getLong();
-		return size;
+		final long[] record = read(objId);
+		return record == null ? -1 : record[2];
+	}
+
+	/**
+	 * create time of the object, which tells a reused id from the object it
+	 * was chosen for
+	 * @param objId
+	 * @return -1 if the record could not be read
+	 */
+	public long getCreateTime(long objId) {
+		final long[] record = read(objId);
+		return record == null ? -1 : record[0];
+	}
+
+	/**
+	 * object size(unit:bytes)
+	 * @param objId
+	 * @return -1 if the size is not recorded yet
+	 */
+	public long getObjectSizeBytes(long objId) {
+		final long[] record = read(objId);
+		return record == null || record[2] < 0 ? -1 : record[3];
 	}
 
 	/**
@@ -94,41 +191,50 @@ public class HotStore {
 	 * @return
 	 */
 	public float hot(long objId) {
-		final ByteBuffer buf = fbs.get((int) objId);
-		if (buf == null) {
-			LOG.error("Error trying read object " + objId);
-		}
 		long current = System.currentTimeMillis();
-		long createTime = buf.getLong();
-		long lastTime = buf.getLong();
-		long size = buf.getLong();
-
-		put(objId, createTime, current, size);
-		float hotness = ALPHA * sizeHot(size) + BETA
-				* timeHot(current, createTime, lastTime);
-		return hotness;
+		final long[] record = read(objId);
+		if (record == null) {
+			return 0f;
+		}
+		return hotness(objId, current, record[0], record[1], record[2]);
 	}
 
 	/**
+	 * record the size of an object read for the first time
 	 * 
 	 * @param objId
 	 * @return
 	 */
 	public float firstHot(long objId, long size) {
-		final ByteBuffer buf = fbs.get((int) objId);
-		if (buf == null) {
-			LOG.error("Error trying read object " + objId);
-		}
 		long current = System.currentTimeMillis();
-		long createTime = buf.getLong();
-		long lastTime = buf.getLong();
-		buf.getLong();
-		long sizeMB = convertMB(size);
-		// update the last access time
-		put(objId, createTime, current, sizeMB);
-		float hotness = ALPHA * sizeHot(size) + BETA
-				* timeHot(current, createTime, lastTime);
-		return hotness;
+		final long[] record;
+		synchronized (this) {
+			record = read(objId);
+			if (record == null) {
+				return 0f;
+			}
+			put(objId, record[0], record[1], size < 0 ? -1
+					: convertMB(size), size);
+		}
+		return hotness(objId, current, record[0], record[1], size);
+	}
+
+	private float hotness(long objId, long current, long createTime,
+			long lastTime, long size) {
+		AccessStats.Access previous = accesses.access(objId, current);
+		if (previous.lastTime > lastTime) {
+			lastTime = previous.lastTime;
+		}
+		return ALPHA * sizeHot(size) + BETA
+				* (timeHot(current, createTime, lastTime) + countHot(previous.count));
+	}
+
+	/**
+	 * an object read often in the last half lives is hotter than one read
+	 * once, 0 for an object read once
+	 */
+	private float countHot(double count) {
+		return (float) (Math.log(Math.max(1, count)) / Math.log(2));
 	}
 
 	private float sizeHot(long size) {
@@ -148,13 +254,54 @@ public class HotStore {
 		return timeHot;
 	}
 
+	/**
+	 * write the last access times read since the last flush, ordered by id
+	 * so that the records are written in file order.
+	 */
+	void flushAccesses() {
+		TreeMap<Long, Long> lastTimes = accesses.drain(System
+				.currentTimeMillis());
+		while (!lastTimes.isEmpty()) {
+			synchronized (this) {
+				if (!fbs.isOpen()) {
+					return;
+				}
+				for (int i = 0; i < FLUSHBATCH && !lastTimes.isEmpty(); i++) {
+					Map.Entry<Long, Long> e = lastTimes.pollFirstEntry();
+					writeLastTime(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	private void writeLastTime(long objId, long lastTime) {
+		final long[] record = read(objId);
+		// a new object of a reused id is not older than its last read
+		if (record != null && lastTime > record[1]) {
+			put(objId, record[0], lastTime, record[2], record[3]);
+		}
+	}
+
 	public void sync() {
-		fbs.sync();
+		flushAccesses();
+		synchronized (this) {
+			fbs.sync();
+		}
 	}
 
 	public void close() {
-		fbs.sync();
-		fbs.close();
+		accessFlusher.shutdown();
+		try {
+			accessFlusher.awaitTermination(Long.MAX_VALUE,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushAccesses();
+		synchronized (this) {
+			fbs.sync();
+			fbs.close();
+		}
 	}
 
 	public static void main(String[] args) throws InterruptedException {
@@ -0,0 +1,320 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.hoss.ds.LongBitmap;
+import org.apache.hadoop.hdfs.hoss.util.ByteUtil;
+import org.apache.hadoop.hdfs.hoss.util.FileUtil;
+
+/**
+ * allocates the object ids. an id is either below the current id, or free.
+ * the free ids are the deleted ones, kept in a compressed bitmap and
+ * allocated smallest first.
+ *
+ * a block of new contiguous ids may be leased to a client, which puts its
+ * objects with them. the ids of a lease not used before it expires are
+ * freed.
+ *
+ * stored as a log of the current id and the bitmap partitions changed since
+ * the last save, rewritten when it is much larger than the bitmaps. a
+ * partition record holds the whole partition, so the last one read wins.
+ */
+class IdAllocator {
+	private static final Log LOG = LogFactory.getLog(IdAllocator.class);
+
+	private static final byte CHECKPOINT = 'C';
+
+	private static final byte FREE = 'F';
+
+	private static final byte LEASED = 'L';
+
+	// the log is not rewritten below this size
+	private static final long MINLOGBYTES = 1024 * 1024;
+
+	private final File file;
+
+	// the long[] file of the current id and the deleted ids
+	private final File legacyFile;
+
+	private final long leaseTimeout;
+
+	private long currentId = 1;
+
+	private final LongBitmap free = new LongBitmap();
+
+	// ids leased and not used yet
+	private final LongBitmap leased = new LongBitmap();
+
+	// first id of a lease -> end of the lease, expire time
+	private final TreeMap<Long, long[]> leases = new TreeMap<Long, long[]>();
+
+	// bytes of the log, -1 to rewrite it at the next save
+	private long logBytes = -1;
+
+	// saves are written in order
+	private final Object saveLock = new Object();
+
+	/**
+	 * @param leaseTimeout
+	 *            milliseconds after which the unused ids of a lease are freed
+	 */
+	IdAllocator(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+		File dir = new File(HosMetaData.HOSSDIR);
+		file = new File(dir, HosMetaData.IDBITMAPFILE);
+		legacyFile = new File(dir, HosMetaData.IDSFILE);
+		try {
+			if (file.exists()) {
+				load();
+			} else if (legacyFile.exists()) {
+				loadLegacy();
+			}
+		} catch (IOException e) {
+			LOG.error("read object ids fail", e);
+		}
+	}
+
+	private void load() throws IOException {
+		byte[] bytes = FileUtil.readBytesFromFile(file);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+		long valid = 0;
+		try {
+			while (valid < bytes.length) {
+				byte tag = in.readByte();
+				if (tag == CHECKPOINT) {
+					currentId = in.readLong();
+				} else if (tag == FREE || tag == LEASED) {
+					LongBitmap bitmap = (tag == FREE ? free : leased);
+					for (int n = in.readInt(); n > 0; n--) {
+						bitmap.readPartition(in);
+					}
+				} else {
+					throw new IOException("unknown record " + tag);
+				}
+				valid = bytes.length - in.available();
+			}
+			logBytes = valid;
+		} catch (EOFException e) {
+			// a save torn by a crash, the records before it are kept
+			LOG.warn("object id log " + file + " is truncated at " + valid);
+		}
+		// the leases do not survive a restart, their ids are freed
+		if (!leased.isEmpty()) {
+			for (long id = leased.next(0); id >= 0; id = leased.next(id + 1)) {
+				free.add(id);
+			}
+			leased.clear();
+			logBytes = -1;
+		}
+		LOG.info("object ids: current " + currentId + ", free "
+				+ free.cardinality());
+	}
+
+	private void loadLegacy() throws IOException {
+		long[] ids = ByteUtil.toLongArray(FileUtil
+				.readBytesFromFile(legacyFile));
+		if (ids.length > 0) {
+			currentId = ids[0];
+			for (int i = 1; i < ids.length; i++) {
+				free.add(ids[i]);
+			}
+		}
+		LOG.info("object ids read from " + legacyFile + ": current "
+				+ currentId + ", free " + free.cardinality());
+	}
+
+	/**
+	 * @return the smallest free id, or a new one
+	 */
+	synchronized long next() {
+		long id = free.pollFirst();
+		if (id < 0) {
+			id = currentId++;
+		}
+		return id;
+	}
+
+	/**
+	 * lease a block of new contiguous ids
+	 *
+	 * @param count
+	 * @return the first id of the block
+	 */
+	synchronized long lease(int count) {
+		expireLeases(System.currentTimeMillis());
+		long start = currentId;
+		currentId += count;
+		leased.addRange(start, currentId);
+		leases.put(start, new long[] { currentId,
+				System.currentTimeMillis() + leaseTimeout });
+		return start;
+	}
+
+	/**
+	 * take a leased id for a new object
+	 *
+	 * @param id
+	 * @return false if the id is not leased or was taken
+	 */
+	synchronized boolean useLeased(long id) {
+		return leased.remove(id);
+	}
+
+	/**
+	 * free the ids of a lease which are not used
+	 *
+	 * @param start
+	 * @param count
+	 */
+	synchronized void release(long start, int count) {
+		freeLeased(start, start + count);
+	}
+
+	private void freeLeased(long start, long end) {
+		for (long id = leased.next(start); id >= 0 && id < end; id = leased
+				.next(id + 1)) {
+			leased.remove(id);
+			free.add(id);
+		}
+	}
+
+	private void expireLeases(long now) {
+		Iterator<Map.Entry<Long, long[]>> it = leases.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, long[]> e = it.next();
+			if (e.getValue()[1] <= now) {
+				freeLeased(e.getKey(), e.getValue()[0]);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * free the id of a deleted object or removed container
+	 */
+	synchronized void free(long id) {
+		free.add(id);
+	}
+
+	synchronized void free(Collection<Long> ids) {
+		for (Long id : ids) {
+			free.add(id);
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return true if the id is free
+	 */
+	synchronized boolean isFree(long id) {
+		return free.contains(id);
+	}
+
+	synchronized long getCurrentId() {
+		return currentId;
+	}
+
+	synchronized long freeCount() {
+		return free.cardinality();
+	}
+
+	/**
+	 * append the partitions changed since the last save and the current id
+	 * to the log, or rewrite the log when it is much larger than the bitmaps.
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		synchronized (saveLock) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			boolean rewrite;
+			synchronized (this) {
+				expireLeases(System.currentTimeMillis());
+				long live = free.serializedSize() + leased.serializedSize();
+				rewrite = logBytes < 0
+						|| logBytes > Math.max(MINLOGBYTES, 2 * live);
+				if (rewrite) {
+					writeAll(out);
+				} else {
+					writeDirty(out);
+				}
+				out.writeByte(CHECKPOINT);
+				out.writeLong(currentId);
+			}
+			out.flush();
+			if (rewrite) {
+				File tmp = new File(file.getPath() + ".tmp");
+				FileUtil.writeBytesToFile(tmp, bytes.toByteArray());
+				if (!tmp.renameTo(file)) {
+					file.delete();
+					if (!tmp.renameTo(file)) {
+						throw new IOException("rename " + tmp + " to " + file
+								+ " fail");
+					}
+				}
+				logBytes = bytes.size();
+				if (legacyFile.exists()) {
+					legacyFile.delete();
+				}
+			} else {
+				FileUtil.appendBytesToFile(file, bytes.toByteArray());
+				logBytes += bytes.size();
+			}
+		}
+	}
+
+	private void writeAll(DataOutputStream out) throws IOException {
+		writePartitions(out, FREE, free, true);
+		writePartitions(out, LEASED, leased, true);
+	}
+
+	private void writeDirty(DataOutputStream out) throws IOException {
+		writePartitions(out, FREE, free, false);
+		writePartitions(out, LEASED, leased, false);
+	}
+
+	private void writePartitions(DataOutputStream out, byte tag,
+			LongBitmap bitmap, boolean all) throws IOException {
+		ByteArrayOutputStream partitions = new ByteArrayOutputStream();
+		DataOutputStream pout = new DataOutputStream(partitions);
+		int n = all ? bitmap.writeAll(pout) : bitmap.writeDirty(pout);
+		pout.flush();
+		if (n == 0) {
+			return;
+		}
+		out.writeByte(tag);
+		out.writeInt(n);
+		partitions.writeTo(out);
+	}
+}
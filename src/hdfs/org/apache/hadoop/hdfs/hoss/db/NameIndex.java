@@ -0,0 +1,335 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * the names of a segment with their values in the byte order of the names
+ * (name.names), for the prefix and range scans the hash index can not do.
+ *
+ * the entries are followed by a sparse index of every INTERVAL-th name with
+ * its offset, then the offset of the sparse index and the number of entries.
+ * the sparse index is kept in memory, a scan seeks to the indexed name before
+ * its start and reads on.
+ */
+final class NameIndex {
+
+	// unsigned byte order, the order of the names for UTF-8 keys
+	static final Comparator<byte[]> BYTEORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			return WritableComparator.compareBytes(a, 0, a.length, b, 0,
+					b.length);
+		}
+	};
+
+	private static final int INTERVAL = 128;
+
+	private static final int BUFFERSIZE = 64 * 1024;
+
+	// offset of the sparse index + number of entries
+	private static final int TRAILERSIZE = 16;
+
+	private final File file;
+
+	private final byte[][] keys;
+
+	private final long[] offsets;
+
+	private final long entries;
+
+	private NameIndex(File file, byte[][] keys, long[] offsets, long entries) {
+		this.file = file;
+		this.keys = keys;
+		this.offsets = offsets;
+		this.entries = entries;
+	}
+
+	/**
+	 * read the sparse index of a name index file
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static NameIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < TRAILERSIZE) {
+				throw new IOException("name index " + file + " is truncated");
+			}
+			raf.seek(length - TRAILERSIZE);
+			long sparse = raf.readLong();
+			long entries = raf.readLong();
+			if (sparse < 0 || sparse > length - TRAILERSIZE) {
+				throw new IOException("name index " + file + " is corrupted");
+			}
+			byte[] bytes = new byte[(int) (length - TRAILERSIZE - sparse)];
+			raf.seek(sparse);
+			raf.readFully(bytes);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					bytes));
+			int n = in.readInt();
+			byte[][] keys = new byte[n][];
+			long[] offsets = new long[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = new byte[WritableUtils.readVInt(in)];
+				in.readFully(keys[i]);
+				offsets[i] = in.readLong();
+			}
+			return new NameIndex(file, keys, offsets, entries);
+		} finally {
+			raf.close();
+		}
+	}
+
+	static boolean startsWith(byte[] key, byte[] prefix) {
+		if (key.length < prefix.length) {
+			return false;
+		}
+		return WritableComparator.compareBytes(key, 0, prefix.length, prefix,
+				0, prefix.length) == 0;
+	}
+
+	long size() {
+		return entries;
+	}
+
+	/**
+	 * @param from
+	 *            null to scan from the first name
+	 * @return a scan of the names not less than from
+	 * @throws IOException
+	 */
+	Cursor seek(byte[] from) throws IOException {
+		// the last indexed name not greater than from
+		int low = 0;
+		int high = keys.length - 1;
+		int block = -1;
+		while (from != null && low <= high) {
+			int mid = (low + high) >>> 1;
+			if (BYTEORDER.compare(keys[mid], from) <= 0) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (block < 0) {
+			block = 0;
+		}
+		FileInputStream fin = new FileInputStream(file);
+		Cursor cursor = null;
+		try {
+			long skip = 0;
+			if (offsets.length > 0) {
+				fin.getChannel().position(offsets[block]);
+				skip = (long) block * INTERVAL;
+			}
+			cursor = new FileCursor(new DataInputStream(
+					new BufferedInputStream(fin, BUFFERSIZE)), entries - skip);
+			while (from != null && cursor.key() != null
+					&& BYTEORDER.compare(cursor.key(), from) < 0) {
+				cursor.advance();
+			}
+			return cursor;
+		} catch (IOException e) {
+			if (cursor != null) {
+				cursor.close();
+			} else {
+				fin.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * a scan of names in byte order. key() is null at the end.
+	 */
+	abstract static class Cursor {
+		protected byte[] key;
+
+		protected byte[] value;
+
+		byte[] key() {
+			return key;
+		}
+
+		byte[] value() {
+			return value;
+		}
+
+		abstract void advance() throws IOException;
+
+		void close() {
+		}
+	}
+
+	/**
+	 * @return a scan of the entries of a sorted map, which must be ordered by
+	 *         BYTEORDER
+	 */
+	static Cursor of(SortedMap<byte[], byte[]> map) {
+		return new MapCursor(map.entrySet().iterator());
+	}
+
+	private static final class MapCursor extends Cursor {
+		private final Iterator<Map.Entry<byte[], byte[]>> it;
+
+		MapCursor(Iterator<Map.Entry<byte[], byte[]>> it) {
+			this.it = it;
+			advance();
+		}
+
+		@Override
+		void advance() {
+			if (it.hasNext()) {
+				Map.Entry<byte[], byte[]> e = it.next();
+				key = e.getKey();
+				value = e.getValue();
+			} else {
+				key = null;
+				value = null;
+			}
+		}
+	}
+
+	private static final class FileCursor extends Cursor {
+		private final DataInputStream in;
+
+		private long remaining;
+
+		FileCursor(DataInputStream in, long remaining) throws IOException {
+			this.in = in;
+			this.remaining = remaining;
+			advance();
+		}
+
+		@Override
+		void advance() throws IOException {
+			if (remaining <= 0) {
+				key = null;
+				value = null;
+				close();
+				return;
+			}
+			key = new byte[WritableUtils.readVInt(in)];
+			in.readFully(key);
+			value = new byte[WritableUtils.readVInt(in)];
+			in.readFully(value);
+			remaining--;
+		}
+
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing is written
+			}
+		}
+	}
+
+	/**
+	 * writes a name index, the names must be appended in BYTEORDER.
+	 */
+	static final class Writer {
+		private final FileOutputStream fout;
+
+		private final DataOutputStream out;
+
+		private final List<byte[]> keys = new ArrayList<byte[]>();
+
+		private final List<Long> offsets = new ArrayList<Long>();
+
+		private byte[] last = null;
+
+		private long entries = 0;
+
+		// bytes written, DataOutputStream counts them in an int
+		private long offset = 0;
+
+		Writer(File file) throws IOException {
+			fout = new FileOutputStream(file);
+			out = new DataOutputStream(new BufferedOutputStream(fout,
+					BUFFERSIZE));
+		}
+
+		void append(byte[] key, byte[] value) throws IOException {
+			if (last != null && BYTEORDER.compare(last, key) >= 0) {
+				throw new IllegalArgumentException(
+						"names must be appended in ascending order");
+			}
+			if (entries % INTERVAL == 0) {
+				keys.add(key);
+				offsets.add(offset);
+			}
+			WritableUtils.writeVInt(out, key.length);
+			out.write(key);
+			WritableUtils.writeVInt(out, value.length);
+			out.write(value);
+			offset += WritableUtils.getVIntSize(key.length) + key.length
+					+ WritableUtils.getVIntSize(value.length) + value.length;
+			last = key;
+			entries++;
+		}
+
+		/**
+		 * write the sparse index and the trailer
+		 *
+		 * @throws IOException
+		 */
+		void close() throws IOException {
+			try {
+				long sparse = offset;
+				out.writeInt(keys.size());
+				for (int i = 0; i < keys.size(); i++) {
+					WritableUtils.writeVInt(out, keys.get(i).length);
+					out.write(keys.get(i));
+					out.writeLong(offsets.get(i));
+				}
+				out.writeLong(sparse);
+				out.writeLong(entries);
+				out.flush();
+				fout.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * user defined key/value attributes of an object, given when it is put and
+ * indexed for {@link ObjectQuery}. a key is not empty, neither a key nor a
+ * value holds the character \0.
+ */
+public class ObjectAttributes implements Writable {
+
+	private final SortedMap<String, String> attributes = new TreeMap<String, String>();
+
+	public ObjectAttributes() {
+	}
+
+	public ObjectAttributes(Map<String, String> attributes) {
+		this.attributes.putAll(attributes);
+	}
+
+	/**
+	 * set an attribute
+	 * 
+	 * @param key
+	 * @param value
+	 * @return this
+	 */
+	public ObjectAttributes set(String key, String value) {
+		attributes.put(key, value);
+		return this;
+	}
+
+	/**
+	 * @param key
+	 * @return the value of the attribute, null if it is not set
+	 */
+	public String get(String key) {
+		return attributes.get(key);
+	}
+
+	/**
+	 * @return the attributes ordered by key
+	 */
+	public SortedMap<String, String> asMap() {
+		return Collections.unmodifiableSortedMap(attributes);
+	}
+
+	public int size() {
+		return attributes.size();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if a key is empty, or a key or a value holds \0
+	 */
+	void validate() {
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			if (e.getKey().length() == 0 || e.getKey().indexOf('\0') >= 0
+					|| e.getValue() == null || e.getValue().indexOf('\0') >= 0) {
+				throw new IllegalArgumentException("invalid attribute "
+						+ e.getKey() + "=" + e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		attributes.clear();
+		for (int n = in.readInt(); n > 0; n--) {
+			String key = Text.readString(in);
+			attributes.put(key, Text.readString(in));
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(attributes.size());
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			Text.writeString(out, e.getKey());
+			Text.writeString(out, e.getValue());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return attributes.toString();
+	}
+}
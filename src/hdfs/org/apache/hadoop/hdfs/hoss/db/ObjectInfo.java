@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * everything a client needs to open an object: object id + path position +
+ * size, returned by one metadata call. the bytes of an inlined object come
+ * with it.
+ */
+public class ObjectInfo implements Writable {
+
+	private long objId;
+
+	private PathPosition pathPosition;
+
+	// object size(unit:bytes), -1 if unknown
+	private long size;
+
+	// bytes of an inlined object, null otherwise
+	private byte[] data;
+
+	public ObjectInfo() {
+		objId = -1;
+		pathPosition = new PathPosition();
+		size = -1;
+	}
+
+	public ObjectInfo(long objId, PathPosition pathPosition, long size) {
+		super();
+		this.objId = objId;
+		this.pathPosition = pathPosition;
+		this.size = size;
+	}
+
+	public ObjectInfo(long objId, PathPosition pathPosition, long size,
+			byte[] data) {
+		this(objId, pathPosition, size);
+		this.data = data;
+	}
+
+	/**
+	 * @return the object id
+	 */
+	public long getObjId() {
+		return objId;
+	}
+
+	/**
+	 * @return the path position
+	 */
+	public PathPosition getPathPosition() {
+		return pathPosition;
+	}
+
+	/**
+	 * @return the object size(unit:bytes), -1 if unknown
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the bytes of an inlined object, null otherwise
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return true if the object is combined into the small object container
+	 */
+	public boolean isCombined() {
+		return pathPosition.getOffset() > 0;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		this.objId = in.readLong();
+		this.pathPosition = new PathPosition();
+		this.pathPosition.readFields(in);
+		this.size = in.readLong();
+		int length = in.readInt();
+		if (length < 0) {
+			this.data = null;
+		} else {
+			this.data = new byte[length];
+			in.readFully(this.data);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(objId);
+		pathPosition.write(out);
+		out.writeLong(size);
+		if (data == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "object id: " + objId + "   " + pathPosition + "   size: "
+				+ size;
+	}
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * a page of object names and ids in name order. the continuation token is
+ * passed as startAfter to get the next page, it is null after the last page.
+ */
+public class ObjectListing implements Writable {
+
+	private String[] names;
+
+	private long[] ids;
+
+	// null if there is no more page
+	private String continuationToken;
+
+	public ObjectListing() {
+		names = new String[0];
+		ids = new long[0];
+	}
+
+	public ObjectListing(String[] names, long[] ids, String continuationToken) {
+		this.names = names;
+		this.ids = ids;
+		this.continuationToken = continuationToken;
+	}
+
+	/**
+	 * @return the object names of the page
+	 */
+	public String[] getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the object ids in the order of the names
+	 */
+	public long[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return the startAfter of the next page, null after the last page
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	/**
+	 * @return true if there are more pages
+	 */
+	public boolean isTruncated() {
+		return continuationToken != null;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int n = in.readInt();
+		names = new String[n];
+		ids = new long[n];
+		for (int i = 0; i < n; i++) {
+			names[i] = Text.readString(in);
+			ids[i] = in.readLong();
+		}
+		if (in.readBoolean()) {
+			continuationToken = Text.readString(in);
+		} else {
+			continuationToken = null;
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(names.length);
+		for (int i = 0; i < names.length; i++) {
+			Text.writeString(out, names[i]);
+			out.writeLong(ids[i]);
+		}
+		out.writeBoolean(continuationToken != null);
+		if (continuationToken != null) {
+			Text.writeString(out, continuationToken);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return names.length + " objects, continuation token: "
+				+ continuationToken;
+	}
+}
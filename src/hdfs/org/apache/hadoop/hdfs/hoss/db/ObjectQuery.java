@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * a query of the objects by their attributes: a conjunction of terms, each an
+ * equality or a range of one attribute. values which are integers compare as
+ * numbers: a term whose bounds are integers matches the integer values, the
+ * other terms match the other values in string order.
+ *
+ * the first term is answered from the attribute index and the others are
+ * checked on the objects it yields, so the most selective term goes first.
+ */
+public class ObjectQuery implements Writable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * a range of the values of one attribute, a null bound is open
+	 */
+	public static class Term implements Writable {
+		private String attribute;
+
+		private String lower;
+
+		private boolean lowerInclusive;
+
+		private String upper;
+
+		private boolean upperInclusive;
+
+		public Term() {
+		}
+
+		public Term(String attribute, String lower, boolean lowerInclusive,
+				String upper, boolean upperInclusive) {
+			this.attribute = attribute;
+			this.lower = lower;
+			this.lowerInclusive = lowerInclusive;
+			this.upper = upper;
+			this.upperInclusive = upperInclusive;
+		}
+
+		public String getAttribute() {
+			return attribute;
+		}
+
+		public String getLower() {
+			return lower;
+		}
+
+		public String getUpper() {
+			return upper;
+		}
+
+		/**
+		 * @return true if the bounds are integers, false if there is none
+		 */
+		boolean isNumeric() {
+			return (lower != null || upper != null)
+					&& (lower == null || isInteger(lower))
+					&& (upper == null || isInteger(upper));
+		}
+
+		/**
+		 * @return true if any value of the attribute matches
+		 */
+		boolean isOpen() {
+			return lower == null && upper == null;
+		}
+
+		private int compare(String a, String b) {
+			if (isNumeric()) {
+				long x = Long.parseLong(a);
+				long y = Long.parseLong(b);
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+			return NameIndex.BYTEORDER.compare(a.getBytes(UTF8), b
+					.getBytes(UTF8));
+		}
+
+		/**
+		 * @return true if the value, of the type of the term, is above the
+		 *         range
+		 */
+		boolean isAbove(String value) {
+			if (upper == null) {
+				return false;
+			}
+			int c = compare(value, upper);
+			return c > 0 || (c == 0 && !upperInclusive);
+		}
+
+		/**
+		 * @return true if the value, of the type of the term, is below the
+		 *         range
+		 */
+		boolean isBelow(String value) {
+			if (lower == null) {
+				return false;
+			}
+			int c = compare(value, lower);
+			return c < 0 || (c == 0 && !lowerInclusive);
+		}
+
+		/**
+		 * @param value
+		 *            null if the object has not the attribute
+		 * @return true if the value is in the range
+		 */
+		boolean matches(String value) {
+			if (value == null) {
+				return false;
+			}
+			if (isOpen()) {
+				return true;
+			}
+			if (isNumeric() != isInteger(value)) {
+				return false;
+			}
+			return !isBelow(value) && !isAbove(value);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			attribute = Text.readString(in);
+			lower = in.readBoolean() ? Text.readString(in) : null;
+			lowerInclusive = in.readBoolean();
+			upper = in.readBoolean() ? Text.readString(in) : null;
+			upperInclusive = in.readBoolean();
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			Text.writeString(out, attribute);
+			out.writeBoolean(lower != null);
+			if (lower != null) {
+				Text.writeString(out, lower);
+			}
+			out.writeBoolean(lowerInclusive);
+			out.writeBoolean(upper != null);
+			if (upper != null) {
+				Text.writeString(out, upper);
+			}
+			out.writeBoolean(upperInclusive);
+		}
+
+		@Override
+		public String toString() {
+			return (lowerInclusive ? "[" : "(") + lower + ", " + upper
+					+ (upperInclusive ? "]" : ")") + " of " + attribute;
+		}
+	}
+
+	private final List<Term> terms = new ArrayList<Term>();
+
+	// the continuation token of the previous page, null for the first page
+	private String startAfter;
+
+	/**
+	 * @return true if the value is the decimal string of a long
+	 */
+	static boolean isInteger(String value) {
+		if (value.length() == 0 || value.length() > 20) {
+			return false;
+		}
+		try {
+			return Long.toString(Long.parseLong(value)).equals(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * match the objects whose attribute has the value
+	 * 
+	 * @return this
+	 */
+	public ObjectQuery equal(String attribute, String value) {
+		return range(attribute, value, true, value, true);
+	}
+
+	/**
+	 * match the objects whose attribute is in the range
+	 * 
+	 * @param lower
+	 *            null for no lower bound
+	 * @param upper
+	 *            null for no upper bound
+	 * @return this
+	 */
+	public ObjectQuery range(String attribute, String lower,
+			boolean lowerInclusive, String upper, boolean upperInclusive) {
+		terms.add(new Term(attribute, lower, lowerInclusive, upper,
+				upperInclusive));
+		return this;
+	}
+
+	/**
+	 * match the objects which have the attribute
+	 * 
+	 * @return this
+	 */
+	public ObjectQuery exists(String attribute) {
+		return range(attribute, null, false, null, false);
+	}
+
+	/**
+	 * @param token
+	 *            the continuation token of the previous page
+	 * @return this
+	 */
+	public ObjectQuery startAfter(String token) {
+		this.startAfter = token;
+		return this;
+	}
+
+	public List<Term> getTerms() {
+		return Collections.unmodifiableList(terms);
+	}
+
+	public String getStartAfter() {
+		return startAfter;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		terms.clear();
+		for (int n = in.readInt(); n > 0; n--) {
+			Term term = new Term();
+			term.readFields(in);
+			terms.add(term);
+		}
+		startAfter = in.readBoolean() ? Text.readString(in) : null;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(terms.size());
+		for (Term term : terms) {
+			term.write(out);
+		}
+		out.writeBoolean(startAfter != null);
+		if (startAfter != null) {
+			Text.writeString(out, startAfter);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return terms.toString();
+	}
+}
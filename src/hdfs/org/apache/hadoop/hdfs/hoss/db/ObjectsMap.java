@@ -17,59 +17,143 @@
  */
 package org.apache.hadoop.hdfs.hoss.db;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hdfs.hoss.db.HosMetaData;
-import org.apache.hadoop.hdfs.hoss.bloomfilter.HosBloomFilter;
-import org.apache.hadoop.hdfs.hoss.meta.CompressionType;
-import org.apache.hadoop.hdfs.hoss.meta.Hos;
 import org.apache.hadoop.hdfs.hoss.meta.HosReader;
-import org.apache.hadoop.hdfs.hoss.meta.HosWriter;
-import org.apache.hadoop.hdfs.hoss.util.ByteUtil;
-import org.apache.hadoop.hdfs.hoss.util.FileUtil;
+import org.apache.hadoop.hdfs.hoss.meta.HosReaderClosedException;
 
 
+/**
+ * name to id map of hoss. new names are buffered in memory and flushed to
+ * immutable segments, a delete is flushed as a tombstone. segments of the
+ * same size tier are merged, so a flush or a merge only rewrites new data.
+ * the live segments are listed in hoss.manifest, newest first.
+ *
+ * the value of a name is its 8 bytes id, followed by the bytes of the object
+ * if they are inlined.
+ *
+ * the names of a segment are written in the byte order of their UTF-8 bytes,
+ * so a merge and a listing read the segments side by side in name order.
+ */
 public class ObjectsMap {
 	private static final Log LOG = LogFactory.getLog(ObjectsMap.class);
 
-	private HosReader reader = null;
+	// the value of a deleted name in a segment
+	private static final long TOMBSTONE = -1L;
 
-	private ConcurrentHashMap<String, Long> memMap = new ConcurrentHashMap<String, Long>();
-	
-	//recycle use the deleted ids 
-	private List<byte[]> deletedIds = new ArrayList<byte[]>();
+	// merge the segments of a tier when it has MERGEFACTOR segments
+	private static final int MERGEFACTOR = 4;
+
+	// segments up to TIERSIZE entries are in the first tier
+	private static final long TIERSIZE = 1000000L;
+
+	private static final String SEGMENTPREFIX = "hoss-";
+
+	// live segments, newest first. replaced as a whole by flush and merge
+	private volatile List<Segment> segments = Collections.emptyList();
+
+	// sorted in the order of the segments, a listing seeks in it
+	private volatile ConcurrentSkipListMap<String, Long> memMap = newMemMap();
+
+	// names deleted since memMap was swapped in
+	private volatile NavigableSet<String> memDeleted = newDeletedSet();
+
+	// memory map being flushed to a segment, null if no flush is running
+	private volatile ConcurrentSkipListMap<String, Long> flushingMap = null;
+
+	private volatile NavigableSet<String> flushingDeleted = null;
+
+	// bytes of the inlined objects of memMap and flushingMap
+	private volatile ConcurrentHashMap<String, byte[]> memInline = new ConcurrentHashMap<String, byte[]>();
+
+	private volatile ConcurrentHashMap<String, byte[]> flushingInline = null;
+
+	// bytes held by memInline
+	private final AtomicLong memInlineBytes = new AtomicLong(0);
+
+	// writers of memMap share it, swapping memMap takes it exclusively
+	private final ReentrantReadWriteLock memLock = new ReentrantReadWriteLock();
+
+	// only one flush or merge at a time
+	private final Object flushLock = new Object();
 
-	//ConcurrentSkipListSet<String> deletedObjSet = new ConcurrentSkipListSet<String>();
-	
 	private File dir = null;
 
-	private static final int BLOCKSIZE = 4 * 1024;
+	private long nextSegment = 0;
 
-	public ObjectsMap(File dir) {
+	/**
+	 * open the segments of the directory. a segment which can not be opened
+	 * fails the open: going on without it would write a manifest without its
+	 * names, and the next open would delete its files.
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public ObjectsMap(File dir) throws IOException {
 		this.dir = dir;
-		try {
-			this.initDir();
-		} catch (IOException e1) {
-			LOG.error("initilize hos meta data directory fail", e1);
-		}
-		File index = new File(dir, HosMetaData.INDEXFILE);
-		try {
-			reader = Hos.open(index);
-		} catch (IOException e) {
-			e.printStackTrace();
+		this.initDir();
+		this.loadSegments();
+	}
+
+	/**
+	 * the order of code points, which is the byte order of the UTF-8 names
+	 * in the segments. String.compareTo orders UTF-16 chars, which differs
+	 * for the names beyond the basic plane.
+	 */
+	private static final Comparator<String> NAMEORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int i = 0;
+			int j = 0;
+			while (i < a.length() && j < b.length()) {
+				int ca = a.codePointAt(i);
+				int cb = b.codePointAt(j);
+				if (ca != cb) {
+					return ca < cb ? -1 : 1;
+				}
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			return (a.length() - i) - (b.length() - j);
 		}
-		//this.addShutdownHook();
+	};
+
+	private static ConcurrentSkipListMap<String, Long> newMemMap() {
+		return new ConcurrentSkipListMap<String, Long>(NAMEORDER);
+	}
+
+	private static NavigableSet<String> newDeletedSet() {
+		return new ConcurrentSkipListSet<String>(NAMEORDER);
 	}
 
 	private void initDir() throws IOException {
@@ -79,43 +163,150 @@ public class ObjectsMap {
 				throw new IOException("Could not create hos meta data directory "
 						+ dir.getAbsolutePath());
 		}
-		File index = new File(dir, HosMetaData.INDEXFILE);
-		if (!index.exists()) {
-			HosWriter writer = Hos.createNew(index, CompressionType.SNAPPY,
-					BLOCKSIZE);
-			writer.flush();
-			writer.writeHash();
-			writer.close();
+	}
+
+	/**
+	 * open the segments in hoss.manifest. without a manifest, the hoss.spi and
+	 * hoss.spl pair of an old meta directory becomes the only segment.
+	 * segment files not in the manifest are left by a crash and removed.
+	 */
+	private void loadSegments() throws IOException {
+		List<String> names = new ArrayList<String>();
+		File manifest = new File(dir, HosMetaData.MANIFEST);
+		if (manifest.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line = null;
+				while ((line = in.readLine()) != null) {
+					if (line.trim().length() != 0) {
+						names.add(line.trim());
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} else if (new File(dir, HosMetaData.INDEXFILE).exists()) {
+			String index = HosMetaData.INDEXFILE;
+			names.add(index.substring(0, index.lastIndexOf('.')));
+		}
+		List<Segment> loaded = new ArrayList<Segment>();
+		for (String name : names) {
+			loaded.add(Segment.open(dir, name));
+			if (name.startsWith(SEGMENTPREFIX)) {
+				nextSegment = Math.max(nextSegment, Long.parseLong(name
+						.substring(SEGMENTPREFIX.length())) + 1);
+			}
 		}
+		for (File f : dir.listFiles()) {
+			String name = f.getName();
+			if (name.startsWith(SEGMENTPREFIX)
+					&& !names.contains(name.substring(0, name.lastIndexOf('.')))) {
+				LOG.info("remove " + name + " which is not in the manifest");
+				f.delete();
+			}
+		}
+		writeManifest(loaded);
+		segments = Collections.unmodifiableList(loaded);
+		LOG.info("open " + loaded.size() + " segments of hos meta data");
+	}
 
+	/**
+	 * replace hoss.manifest with the given segments by a rename
+	 */
+	private void writeManifest(List<Segment> live) throws IOException {
+		File tmp = new File(dir, HosMetaData.MANIFEST + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			for (Segment segment : live) {
+				writer.write(segment.getName());
+				writer.write('\n');
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(dir, HosMetaData.MANIFEST))) {
+			throw new IOException("Could not rename " + tmp.getAbsolutePath());
+		}
 	}
-	
-	public int memSize() {
-		return memMap.size();
+
+	private String newSegmentName() {
+		return String.format(SEGMENTPREFIX + "%08d", nextSegment++);
 	}
-	
 
 	/**
-	 * write objName and objId to log file.
+	 * lookup in the segments without any lock, newest first
 	 * 
-	 * @param objName
-	 * @param objId
+	 * @param key
+	 * @return null if the key is not found
 	 * @throws IOException
 	 */
-	private void putLog(String objName, long objId, HosWriter writer)
-			throws IOException {
-		byte[] key = objName.getBytes(Charset.forName("UTF-8"));
-		byte[] value = ByteBuffer.allocate(8).putLong(objId).array();
-		writer.put(key, value);
+	private byte[] getFromSegments(byte[] key) throws IOException {
+		while (true) {
+			List<Segment> current = segments;
+			try {
+				for (Segment segment : current) {
+					byte[] value = segment.get(key);
+					if (value != null) {
+						return value;
+					}
+				}
+				return null;
+			} catch (HosReaderClosedException e) {
+				// a merge closed the segment, retry on the new segments
+				if (current == segments) {
+					throw e;
+				}
+			} catch (IllegalStateException e) {
+				if (current == segments) {
+					throw e;
+				}
+			}
+		}
 	}
 
-	private void putAll(Map<String, Long> objectsMap, HosWriter writer)
-			throws IOException {
-		if (objectsMap.size() != 0) {
-			for (Map.Entry<String, Long> entry : objectsMap.entrySet()) {
-				putLog(entry.getKey(), entry.getValue(), writer);
-			}
+	/**
+	 * @return the number of names and deletes waiting for the flush
+	 */
+	public int memSize() {
+		return memMap.size() + memDeleted.size();
+	}
+
+	/**
+	 * @return the bytes of the inlined objects waiting for the flush
+	 */
+	public long memInlineBytes() {
+		return memInlineBytes.get();
+	}
+
+	private void removeInline(String objName) {
+		byte[] old = memInline.remove(objName);
+		if (old != null) {
+			memInlineBytes.addAndGet(-old.length);
+		}
+	}
+
+	private static byte[] toKey(String objName) {
+		return objName.getBytes(Charset.forName("UTF-8"));
+	}
+
+	private static long toId(byte[] value) {
+		return ByteBuffer.wrap(value).getLong();
+	}
+
+	private static byte[] toValue(long objId) {
+		return ByteBuffer.allocate(8).putLong(objId).array();
+	}
+
+	private static byte[] toValue(long objId, byte[] inline) {
+		if (inline == null) {
+			return toValue(objId);
 		}
+		return ByteBuffer.allocate(8 + inline.length).putLong(objId).put(
+				inline).array();
 	}
 
 	/**
@@ -125,15 +316,58 @@ public class ObjectsMap {
 	 * @param objId
 	 */
 	public void put(String objName, long objId) {
-		memMap.put(objName, objId);
+		memLock.readLock().lock();
+		try {
+			removeInline(objName);
+			memMap.put(objName, objId);
+		} finally {
+			memLock.readLock().unlock();
+		}
 	}
 
-	private long getMem(String objName) {
-		long objId = -1;
-		if (memMap.containsKey(objName)) {
-			objId = memMap.get(objName);
+	/**
+	 * put the object name and object id with the bytes of the object
+	 * 
+	 * @param objName
+	 * @param objId
+	 * @param inline
+	 */
+	public void putInline(String objName, long objId, byte[] inline) {
+		memLock.readLock().lock();
+		try {
+			byte[] old = memInline.put(objName, inline);
+			memInlineBytes.addAndGet(inline.length
+					- (old == null ? 0 : old.length));
+			memMap.put(objName, objId);
+		} finally {
+			memLock.readLock().unlock();
 		}
-		return objId;
+	}
+
+	/**
+	 * @return the id in memory, TOMBSTONE if the name is deleted, null if the
+	 *         name is not in memory
+	 */
+	private Long getMem(String objName) {
+		Long id = memMap.get(objName);
+		if (id != null) {
+			return id;
+		}
+		if (memDeleted.contains(objName)) {
+			return TOMBSTONE;
+		}
+		Map<String, Long> flushing = flushingMap;
+		Set<String> deleted = flushingDeleted;
+		if (flushing != null) {
+			id = flushing.get(objName);
+			if (id != null) {
+				return id;
+			}
+			if (deleted != null && deleted.contains(objName)) {
+				return TOMBSTONE;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -143,166 +377,582 @@ public class ObjectsMap {
 	 * @throws IOException
 	 */
 	public long get(String objName) throws IOException {
-		long objId = -1;
 		// get object id from memory map
-		if ((objId = getMem(objName)) != -1) {
-			return objId;
+		Long id = getMem(objName);
+		if (id != null) {
+			return id;
 		}
-		// get from the external memory
-		byte[] key = objName.getBytes(Charset.forName("UTF-8"));
-		byte[] value = reader.getAsByteArray(key);
-		if (value != null && value.length == 8) {
+		// get from the segments
+		long objId = -1;
+		byte[] value = getFromSegments(toKey(objName));
+		if (value != null && value.length >= 8) {
 			objId = ByteBuffer.wrap(value).getLong();
 		}
 		return objId;
 	}
 
-	private long deleteMem(String objName) {
-		long id = -1;
-		if (memMap.containsKey(objName)) {
-			id = memMap.remove(objName);
+	/**
+	 * @param objName
+	 * @return the inlined bytes of the object, null if it does not exist or
+	 *         is not inlined
+	 * @throws IOException
+	 */
+	public byte[] getInline(String objName) throws IOException {
+		// a name and its bytes are in two maps, a swap between the two reads
+		// would lose the bytes
+		memLock.readLock().lock();
+		try {
+			if (memMap.containsKey(objName)) {
+				return memInline.get(objName);
+			}
+			if (memDeleted.contains(objName)) {
+				return null;
+			}
+			Map<String, Long> flushing = flushingMap;
+			if (flushing != null) {
+				if (flushing.containsKey(objName)) {
+					return flushingInline.get(objName);
+				}
+				if (flushingDeleted.contains(objName)) {
+					return null;
+				}
+			}
+		} finally {
+			memLock.readLock().unlock();
 		}
-		return id;
+		byte[] value = getFromSegments(toKey(objName));
+		if (value == null || value.length <= 8) {
+			return null;
+		}
+		return Arrays.copyOfRange(value, 8, value.length);
 	}
 
 	/**
-	 * delete the object and object id
+	 * delete the object name. the id of a name in a segment is recycled when
+	 * the tombstone is merged with it.
 	 * 
 	 * @param objName
-	 * @throws IOException
+	 * @return the id if the name is in the memory map, otherwise -2
 	 */
-	public long delete(String objName) throws IOException {
-		long id = deleteMem(objName);
-		// if not exists in memory map, add deleted set.
-		if (id == -1) {
-			//need not get id from external memory
-			//compact will cycle the object id
-			id = -2;
+	public long delete(String objName) {
+		long id = -2;
+		memLock.readLock().lock();
+		try {
+			Long removed = memMap.remove(objName);
+			if (removed != null) {
+				id = removed;
+			}
+			removeInline(objName);
+			memDeleted.add(objName);
+		} finally {
+			memLock.readLock().unlock();
 		}
 		return id;
 	}
 
 	/**
 	 * list the object name and object id 
-	 * @param hosBloomFilter
 	 * @return the pair of object name and id
 	 * @throws IOException
 	 */
-	public Map<String, Long> list(HosBloomFilter hosBloomFilter) throws IOException {
+	public Map<String, Long> list() throws IOException {
 		Map<String, Long> map = new HashMap<String, Long>();
-		// get form the external memory
-		for (HosReader.Entry entry : reader) {
-			byte[] key = entry.getKey();
-			byte[] value = entry.getValue();
-			String newKey = new String(key, Charset.forName("UTF-8"));
-			//update the key memMap.contains(newKey)
-			boolean isChanged = memMap.contains(newKey) || !hosBloomFilter.contain(newKey);
-			if (!(isChanged)) {
-				map.put(newKey, ByteBuffer
-						.wrap(value).getLong());
+		Set<String> deleted = new HashSet<String>();
+		map.putAll(memMap);
+		deleted.addAll(memDeleted);
+		Map<String, Long> flushing = flushingMap;
+		Set<String> flushingDel = flushingDeleted;
+		if (flushing != null) {
+			for (Map.Entry<String, Long> entry : flushing.entrySet()) {
+				if (!deleted.contains(entry.getKey())) {
+					map.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (flushingDel != null) {
+				deleted.addAll(flushingDel);
 			}
 		}
-		for (Map.Entry<String, Long> entry : memMap.entrySet()) {
-			map.put(entry.getKey(), entry.getValue());
+		// newer segments shadow the older ones
+		for (Segment segment : segments) {
+			for (HosReader.Entry entry : segment) {
+				String name = new String(entry.getKey(), Charset
+						.forName("UTF-8"));
+				if (map.containsKey(name) || deleted.contains(name)) {
+					continue;
+				}
+				long id = ByteBuffer.wrap(entry.getValue()).getLong();
+				if (id == TOMBSTONE) {
+					deleted.add(name);
+				} else {
+					map.put(name, id);
+				}
+			}
 		}
 		return map;
 	}
 
 	/**
-	 * the object name is updated or deleted.
-	 * 
-	 * @param key
-	 * @return
+	 * list a page of the names with the prefix after startAfter, in the byte
+	 * order of their UTF-8 bytes. only the first maxKeys + 1 entries of the
+	 * range in each memory map are read, tombstones included; when a map has
+	 * more, the page ends at the last of them and may be shorter than maxKeys
+	 * if some were tombstones.
+	 *
+	 * @param prefix
+	 *            null or empty to list all the names
+	 * @param startAfter
+	 *            null to list from the first name
+	 * @param maxKeys
+	 *            names in a page, at least 1
+	 * @return a page and the startAfter of the next one
+	 * @throws IOException
 	 */
-	private boolean isChanged(byte[] key, byte[] value, HosBloomFilter hosBloomFilter) {
-		String changedKey = new String(key, Charset.forName("UTF-8"));
-		if (!hosBloomFilter.contain(changedKey)) {
-			deletedIds.add(value);
-			return true;
-		} else if (memMap.contains(changedKey)) {
-			return true;
-		} else {
+	public ObjectListing list(String prefix, String startAfter, int maxKeys)
+			throws IOException {
+		return list(prefix, startAfter, false, maxKeys);
+	}
+
+	/**
+	 * list a page of the names with the prefix from start
+	 *
+	 * @param start
+	 *            null to list from the first name
+	 * @param inclusive
+	 *            true to list start itself if it has the prefix
+	 */
+	ObjectListing list(String prefix, String start, boolean inclusive,
+			int maxKeys) throws IOException {
+		byte[] prefixKey = toKey(prefix == null ? "" : prefix);
+		byte[] startKey = start == null ? null : toKey(start);
+		ObjectListing listing = null;
+		while (listing == null) {
+			listing = list(prefixKey, startKey, inclusive, Math.max(1, maxKeys));
+		}
+		return listing;
+	}
+
+	/**
+	 * @return true if the key is before the start of a listing
+	 */
+	private static boolean beforeStart(byte[] key, byte[] start,
+			boolean inclusive) {
+		if (start == null) {
 			return false;
 		}
+		int c = NameIndex.BYTEORDER.compare(key, start);
+		return c < 0 || (c == 0 && !inclusive);
 	}
 
-	public void append(TreeSet<String> deletedObjs) throws IOException {
-		long start = System.currentTimeMillis();
-		reader.close();
-		File index = new File(dir, HosMetaData.INDEXFILE);
-		HosWriter writer = Hos.append(index);
-		if(deletedObjs.size() != 0) {
-			for(String obj: deletedObjs) {
-				writer.delete(obj);
+	/**
+	 * @return null if a merge deleted a segment before it was opened
+	 */
+	private ObjectListing list(byte[] prefix, byte[] start, boolean inclusive,
+			int maxKeys) throws IOException {
+		// newest first: memMap, flushingMap and the segments. the segments are
+		// read last, so a name flushed meanwhile is found in them
+		List<NameIndex.Cursor> cursors = new ArrayList<NameIndex.Cursor>();
+		byte[] bound = null;
+		TreeMap<byte[], byte[]> mem = memRange(memMap, memDeleted, prefix,
+				start, inclusive, maxKeys + 1);
+		if (mem.size() > maxKeys) {
+			bound = mem.lastKey();
+		}
+		cursors.add(NameIndex.of(mem));
+		NavigableMap<String, Long> flushing = flushingMap;
+		NavigableSet<String> flushingDel = flushingDeleted;
+		if (flushing != null) {
+			TreeMap<byte[], byte[]> range = memRange(flushing, flushingDel,
+					prefix, start, inclusive, maxKeys + 1);
+			if (range.size() > maxKeys
+					&& (bound == null || NameIndex.BYTEORDER.compare(range
+							.lastKey(), bound) < 0)) {
+				bound = range.lastKey();
 			}
+			cursors.add(NameIndex.of(range));
 		}
-		System.out.println("memMap size " + memMap.size());
-		//flush memory data to hos.spl
-		putAll(memMap, writer);
-		memMap.clear();
-		//writer.flush();
-		writer.writeHash();
-		writer.close();
+		byte[] from = prefix;
+		if (start != null && NameIndex.BYTEORDER.compare(start, prefix) > 0) {
+			from = start;
+		}
+		List<String> names = new ArrayList<String>();
+		List<Long> ids = new ArrayList<Long>();
+		String token = null;
+		List<Segment> current = segments;
 		try {
-			reader = Hos.open(index);
-		} catch (IOException e) {
-			e.printStackTrace();
+			for (Segment segment : current) {
+				try {
+					cursors.add(segment.scan(from));
+				} catch (IOException e) {
+					if (current == segments) {
+						throw e;
+					}
+					return null;
+				}
+			}
+			Merge merge = new Merge(cursors);
+			boolean full = false;
+			while (merge.next(null)) {
+				byte[] key = merge.key();
+				if (bound != null && NameIndex.BYTEORDER.compare(key, bound) > 0) {
+					break;
+				}
+				if (!NameIndex.startsWith(key, prefix)) {
+					break;
+				}
+				if (beforeStart(key, start, inclusive)) {
+					continue;
+				}
+				long id = toId(merge.value());
+				if (id == TOMBSTONE) {
+					continue;
+				}
+				if (names.size() == maxKeys) {
+					token = names.get(names.size() - 1);
+					full = true;
+					break;
+				}
+				names.add(toName(key));
+				ids.add(id);
+			}
+			if (!full && bound != null) {
+				// a memory map has entries after bound which were not read
+				token = toName(bound);
+			}
+		} finally {
+			for (NameIndex.Cursor cursor : cursors) {
+				cursor.close();
+			}
+		}
+		long[] idArray = new long[ids.size()];
+		for (int i = 0; i < idArray.length; i++) {
+			idArray[i] = ids.get(i);
 		}
-		LOG.info("flush memory data to hos.spl using " + 
-		(System.currentTimeMillis() - start) + " ms");
+		return new ObjectListing(names.toArray(new String[names.size()]),
+				idArray, token);
 	}
-	
-	
-	public void compact(HosBloomFilter hosBloomFilter) throws IOException {
-		if ( memMap.size() != 0){
-			this.compact1(hosBloomFilter);
+
+	/**
+	 * @return the first limit names of a memory map and its deletes with the
+	 *         prefix from start, deletes as tombstones
+	 */
+	private static TreeMap<byte[], byte[]> memRange(
+			NavigableMap<String, Long> map, NavigableSet<String> deleted,
+			byte[] prefix, byte[] start, boolean inclusive, int limit) {
+		TreeMap<byte[], byte[]> range = new TreeMap<byte[], byte[]>(
+				NameIndex.BYTEORDER);
+		String from = toName(prefix);
+		boolean fromInclusive = true;
+		if (start != null && NameIndex.BYTEORDER.compare(start, prefix) >= 0) {
+			from = toName(start);
+			fromInclusive = inclusive;
+		}
+		// each map gives at most limit names, the first limit of both are
+		// kept
+		int n = 0;
+		for (String name : deleted.tailSet(from, fromInclusive)) {
+			if (!addInRange(range, toKey(name), TOMBSTONE, prefix, limit)
+					|| ++n >= limit) {
+				break;
+			}
 		}
+		// a name put again after its delete is in both, the put wins
+		n = 0;
+		for (Map.Entry<String, Long> entry : map.tailMap(from, fromInclusive)
+				.entrySet()) {
+			if (!addInRange(range, toKey(entry.getKey()), entry.getValue(),
+					prefix, limit) || ++n >= limit) {
+				break;
+			}
+		}
+		return range;
 	}
-	
-	private void compact1(HosBloomFilter hosBloomFilter) throws IOException {
-		File tmp = new File("tmp");
-		if (!tmp.exists()) {
-			boolean success = tmp.mkdirs();
-			if (!success)
-				throw new IOException("Could not create log directory "
-						+ tmp.getAbsolutePath());
-		}
-		File index = new File(tmp, HosMetaData.INDEXFILE);
-		HosWriter writer = Hos.createNew(index, CompressionType.SNAPPY,
-				BLOCKSIZE);
-		for (HosReader.Entry entry : reader) {
-			byte[] key = entry.getKey();
-			byte[] value = entry.getValue();
-			if (!isChanged(key, value, hosBloomFilter)) {
-				writer.put(key, value);
-			}
-		}
-		// flush in memory data to external memory.
-		this.putAll(memMap, writer);
-		reader.close();
-		writer.flush();
-		writer.writeHash();
-		writer.close();
-		recover(tmp);
-		saveDeletedIds();
-	}
-
-
-	private void recover(File tmp) throws IOException {
-		// delete original file
-		FileUtil.deleteOriginalFile(dir, HosMetaData.INDEXFILE,
-				HosMetaData.DATAFILE);
-		// temp file convert to dir.
-		FileUtil.copyFile(new File(tmp,HosMetaData.INDEXFILE), 
-				new File(dir, HosMetaData.INDEXFILE));
-		FileUtil.copyFile(new File(tmp,HosMetaData.DATAFILE), 
-				new File(dir, HosMetaData.DATAFILE));
-		FileUtil.deleteFile(tmp);
-	}
-
-	private void saveDeletedIds() throws IOException {
-		byte[] bigArray = ByteUtil.concatenateByteArrays(deletedIds);
-		FileUtil.appendBytesToFile(new File(dir, HosMetaData.IDSFILE), bigArray);
+
+	/**
+	 * @return false if the key is past the prefix
+	 */
+	private static boolean addInRange(TreeMap<byte[], byte[]> range,
+			byte[] key, long id, byte[] prefix, int limit) {
+		if (!NameIndex.startsWith(key, prefix)) {
+			return false;
+		}
+		range.put(key, toValue(id));
+		if (range.size() > limit) {
+			range.pollLastEntry();
+		}
+		return true;
+	}
+
+	private static String toName(byte[] key) {
+		return new String(key, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * swap memMap for an empty one, so that writers go on while the swapped
+	 * map is flushed. lookups consult the swapped map until the flush ends.
+	 */
+	private void swapMemMap() {
+		memLock.writeLock().lock();
+		try {
+			flushingMap = memMap;
+			flushingDeleted = memDeleted;
+			flushingInline = memInline;
+			memMap = newMemMap();
+			memDeleted = newDeletedSet();
+			memInline = new ConcurrentHashMap<String, byte[]>();
+			memInlineBytes.set(0);
+		} finally {
+			memLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * drop the flushed memory map once its segment is live
+	 */
+	private void clearFlushingMap() {
+		memLock.writeLock().lock();
+		try {
+			flushingMap = null;
+			flushingDeleted = null;
+			flushingInline = null;
+		} finally {
+			memLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * flush memory data to a new segment. a name both put and deleted in the
+	 * memory map was put again after the delete, a delete after the put
+	 * removes it from memMap.
+	 * 
+	 * @throws IOException
+	 */
+	public void append() throws IOException {
+		synchronized (flushLock) {
+			long start = System.currentTimeMillis();
+			swapMemMap();
+			Map<String, Long> flushing = flushingMap;
+			Set<String> deleted = flushingDeleted;
+			Map<String, byte[]> inline = flushingInline;
+			LOG.info("memMap size " + flushing.size() + ", deleted "
+					+ deleted.size());
+			if (flushing.isEmpty() && deleted.isEmpty()) {
+				clearFlushingMap();
+				return;
+			}
+			TreeMap<byte[], byte[]> sorted = new TreeMap<byte[], byte[]>(
+					NameIndex.BYTEORDER);
+			for (Map.Entry<String, Long> entry : flushing.entrySet()) {
+				sorted.put(toKey(entry.getKey()), toValue(entry.getValue(),
+						inline.get(entry.getKey())));
+			}
+			for (String name : deleted) {
+				if (!flushing.containsKey(name)) {
+					sorted.put(toKey(name), toValue(TOMBSTONE));
+				}
+			}
+			Segment.Builder builder = new Segment.Builder(dir,
+					newSegmentName(), sorted.size());
+			for (Map.Entry<byte[], byte[]> entry : sorted.entrySet()) {
+				builder.put(entry.getKey(), entry.getValue());
+			}
+			Segment segment = builder.build();
+			List<Segment> live = new ArrayList<Segment>(segments.size() + 1);
+			live.add(segment);
+			live.addAll(segments);
+			writeManifest(live);
+			segments = Collections.unmodifiableList(live);
+			clearFlushingMap();
+			LOG.info("flush memory data to " + segment.getName() + " using "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	private static int tier(long size) {
+		int tier = 0;
+		for (long bound = TIERSIZE; size > bound; bound *= MERGEFACTOR) {
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * @return the first run of MERGEFACTOR or more adjacent segments of the
+	 *         same tier as {start, end}, null if there is none
+	 */
+	private int[] findMergeRun(List<Segment> live) {
+		int start = 0;
+		for (int i = 1; i <= live.size(); i++) {
+			if (i == live.size()
+					|| tier(live.get(i).size()) != tier(live.get(start).size())) {
+				if (i - start >= MERGEFACTOR) {
+					return new int[] { start, i };
+				}
+				start = i;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if a tier has enough segments to merge
+	 */
+	public boolean needCompact() {
+		return findMergeRun(segments) != null;
+	}
+
+	/**
+	 * merge the first run of adjacent segments of the same tier into one
+	 * segment. lookups go on with the old segments until the merged one is
+	 * in place.
+	 * 
+	 * @return the ids of the deleted or replaced names for recycle use
+	 * @throws IOException
+	 */
+	public List<Long> compact() throws IOException {
+		List<Long> recycled = new ArrayList<Long>();
+		synchronized (flushLock) {
+			List<Segment> live = segments;
+			int[] run = findMergeRun(live);
+			if (run == null) {
+				return recycled;
+			}
+			long start = System.currentTimeMillis();
+			List<Segment> merging = live.subList(run[0], run[1]);
+			// tombstones shadow nothing when the oldest segment is merged
+			boolean oldest = run[1] == live.size();
+			long expected = 0;
+			for (Segment segment : merging) {
+				expected += segment.size();
+			}
+			Segment.Builder builder = new Segment.Builder(dir,
+					newSegmentName(), expected);
+			List<NameIndex.Cursor> cursors = new ArrayList<NameIndex.Cursor>();
+			try {
+				for (Segment segment : merging) {
+					cursors.add(segment.scan(null));
+				}
+				Merge merge = new Merge(cursors);
+				List<byte[]> shadowed = new ArrayList<byte[]>();
+				while (merge.next(shadowed)) {
+					for (byte[] value : shadowed) {
+						if (toId(value) != TOMBSTONE) {
+							recycled.add(toId(value));
+						}
+					}
+					shadowed.clear();
+					if (toId(merge.value()) != TOMBSTONE || !oldest) {
+						builder.put(merge.key(), merge.value());
+					}
+				}
+			} finally {
+				for (NameIndex.Cursor cursor : cursors) {
+					cursor.close();
+				}
+			}
+			Segment merged = builder.build();
+			List<Segment> newLive = new ArrayList<Segment>(live.size());
+			newLive.addAll(live.subList(0, run[0]));
+			newLive.add(merged);
+			newLive.addAll(live.subList(run[1], live.size()));
+			writeManifest(newLive);
+			segments = Collections.unmodifiableList(newLive);
+			for (Segment segment : merging) {
+				segment.delete();
+			}
+			LOG.info("merge " + merging.size() + " segments to "
+					+ merged.getName() + " using "
+					+ (System.currentTimeMillis() - start) + " ms, recycle "
+					+ recycled.size() + " ids");
+		}
+		return recycled;
+	}
+
+	/**
+	 * reads sorted cursors side by side in name order. the cursors are given
+	 * newest first, a name in several of them yields the newest value.
+	 */
+	private static final class Merge {
+		private final List<NameIndex.Cursor> cursors;
+
+		// indexes of the cursors not at the end, by key and then age
+		private final PriorityQueue<Integer> queue;
+
+		private byte[] key;
+
+		private byte[] value;
+
+		Merge(final List<NameIndex.Cursor> cursors) {
+			this.cursors = cursors;
+			this.queue = new PriorityQueue<Integer>(Math.max(1, cursors
+					.size()), new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = NameIndex.BYTEORDER.compare(cursors.get(a).key(),
+							cursors.get(b).key());
+					return c != 0 ? c : a - b;
+				}
+			});
+			for (int i = 0; i < cursors.size(); i++) {
+				if (cursors.get(i).key() != null) {
+					queue.add(i);
+				}
+			}
+		}
+
+		/**
+		 * move to the next name
+		 *
+		 * @param shadowed
+		 *            gets the older values of the name, may be null
+		 * @return false at the end
+		 * @throws IOException
+		 */
+		boolean next(List<byte[]> shadowed) throws IOException {
+			if (queue.isEmpty()) {
+				return false;
+			}
+			int i = queue.poll();
+			key = cursors.get(i).key();
+			value = cursors.get(i).value();
+			advance(i);
+			while (!queue.isEmpty()
+					&& NameIndex.BYTEORDER.compare(cursors.get(queue.peek())
+							.key(), key) == 0) {
+				int j = queue.poll();
+				if (shadowed != null) {
+					shadowed.add(cursors.get(j).value());
+				}
+				advance(j);
+			}
+			return true;
+		}
+
+		private void advance(int i) throws IOException {
+			cursors.get(i).advance();
+			if (cursors.get(i).key() != null) {
+				queue.add(i);
+			}
+		}
+
+		byte[] key() {
+			return key;
+		}
+
+		byte[] value() {
+			return value;
+		}
+	}
+
+	/**
+	 * close the segments, the memory map must be flushed before.
+	 */
+	public void close() {
+		synchronized (flushLock) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments = Collections.emptyList();
+		}
 	}
 	
 }
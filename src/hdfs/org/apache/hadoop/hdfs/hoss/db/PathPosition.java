@@ -25,32 +25,77 @@ import org.apache.hadoop.hdfs.hoss.db.PathPosition;
 import org.apache.hadoop.io.WritableComparable;
 
 
+/**
+ * where the data of an object is: the numeric id of the hdfs file, the offset
+ * in it (0 if the file holds only this object, INLINE if the bytes are kept in
+ * the meta data) and the length of the object (-1 if not known).
+ */
 public class PathPosition implements WritableComparable<PathPosition>{
 	
-	private String path;
+	// width of the zero padded file name of a path id
+	private static final int PATHWIDTH = 10;
+
+	// offset of an object whose bytes are inlined in the meta data
+	public static final long INLINE = -2L;
+
+	// offset of a deleted object whose id is not recycled yet
+	public static final long DELETED = -3L;
+
+	private long pathId;
 	private long offset;
+	private long length;
 	
 	public PathPosition() {
-		path = "";
+		pathId = -1;
 		offset = -1;
+		length = -1;
 	}
 	
-	public PathPosition(String path, long offset) {
+	public PathPosition(long pathId, long offset) {
+		this(pathId, offset, -1);
+	}
+
+	public PathPosition(long pathId, long offset, long length) {
 		super();
-		this.path = path;
+		this.pathId = pathId;
 		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return the zero padded file name of the path id
+	 */
+	public static String toPath(long pathId) {
+		char[] path = new char[PATHWIDTH];
+		long rest = pathId;
+		for (int i = PATHWIDTH - 1; i >= 0; i--) {
+			path[i] = (char) ('0' + rest % 10);
+			rest /= 10;
+		}
+		if (rest != 0 || pathId < 0) {
+			return Long.toString(pathId);
+		}
+		return new String(path);
 	}
+
+	/**
+	 * @return the path id
+	 */
+	public long getPathId() {
+		return pathId;
+	}
+
 	/**
 	 * @return the path
 	 */
 	public String getPath() {
-		return path;
+		return toPath(pathId);
 	}
 	/**
-	 * @param path the path to set
+	 * @param pathId the path id to set
 	 */
-	public void setPath(String path) {
-		this.path = path;
+	public void setPathId(long pathId) {
+		this.pathId = pathId;
 	}
 	/**
 	 * @return the offset
@@ -65,48 +110,78 @@ public class PathPosition implements WritableComparable<PathPosition>{
 	public void setOffset(long offset) {
 		this.offset = offset;
 	}
+
+	/**
+	 * @return true if the bytes of the object are inlined in the meta data
+	 */
+	public boolean isInline() {
+		return offset == INLINE;
+	}
+
+	/**
+	 * @return true if the object is deleted and its id not allocated again
+	 */
+	public boolean isDeleted() {
+		return offset == DELETED;
+	}
+
+	/**
+	 * @return the length of the object, -1 if not known
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @param length the length to set
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
 	
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		this.path = in.readUTF();
+		this.pathId = in.readLong();
 		this.offset = in.readLong();
+		this.length = in.readLong();
 	}
 	
 	@Override
 	public void write(DataOutput out) throws IOException {
-		out.writeUTF(path);
+		out.writeLong(pathId);
 		out.writeLong(offset);
+		out.writeLong(length);
 	}
 	
 	
 	@Override
 	public int hashCode() {
-		return (int) (path.hashCode() + offset % 163);
+		return (int) (pathId * 31 + offset % 163);
 	}
 
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof PathPosition) {
 			PathPosition pp = (PathPosition) obj;
-			return this.path.equals(pp.getPath())
-					&& new Long(offset).equals(pp.getOffset());
+			return pathId == pp.getPathId() && offset == pp.getOffset();
 		}
 		return false;
 	}
 
 	@Override
 	public String toString() {
-		return path + ":" + offset;
+		return getPath() + ":" + offset;
 	}
 
 	@Override
 	public int compareTo(PathPosition pp) {
-		int cmp = path.compareTo(pp.getPath());
-		if (cmp != 0) {
-			return cmp;
+		if (pathId != pp.getPathId()) {
+			return pathId < pp.getPathId() ? -1 : 1;
 		}
-		return new Long(offset).compareTo(pp.getOffset());
-
+		if (offset != pp.getOffset()) {
+			return offset < pp.getOffset() ? -1 : 1;
+		}
+		return 0;
 	}
 
 }
@@ -30,71 +30,114 @@ import org.apache.hadoop.hdfs.hoss.db.FileBlockStore.WriteBuffer;
 import org.apache.hadoop.hdfs.hoss.util.StringSerializer;
 
 
-
+/**
+ * path id, offset and length of each object, a 24 bytes record indexed by
+ * the object id. records are read and written without lock, a read never
+ * sees a record half written.
+ */
 public class PathStore {
 	
 	private static final Log LOG = LogFactory.getLog(PathStore.class);
 	
 	private FileBlockStore fbs;
 	
-	private final static int PATHLENGTH = 32;
-	
-	private final static int PATHWIDTH = 10;
-	
-	//private final static int BLOCKSIZE = 4 * 1024; // 4KB
-	
-	//private final static int PATHCNT = BLOCKSIZE / PATHLENGTH;
-	
-	//private volatile int numBlock;
+	private final static int PATHLENGTH = 24;
 	
+	// records of the old pathposition file: a 10 chars path and the offset
+	private final static int LEGACYPATHLENGTH = 32;
+
+	private final static int LEGACYPATHWIDTH = 10;
 	
 	public PathStore() {
-		File pathFile = new File(new File(HosMetaData.HOSSDIR), HosMetaData.PATHFILE);
+		this(new File(HosMetaData.HOSSDIR));
+	}
+
+	PathStore(File dir) {
+		File pathFile = new File(dir, HosMetaData.PATHFILE);
+		File legacyFile = new File(dir, HosMetaData.LEGACYPATHFILE);
+		if (legacyFile.exists() && !pathFile.exists()) {
+			migrate(legacyFile, pathFile);
+		}
 		fbs = new FileBlockStore(pathFile, PATHLENGTH, true);
 		fbs.enableMmap();
+		fbs.enableConcurrentAccess();
 		fbs.open();
 	}
 	
-	private String getFixedPath(long id) {
-		return fixedLengthString(id, PATHWIDTH);
-	}
-	
-	public static String fixedLengthString(long num, int width) {
-	    return String.format("%0" + width + "d", num);
-	}
-
 	/**
-	 * 
-	 * @param pathId
-	 * @param objId:the index-th block in fileblockstore
-	 * @param offset
-	 * @return
+	 * convert the records of the old pathposition file with string paths to
+	 * numeric records. the new file is written aside and renamed, the old
+	 * file is removed last.
 	 */
-	public PathPosition put(long objId, long pathId, long offset) {
-		String path = getFixedPath(pathId);
+	private static void migrate(File legacyFile, File pathFile) {
+		long start = System.currentTimeMillis();
+		File tmp = new File(pathFile.getParentFile(), pathFile.getName()
+				+ ".tmp");
+		tmp.delete();
+		FileBlockStore legacy = new FileBlockStore(legacyFile,
+				LEGACYPATHLENGTH, false);
+		FileBlockStore store = new FileBlockStore(tmp, PATHLENGTH, false);
+		legacy.open(true);
+		store.open();
+		long records = legacy.numBlocks();
+		int migrated = 0;
+		for (long i = 0; i < records; i++) {
+			ByteBuffer buf = legacy.get(i);
+			if (buf == null) {
+				continue;
+			}
+			// never written
+			if (buf.get(buf.position()) != 0) {
+				String path = StringSerializer.fromBufferToString(buf,
+						LEGACYPATHWIDTH);
+				long offset = buf.getLong();
+				put(store, i, Long.parseLong(path), offset, -1L);
+				migrated++;
+			}
+			legacy.release(buf);
+		}
+		store.sync();
+		store.close();
+		legacy.close();
+		if (tmp.renameTo(pathFile)) {
+			legacyFile.delete();
+			LOG.info("migrate " + migrated + " path positions of "
+					+ legacyFile + " using "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} else {
+			LOG.error("migrate " + legacyFile + " fail, could not rename "
+					+ tmp);
+		}
+	}
+
+	private static void put(FileBlockStore store, long objId, long pathId,
+			long offset, long length) {
 		//set the block index in the fileblockstore
-		final WriteBuffer wbuf = fbs.set((int)objId);
+		final WriteBuffer wbuf = store.set(objId);
 		final ByteBuffer buf = wbuf.buf();
-		StringSerializer.fromStringToBuffer(buf, path, PATHWIDTH);
+		buf.putLong(pathId);
 		buf.putLong(offset);
+		buf.putLong(length);
 		buf.flip();
 		wbuf.save();
-		PathPosition pp = new PathPosition(path, offset);
-		return pp;
 	}
-	
+
 	/**
-	 * put path and offset to file
-	 * @param objId
+	 * 
+	 * @param pathId
+	 * @param objId:the index-th block in fileblockstore
 	 * @param offset
+	 * @param length
 	 * @return
 	 */
-	private PathPosition put(long objId, long offset) {
-		return put(objId, objId, offset);//objID+pathID+offset
+	public PathPosition put(long objId, long pathId,
+			long offset, long length) {
+		fbs.writeLongs(objId, new long[] { pathId, offset, length });
+		return new PathPosition(pathId, offset, length);
 	}
 	
 	public PathPosition put(long objId) {
-		return put(objId, 0);
+		return put(objId, objId, 0, -1L);//objID+pathID+offset
 	}
 	
 	/**
@@ -103,21 +146,19 @@ public class PathStore {
 	 * @return
 	 */
 	public PathPosition get(long objId) {
-		final ByteBuffer buf = fbs.get((int)objId);
-		if (buf == null) {
+		final long[] record = new long[PATHLENGTH / 8];
+		if (!fbs.readLongs(objId, record)) {
 			LOG.error("Error trying read object " + objId);
+			return null;
 		}
-		String path = StringSerializer.fromBufferToString(buf, PATHWIDTH);
-		long offset = buf.getLong();
-		PathPosition pp = new PathPosition(path, offset);
-		return pp;
+		return new PathPosition(record[0], record[1], record[2]);
 	}
 	
-	public void sync() {
+	public synchronized void sync() {
 		fbs.sync();
 	}
 	
-	public void close() {
+	public synchronized void close() {
 		fbs.sync();
 		fbs.close();
 	}
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.hoss.bloomfilter.BloomFilter;
+import org.apache.hadoop.hdfs.hoss.bloomfilter.BucketSize;
+import org.apache.hadoop.hdfs.hoss.meta.CompressionType;
+import org.apache.hadoop.hdfs.hoss.meta.Hos;
+import org.apache.hadoop.hdfs.hoss.meta.HosReader;
+import org.apache.hadoop.hdfs.hoss.meta.HosWriter;
+import org.apache.hadoop.hdfs.hoss.meta.extra.ThreadLocalHosReader;
+
+/**
+ * an immutable sorted run of ObjectsMap: a hos log and index pair
+ * (name.spl, name.spi), a bloom filter of its keys (name.bf) and the keys in
+ * byte order (name.names) for scans.
+ */
+final class Segment implements Iterable<HosReader.Entry> {
+	private static final Log LOG = LogFactory.getLog(Segment.class);
+
+	private static final int BLOCKSIZE = 4 * 1024;
+
+	private static final double FALSEPOSITIVERATE = 0.01;
+
+	private final File dir;
+
+	private final String name;
+
+	private final HosReader reader;
+
+	private final BloomFilter bloomFilter;
+
+	private final NameIndex nameIndex;
+
+	private Segment(File dir, String name, HosReader reader,
+			BloomFilter bloomFilter, NameIndex nameIndex) {
+		this.dir = dir;
+		this.name = name;
+		this.reader = reader;
+		this.bloomFilter = bloomFilter;
+		this.nameIndex = nameIndex;
+	}
+
+	/**
+	 * open a segment, the bloom filter and the name index are rebuilt from
+	 * the keys if they are missing.
+	 *
+	 * @param dir
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	static Segment open(File dir, String name) throws IOException {
+		HosReader reader = new ThreadLocalHosReader(Hos.open(indexFile(dir,
+				name)));
+		File bf = bloomFile(dir, name);
+		BloomFilter bloomFilter = null;
+		if (bf.exists()) {
+			bloomFilter = BloomFilter.openExisting(bf);
+		} else {
+			LOG.info("rebuild bloom filter of segment " + name);
+			bloomFilter = newBloomFilter(bf, reader.getIndexHeader()
+					.getNumEntries());
+			for (HosReader.Entry entry : reader) {
+				bloomFilter.add(entry.getKey());
+			}
+			bloomFilter.flush();
+		}
+		File names = namesFile(dir, name);
+		if (!names.exists()) {
+			rebuildNameIndex(reader, names);
+		}
+		return new Segment(dir, name, reader, bloomFilter, NameIndex
+				.open(names));
+	}
+
+	/**
+	 * sort the keys of a segment written before it had a name index
+	 */
+	private static void rebuildNameIndex(HosReader reader, File names)
+			throws IOException {
+		LOG.info("rebuild name index " + names);
+		TreeMap<byte[], byte[]> sorted = new TreeMap<byte[], byte[]>(
+				NameIndex.BYTEORDER);
+		for (HosReader.Entry entry : reader) {
+			// the iterator reuses the key buffer
+			byte[] key = entry.getKey();
+			sorted.put(Arrays.copyOf(key, key.length), entry.getValue());
+		}
+		File tmp = new File(names.getPath() + ".tmp");
+		NameIndex.Writer writer = new NameIndex.Writer(tmp);
+		for (Map.Entry<byte[], byte[]> entry : sorted.entrySet()) {
+			writer.append(entry.getKey(), entry.getValue());
+		}
+		writer.close();
+		if (!tmp.renameTo(names)) {
+			throw new IOException("rename " + tmp + " to " + names + " fail");
+		}
+	}
+
+	private static BloomFilter newBloomFilter(File bf, long entries)
+			throws IOException {
+		int items = (int) Math.min(Integer.MAX_VALUE / 16, Math.max(entries,
+				1));
+		return new BloomFilter.NewBuilder(bf, items, FALSEPOSITIVERATE)
+				.bucketSize(BucketSize.ONE).force(true).build();
+	}
+
+	static File indexFile(File dir, String name) {
+		return Hos.getIndexFile(new File(dir, name));
+	}
+
+	static File bloomFile(File dir, String name) {
+		return new File(dir, name + ".bf");
+	}
+
+	static File namesFile(File dir, String name) {
+		return new File(dir, name + ".names");
+	}
+
+	/**
+	 * @return the value of the key, null if the key is not in this segment
+	 * @throws IOException
+	 */
+	byte[] get(byte[] key) throws IOException {
+		if (!bloomFilter.contains(key)) {
+			return null;
+		}
+		return reader.getAsByteArray(key);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	long size() {
+		return reader.getIndexHeader().getNumEntries();
+	}
+
+	@Override
+	public Iterator<HosReader.Entry> iterator() {
+		return reader.iterator();
+	}
+
+	/**
+	 * @param from
+	 *            null to scan from the first key
+	 * @return a scan of the keys not less than from, in byte order
+	 * @throws IOException
+	 */
+	NameIndex.Cursor scan(byte[] from) throws IOException {
+		return nameIndex.seek(from);
+	}
+
+	void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			LOG.warn("close segment " + name + " fail", e);
+		}
+		try {
+			bloomFilter.close();
+		} catch (IOException e) {
+			LOG.warn("close bloom filter of segment " + name + " fail", e);
+		}
+	}
+
+	/**
+	 * close the segment and delete its files
+	 */
+	void delete() {
+		close();
+		File index = indexFile(dir, name);
+		index.delete();
+		Hos.getLogFile(index).delete();
+		bloomFile(dir, name).delete();
+		namesFile(dir, name).delete();
+	}
+
+	/**
+	 * writes a new segment, keys must be put in ascending byte order.
+	 */
+	static final class Builder {
+		private final File dir;
+
+		private final String name;
+
+		private final HosWriter writer;
+
+		private final BloomFilter bloomFilter;
+
+		private final NameIndex.Writer names;
+
+		Builder(File dir, String name, long expectedEntries)
+				throws IOException {
+			this.dir = dir;
+			this.name = name;
+			this.writer = Hos.createNew(indexFile(dir, name),
+					CompressionType.SNAPPY, BLOCKSIZE);
+			this.bloomFilter = newBloomFilter(bloomFile(dir, name),
+					expectedEntries);
+			this.names = new NameIndex.Writer(namesFile(dir, name));
+		}
+
+		void put(byte[] key, byte[] value) throws IOException {
+			names.append(key, value);
+			writer.put(key, value);
+			bloomFilter.add(key);
+		}
+
+		/**
+		 * write the index and open the segment for lookups
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		Segment build() throws IOException {
+			writer.flush();
+			writer.writeHash();
+			writer.close();
+			bloomFilter.close();
+			names.close();
+			return open(dir, name);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.hoss.util.ByteUtil;
+import org.apache.hadoop.hdfs.hoss.util.FileUtil;
+
+/**
+ * the ids of the small objects which are closed but not combined yet, the
+ * candidates of the next combine. stored as longs.
+ */
+class SmallObjectStore {
+	private static final Log LOG = LogFactory.getLog(SmallObjectStore.class);
+
+	private final File file;
+
+	private final TreeSet<Long> ids = new TreeSet<Long>();
+
+	SmallObjectStore() {
+		file = new File(new File(HosMetaData.HOSSDIR), HosMetaData.SMALLFILE);
+		if (file.exists()) {
+			try {
+				for (long id : ByteUtil.toLongArray(FileUtil
+						.readBytesFromFile(file))) {
+					ids.add(id);
+				}
+			} catch (IOException e) {
+				LOG.error("read small object ids fail", e);
+			}
+		}
+	}
+
+	synchronized boolean exists() {
+		return file.exists();
+	}
+
+	synchronized void add(long objId) {
+		ids.add(objId);
+	}
+
+	synchronized void remove(long objId) {
+		ids.remove(objId);
+	}
+
+	synchronized void removeAll(List<Long> objIds) {
+		for (Long id : objIds) {
+			ids.remove(id);
+		}
+	}
+
+	synchronized List<Long> list() {
+		return new ArrayList<Long>(ids);
+	}
+
+	synchronized int size() {
+		return ids.size();
+	}
+
+	synchronized void save() throws IOException {
+		long[] array = new long[ids.size()];
+		int i = 0;
+		for (Long id : ids) {
+			array[i++] = id;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileUtil.writeBytesToFile(tmp, ByteUtil.toByteArray(array));
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("rename " + tmp + " to " + file + " fail");
+			}
+		}
+	}
+}
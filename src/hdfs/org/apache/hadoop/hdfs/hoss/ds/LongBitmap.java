@@ -0,0 +1,851 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.ds;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compressed bitmap of non negative longs, in the manner of roaring bitmaps.
+ * The values are partitioned by their high 48 bits, the low 16 bits of the
+ * values of a partition are kept in a sorted array, a bitmap or a list of
+ * runs, whichever is the smallest.
+ *
+ * The partitions changed since the last {@link #writeDirty(DataOutput)} are
+ * tracked, so that the bitmap can be persisted incrementally as a log of
+ * partitions, which is replayed by {@link #readPartition(DataInput)}.
+ *
+ * This class is NOT Thread-Safe
+ */
+public class LongBitmap {
+
+	private static final int PARTITIONBITS = 16;
+
+	private static final int PARTITIONSIZE = 1 << PARTITIONBITS;
+
+	private static final int LOWMASK = PARTITIONSIZE - 1;
+
+	/**
+	 * Type of a partition record of an empty partition
+	 */
+	private static final byte EMPTY = 0;
+
+	private static final byte ARRAY = 1;
+
+	private static final byte BITMAP = 2;
+
+	private static final byte RUN = 3;
+
+	/**
+	 * Most values of an array container
+	 */
+	private static final int ARRAYMAX = 4096;
+
+	/**
+	 * Most runs of a run container, as large as a bitmap container
+	 */
+	private static final int RUNMAX = 2048;
+
+	private final TreeMap<Long, Container> partitions = new TreeMap<Long, Container>();
+
+	private final TreeSet<Long> dirty = new TreeSet<Long>();
+
+	private long cardinality = 0;
+
+	/**
+	 * Add a value
+	 *
+	 * @param value
+	 * @return false if the value was present
+	 */
+	public boolean add(final long value) {
+		check(value);
+		final Long key = value >>> PARTITIONBITS;
+		final int low = (int) (value & LOWMASK);
+		Container c = partitions.get(key);
+		if (c == null) {
+			c = new ArrayContainer();
+		} else if (c.contains(low)) {
+			return false;
+		}
+		partitions.put(key, c.add(low));
+		dirty.add(key);
+		cardinality++;
+		return true;
+	}
+
+	/**
+	 * Add the values of a range
+	 *
+	 * @param from
+	 *            first value
+	 * @param to
+	 *            value after the last one
+	 */
+	public void addRange(final long from, final long to) {
+		check(from);
+		if (to <= from) {
+			return;
+		}
+		long value = from;
+		while (value < to) {
+			final Long key = value >>> PARTITIONBITS;
+			final long end = Math.min(to, (key + 1) << PARTITIONBITS);
+			Container c = partitions.get(key);
+			final int before = (c == null ? 0 : c.cardinality());
+			if (c == null) {
+				c = new RunContainer();
+			}
+			c = c.addRange((int) (value & LOWMASK), (int) (end - (key << PARTITIONBITS)));
+			partitions.put(key, c);
+			dirty.add(key);
+			cardinality += c.cardinality() - before;
+			value = end;
+		}
+	}
+
+	/**
+	 * Remove a value
+	 *
+	 * @param value
+	 * @return false if the value was not present
+	 */
+	public boolean remove(final long value) {
+		if (value < 0) {
+			return false;
+		}
+		final Long key = value >>> PARTITIONBITS;
+		final int low = (int) (value & LOWMASK);
+		final Container c = partitions.get(key);
+		if (c == null || !c.contains(low)) {
+			return false;
+		}
+		final Container removed = c.remove(low);
+		if (removed.isEmpty()) {
+			partitions.remove(key);
+		} else {
+			partitions.put(key, removed);
+		}
+		dirty.add(key);
+		cardinality--;
+		return true;
+	}
+
+	/**
+	 * Remove every value
+	 */
+	public void clear() {
+		dirty.addAll(partitions.keySet());
+		partitions.clear();
+		cardinality = 0;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is present
+	 */
+	public boolean contains(final long value) {
+		if (value < 0) {
+			return false;
+		}
+		final Container c = partitions.get(value >>> PARTITIONBITS);
+		return c != null && c.contains((int) (value & LOWMASK));
+	}
+
+	/**
+	 * @return the smallest value, -1 if empty
+	 */
+	public long first() {
+		if (partitions.isEmpty()) {
+			return -1;
+		}
+		final Map.Entry<Long, Container> e = partitions.firstEntry();
+		return (e.getKey() << PARTITIONBITS) | e.getValue().next(0);
+	}
+
+	/**
+	 * Remove the smallest value
+	 *
+	 * @return the smallest value, -1 if empty
+	 */
+	public long pollFirst() {
+		final long first = first();
+		if (first >= 0) {
+			remove(first);
+		}
+		return first;
+	}
+
+	/**
+	 * @param from
+	 * @return the smallest value not less than from, -1 if none
+	 */
+	public long next(final long from) {
+		final long start = Math.max(0, from);
+		final Long key = start >>> PARTITIONBITS;
+		final Container c = partitions.get(key);
+		if (c != null) {
+			final int low = c.next((int) (start & LOWMASK));
+			if (low >= 0) {
+				return (key << PARTITIONBITS) | low;
+			}
+		}
+		final Map.Entry<Long, Container> e = partitions.higherEntry(key);
+		if (e == null) {
+			return -1;
+		}
+		return (e.getKey() << PARTITIONBITS) | e.getValue().next(0);
+	}
+
+	/**
+	 * @return number of values
+	 */
+	public long cardinality() {
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * @return number of partitions changed since the last write
+	 */
+	public int dirtyPartitions() {
+		return dirty.size();
+	}
+
+	/**
+	 * @return bytes written by {@link #writeAll(DataOutput)}
+	 */
+	public long serializedSize() {
+		long size = 0;
+		for (Container c : partitions.values()) {
+			size += 13 + c.serializedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Write the partitions changed since the last write, in the smallest
+	 * representation. A partition emptied is written as an empty record.
+	 *
+	 * @param out
+	 * @return number of partition records written
+	 * @throws IOException
+	 */
+	public int writeDirty(final DataOutput out) throws IOException {
+		int written = 0;
+		for (Long key : dirty) {
+			writePartition(out, key);
+			written++;
+		}
+		dirty.clear();
+		return written;
+	}
+
+	/**
+	 * Write every partition
+	 *
+	 * @param out
+	 * @return number of partition records written
+	 * @throws IOException
+	 */
+	public int writeAll(final DataOutput out) throws IOException {
+		int written = 0;
+		for (Long key : partitions.keySet()) {
+			writePartition(out, key);
+			written++;
+		}
+		dirty.clear();
+		return written;
+	}
+
+	private void writePartition(final DataOutput out, final Long key)
+			throws IOException {
+		out.writeLong(key);
+		Container c = partitions.get(key);
+		if (c == null) {
+			out.writeByte(EMPTY);
+			out.writeInt(0);
+			return;
+		}
+		c = optimize(c);
+		partitions.put(key, c);
+		out.writeByte(c.type());
+		out.writeInt(c.size());
+		c.write(out);
+	}
+
+	/**
+	 * Read a partition record, which replaces the partition
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readPartition(final DataInput in) throws IOException {
+		final Long key = in.readLong();
+		final byte type = in.readByte();
+		final int size = in.readInt();
+		Container c = null;
+		switch (type) {
+		case EMPTY:
+			break;
+		case ARRAY:
+			c = ArrayContainer.read(in, size);
+			break;
+		case BITMAP:
+			c = BitmapContainer.read(in, size);
+			break;
+		case RUN:
+			c = RunContainer.read(in, size);
+			break;
+		default:
+			throw new IOException("unknown partition type " + type);
+		}
+		final Container old = partitions.remove(key);
+		if (old != null) {
+			cardinality -= old.cardinality();
+		}
+		if (c != null && !c.isEmpty()) {
+			partitions.put(key, c);
+			cardinality += c.cardinality();
+		}
+		dirty.add(key);
+	}
+
+	private static void check(final long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value " + value);
+		}
+	}
+
+	/**
+	 * @return the container in its smallest representation
+	 */
+	private static Container optimize(final Container c) {
+		final int card = c.cardinality();
+		final int runs = c.runs();
+		final int arraySize = (card <= ARRAYMAX ? 2 * card : Integer.MAX_VALUE);
+		final int bitmapSize = 8 * (PARTITIONSIZE / 64);
+		final int runSize = 4 * runs;
+		byte type = BITMAP;
+		if (runSize < bitmapSize && runSize <= arraySize) {
+			type = RUN;
+		} else if (arraySize < bitmapSize) {
+			type = ARRAY;
+		}
+		if (type == c.type()) {
+			return c;
+		}
+		switch (type) {
+		case RUN:
+			return RunContainer.of(c);
+		case ARRAY:
+			return ArrayContainer.of(c);
+		default:
+			return BitmapContainer.of(c);
+		}
+	}
+
+	/**
+	 * The low 16 bits of the values of a partition
+	 */
+	private static abstract class Container {
+		/**
+		 * @return this container, or another one holding the values
+		 */
+		abstract Container add(int low);
+
+		abstract Container remove(int low);
+
+		abstract boolean contains(int low);
+
+		/**
+		 * @return the smallest value not less than low, -1 if none
+		 */
+		abstract int next(int low);
+
+		abstract int cardinality();
+
+		abstract boolean isEmpty();
+
+		abstract byte type();
+
+		/**
+		 * @return the size written with the type
+		 */
+		abstract int size();
+
+		abstract int serializedSize();
+
+		abstract void write(DataOutput out) throws IOException;
+
+		/**
+		 * Add the values from low to end, excluded
+		 */
+		Container addRange(final int low, final int end) {
+			Container c = this;
+			for (int v = low; v < end; v++) {
+				c = c.add(v);
+			}
+			return c;
+		}
+
+		/**
+		 * @return number of runs of consecutive values
+		 */
+		int runs() {
+			int runs = 0;
+			int last = -2;
+			for (int v = next(0); v >= 0; v = next(v + 1)) {
+				if (v != last + 1) {
+					runs++;
+				}
+				last = v;
+			}
+			return runs;
+		}
+	}
+
+	private static final class ArrayContainer extends Container {
+		private char[] values = new char[4];
+
+		private int size = 0;
+
+		static ArrayContainer of(final Container c) {
+			final ArrayContainer a = new ArrayContainer();
+			a.values = new char[Math.max(4, c.cardinality())];
+			for (int v = c.next(0); v >= 0; v = c.next(v + 1)) {
+				a.values[a.size++] = (char) v;
+			}
+			return a;
+		}
+
+		static ArrayContainer read(final DataInput in, final int size)
+				throws IOException {
+			final ArrayContainer a = new ArrayContainer();
+			a.values = new char[Math.max(4, size)];
+			for (int i = 0; i < size; i++) {
+				a.values[i] = in.readChar();
+			}
+			a.size = size;
+			return a;
+		}
+
+		@Override
+		Container add(final int low) {
+			int i = Arrays.binarySearch(values, 0, size, (char) low);
+			if (i >= 0) {
+				return this;
+			}
+			if (size >= ARRAYMAX) {
+				return BitmapContainer.of(this).add(low);
+			}
+			i = -i - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAYMAX, size * 2));
+			}
+			System.arraycopy(values, i, values, i + 1, size - i);
+			values[i] = (char) low;
+			size++;
+			return this;
+		}
+
+		@Override
+		Container remove(final int low) {
+			final int i = Arrays.binarySearch(values, 0, size, (char) low);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, size - i - 1);
+				size--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(final int low) {
+			return Arrays.binarySearch(values, 0, size, (char) low) >= 0;
+		}
+
+		@Override
+		int next(final int low) {
+			if (low >= PARTITIONSIZE) {
+				return -1;
+			}
+			int i = Arrays.binarySearch(values, 0, size, (char) low);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			return i < size ? values[i] : -1;
+		}
+
+		@Override
+		int cardinality() {
+			return size;
+		}
+
+		@Override
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		@Override
+		byte type() {
+			return ARRAY;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		int serializedSize() {
+			return 2 * size;
+		}
+
+		@Override
+		void write(final DataOutput out) throws IOException {
+			for (int i = 0; i < size; i++) {
+				out.writeChar(values[i]);
+			}
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+		private final long[] words = new long[PARTITIONSIZE / 64];
+
+		private int cardinality = 0;
+
+		static BitmapContainer of(final Container c) {
+			final BitmapContainer b = new BitmapContainer();
+			for (int v = c.next(0); v >= 0; v = c.next(v + 1)) {
+				b.words[v >>> 6] |= 1L << v;
+			}
+			b.cardinality = c.cardinality();
+			return b;
+		}
+
+		static BitmapContainer read(final DataInput in, final int cardinality)
+				throws IOException {
+			final BitmapContainer b = new BitmapContainer();
+			for (int i = 0; i < b.words.length; i++) {
+				b.words[i] = in.readLong();
+				b.cardinality += Long.bitCount(b.words[i]);
+			}
+			return b;
+		}
+
+		@Override
+		Container add(final int low) {
+			final long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(final int low) {
+			final long bit = 1L << low;
+			if ((words[low >>> 6] & bit) != 0) {
+				words[low >>> 6] &= ~bit;
+				cardinality--;
+				// below the array limit, so that a value added does not
+				// convert it back at once
+				if (cardinality <= ARRAYMAX / 2) {
+					return ArrayContainer.of(this);
+				}
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(final int low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		int next(final int low) {
+			if (low >= PARTITIONSIZE) {
+				return -1;
+			}
+			int w = low >>> 6;
+			long word = words[w] & (-1L << low);
+			while (word == 0) {
+				if (++w == words.length) {
+					return -1;
+				}
+				word = words[w];
+			}
+			return w * 64 + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean isEmpty() {
+			return cardinality == 0;
+		}
+
+		@Override
+		byte type() {
+			return BITMAP;
+		}
+
+		@Override
+		int size() {
+			return cardinality;
+		}
+
+		@Override
+		int serializedSize() {
+			return 8 * words.length;
+		}
+
+		@Override
+		void write(final DataOutput out) throws IOException {
+			for (long word : words) {
+				out.writeLong(word);
+			}
+		}
+	}
+
+	private static final class RunContainer extends Container {
+		private char[] starts = new char[4];
+
+		// number of values of a run minus one
+		private char[] lengths = new char[4];
+
+		private int runs = 0;
+
+		static RunContainer of(final Container c) {
+			final RunContainer r = new RunContainer();
+			int last = -2;
+			for (int v = c.next(0); v >= 0; v = c.next(v + 1)) {
+				if (v == last + 1) {
+					r.lengths[r.runs - 1]++;
+				} else {
+					r.insert(r.runs, v, 0);
+				}
+				last = v;
+			}
+			return r;
+		}
+
+		static RunContainer read(final DataInput in, final int runs)
+				throws IOException {
+			final RunContainer r = new RunContainer();
+			r.starts = new char[Math.max(4, runs)];
+			r.lengths = new char[Math.max(4, runs)];
+			for (int i = 0; i < runs; i++) {
+				r.starts[i] = in.readChar();
+				r.lengths[i] = in.readChar();
+			}
+			r.runs = runs;
+			return r;
+		}
+
+		private int end(final int i) {
+			return starts[i] + lengths[i];
+		}
+
+		/**
+		 * @return index of the last run starting not after low, -1 if none
+		 */
+		private int floor(final int low) {
+			int lo = 0;
+			int hi = runs - 1;
+			int floor = -1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (starts[mid] <= low) {
+					floor = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return floor;
+		}
+
+		private void insert(final int i, final int start, final int length) {
+			if (runs == starts.length) {
+				starts = Arrays.copyOf(starts, runs * 2);
+				lengths = Arrays.copyOf(lengths, runs * 2);
+			}
+			System.arraycopy(starts, i, starts, i + 1, runs - i);
+			System.arraycopy(lengths, i, lengths, i + 1, runs - i);
+			starts[i] = (char) start;
+			lengths[i] = (char) length;
+			runs++;
+		}
+
+		private void delete(final int from, final int to) {
+			System.arraycopy(starts, to, starts, from, runs - to);
+			System.arraycopy(lengths, to, lengths, from, runs - to);
+			runs -= to - from;
+		}
+
+		@Override
+		Container add(final int low) {
+			final int i = floor(low);
+			if (i >= 0 && low <= end(i)) {
+				return this;
+			}
+			final boolean joinPrevious = i >= 0 && end(i) + 1 == low;
+			final boolean joinNext = i + 1 < runs && starts[i + 1] == low + 1;
+			if (joinPrevious && joinNext) {
+				lengths[i] = (char) (end(i + 1) - starts[i]);
+				delete(i + 1, i + 2);
+			} else if (joinPrevious) {
+				lengths[i]++;
+			} else if (joinNext) {
+				starts[i + 1] = (char) low;
+				lengths[i + 1]++;
+			} else {
+				insert(i + 1, low, 0);
+				if (runs > RUNMAX) {
+					return BitmapContainer.of(this);
+				}
+			}
+			return this;
+		}
+
+		@Override
+		Container addRange(final int low, final int end) {
+			final int last = end - 1;
+			// the runs overlapping or adjacent to the range are merged
+			int first = 0;
+			while (first < runs && end(first) + 1 < low) {
+				first++;
+			}
+			int after = first;
+			while (after < runs && starts[after] <= last + 1) {
+				after++;
+			}
+			if (first == after) {
+				insert(first, low, last - low);
+			} else {
+				final int start = Math.min(low, starts[first]);
+				final int stop = Math.max(last, end(after - 1));
+				delete(first + 1, after);
+				starts[first] = (char) start;
+				lengths[first] = (char) (stop - start);
+			}
+			if (runs > RUNMAX) {
+				return BitmapContainer.of(this);
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(final int low) {
+			final int i = floor(low);
+			if (i < 0 || low > end(i)) {
+				return this;
+			}
+			final int start = starts[i];
+			final int end = end(i);
+			if (start == end) {
+				delete(i, i + 1);
+			} else if (low == start) {
+				starts[i]++;
+				lengths[i]--;
+			} else if (low == end) {
+				lengths[i]--;
+			} else {
+				lengths[i] = (char) (low - 1 - start);
+				insert(i + 1, low + 1, end - low - 1);
+				if (runs > RUNMAX) {
+					return BitmapContainer.of(this);
+				}
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(final int low) {
+			final int i = floor(low);
+			return i >= 0 && low <= end(i);
+		}
+
+		@Override
+		int next(final int low) {
+			if (low >= PARTITIONSIZE) {
+				return -1;
+			}
+			final int i = floor(low);
+			if (i >= 0 && low <= end(i)) {
+				return low;
+			}
+			return i + 1 < runs ? starts[i + 1] : -1;
+		}
+
+		@Override
+		int cardinality() {
+			int cardinality = 0;
+			for (int i = 0; i < runs; i++) {
+				cardinality += lengths[i] + 1;
+			}
+			return cardinality;
+		}
+
+		@Override
+		boolean isEmpty() {
+			return runs == 0;
+		}
+
+		@Override
+		int runs() {
+			return runs;
+		}
+
+		@Override
+		byte type() {
+			return RUN;
+		}
+
+		@Override
+		int size() {
+			return runs;
+		}
+
+		@Override
+		int serializedSize() {
+			return 4 * runs;
+		}
+
+		@Override
+		void write(final DataOutput out) throws IOException {
+			for (int i = 0; i < runs; i++) {
+				out.writeChar(starts[i]);
+				out.writeChar(lengths[i]);
+			}
+		}
+	}
+}
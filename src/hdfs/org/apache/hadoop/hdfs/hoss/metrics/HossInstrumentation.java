@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.metrics;
+
+import org.apache.hadoop.hdfs.hoss.bloomfilter.HosBloomFilter;
+import org.apache.hadoop.hdfs.hoss.cache.HossCache;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.MetricMutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MetricMutableGaugeLong;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+
+/**
+ * metrics of the hoss meta data. gauges are read from their sources when the
+ * metrics are snapshot, so the request path is not slowed down.
+ */
+public class HossInstrumentation implements MetricsSource {
+
+	private static HossInstrumentation instance = null;
+
+	final MetricsRegistry registry = new MetricsRegistry("hoss");
+
+	final MetricMutableGaugeLong cacheEntries = registry.newGauge(
+			"CacheEntries", "Objects in the hoss cache", 0L);
+
+	final MetricMutableGaugeLong cacheOffHeapBytes = registry.newGauge(
+			"CacheOffHeapBytes", "Direct memory of the off-heap hoss cache",
+			0L);
+
+	final MetricMutableCounterLong combinedObjects = registry.newCounter(
+			"CombinedObjects", "Small objects combined into containers", 0L);
+
+	final MetricMutableCounterLong combinedBytes = registry.newCounter(
+			"CombinedBytes", "Bytes of small objects combined into containers",
+			0L);
+
+	final MetricMutableGaugeLong combinePending = registry.newGauge(
+			"CombinePending", "Small objects left in the running combine", 0L);
+
+	final MetricMutableGaugeLong combineBytesPerSec = registry.newGauge(
+			"CombineBytesPerSec", "Throughput of the last combine", 0L);
+
+	final MetricMutableGaugeLong combineMillis = registry.newGauge(
+			"CombineMillis", "Duration of the last combine", 0L);
+
+	final MetricMutableGaugeLong bloomFilterItems = registry.newGauge(
+			"BloomFilterItems", "Object names in the bloom filter", 0L);
+
+	final MetricMutableGaugeLong bloomFilterCapacity = registry.newGauge(
+			"BloomFilterCapacity",
+			"Object names the bloom filter is sized for", 0L);
+
+	private volatile HossCache cache = null;
+
+	private volatile HosBloomFilter bloomFilter = null;
+
+	private HossInstrumentation() {
+		registry.setContext("dfs");
+	}
+
+	/**
+	 * @return the instrumentation registered to the default metrics system
+	 */
+	public static synchronized HossInstrumentation get() {
+		if (instance == null) {
+			instance = DefaultMetricsSystem.INSTANCE.register("Hoss",
+					"Hoss meta data metrics", new HossInstrumentation());
+		}
+		return instance;
+	}
+
+	public void setCache(HossCache cache) {
+		this.cache = cache;
+	}
+
+	public void setBloomFilter(HosBloomFilter bloomFilter) {
+		this.bloomFilter = bloomFilter;
+	}
+
+	/**
+	 * a combine of the given number of small objects is started
+	 */
+	public void combineStarted(long objects) {
+		combinePending.set(objects);
+	}
+
+	/**
+	 * a small object is appended to the container
+	 */
+	public void objectCombined(long bytes) {
+		combinePending.decr();
+		combinedObjects.incr();
+		combinedBytes.incr(bytes);
+	}
+
+	/**
+	 * a small object could not be read and is left uncombined
+	 */
+	public void objectSkipped() {
+		combinePending.decr();
+	}
+
+	public void combineFinished(long bytes, long millis) {
+		combinePending.set(0);
+		combineMillis.set(millis);
+		combineBytesPerSec.set(bytes * 1000 / Math.max(millis, 1));
+	}
+
+	@Override
+	public void getMetrics(MetricsBuilder builder, boolean all) {
+		HossCache current = cache;
+		if (current != null) {
+			cacheEntries.set(current.size());
+			cacheOffHeapBytes.set(current.offHeapBytes());
+		}
+		HosBloomFilter filter = bloomFilter;
+		if (filter != null) {
+			bloomFilterItems.set(filter.getItems());
+			bloomFilterCapacity.set(filter.getCapacity());
+		}
+		MetricsRecordBuilder record = builder.addRecord(registry.name());
+		registry.snapshot(record, all);
+		if (filter != null) {
+			// measured on the lookups of absent names since the last snapshot
+			record.addGauge("BloomFalsePositiveRate",
+					"False positive rate of the bloom filter", filter
+							.sampleFalsePositiveRate());
+		}
+	}
+
+}
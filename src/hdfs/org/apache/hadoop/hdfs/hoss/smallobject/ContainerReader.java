@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.smallobject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.hoss.db.PathPosition;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+
+/**
+ * shared reader of the small object containers. one input stream is kept
+ * open per container and objects are read from it by positional reads, so
+ * concurrent gets neither open the container nor seek a shared stream.
+ *
+ * the offset of a combined object is the start of its bytes, which are
+ * preceded by the object id, the object size and the value length. these
+ * 20 bytes are read with the object and checked, a mismatch means the
+ * container was rotated under the stream, which is then reopened.
+ */
+public class ContainerReader {
+
+	private static final Log LOG = LogFactory.getLog(ContainerReader.class);
+
+	// object id, object size and value length before the object bytes
+	static final int RECORDHEADER = 20;
+
+	private static ContainerReader instance = null;
+
+	private final FileSystem fs;
+
+	private final ConcurrentHashMap<Long, FSDataInputStream> streams = new ConcurrentHashMap<Long, FSDataInputStream>();
+
+	public ContainerReader(FileSystem fs) {
+		this.fs = fs;
+	}
+
+	/**
+	 * @return the reader shared by this jvm
+	 */
+	public static synchronized ContainerReader get(FileSystem fs) {
+		if (instance == null) {
+			instance = new ContainerReader(fs);
+		}
+		return instance;
+	}
+
+	/**
+	 * read a combined object
+	 *
+	 * @param objId
+	 * @param pp
+	 * @return the object bytes, null if it could not be read
+	 */
+	public byte[] read(long objId, PathPosition pp) {
+		if (pp.getLength() < 0) {
+			return readRecord(objId, pp);
+		}
+		int length = (int) pp.getLength();
+		byte[] buf = new byte[RECORDHEADER + length];
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				stream(pp.getPathId()).readFully(
+						pp.getOffset() - RECORDHEADER, buf);
+				if (readLong(buf, 0) == objId && readInt(buf, 16) == length) {
+					return Arrays.copyOfRange(buf, RECORDHEADER, buf.length);
+				}
+				LOG.warn("small object " + objId + " not found at offset "
+						+ pp.getOffset() + ", reopen container "
+						+ pp.getPath());
+			} catch (IOException e) {
+				LOG.warn("read small object " + objId + " from container "
+						+ pp.getPath() + " error: " + e);
+			}
+			invalidate(pp.getPathId());
+		}
+		LOG.error("read small object " + objId + " fail");
+		return null;
+	}
+
+	/**
+	 * read an object combined before the length was recorded, the offset is
+	 * the start of its sequence file record.
+	 */
+	private byte[] readRecord(long objId, PathPosition pp) {
+		SequenceFile.Reader reader = null;
+		byte[] bytes = null;
+		try {
+			reader = new SequenceFile.Reader(fs, new Path(pp.getPath()),
+					new Configuration());
+			KeyWritable kw = new KeyWritable();
+			ValueWritable vw = new ValueWritable();
+			reader.seek(pp.getOffset());
+			reader.next(kw, vw);
+			if (kw.getObjId() == objId) {
+				bytes = vw.getValue();
+			} else {
+				LOG.error("read small object mismatch excepted object id "
+						+ objId + ", actual object id " + kw.getObjId());
+			}
+		} catch (IOException e) {
+			LOG.error("combine small object initilize SequenceFile Reader error: "
+					+ e);
+		} finally {
+			IOUtils.closeStream(reader);
+		}
+		return bytes;
+	}
+
+	private FSDataInputStream stream(long pathId) throws IOException {
+		FSDataInputStream in = streams.get(pathId);
+		if (in == null) {
+			in = fs.open(new Path(PathPosition.toPath(pathId)));
+			FSDataInputStream prev = streams.putIfAbsent(pathId, in);
+			if (prev != null) {
+				IOUtils.closeStream(in);
+				in = prev;
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * drop the stream of a container, it is reopened by the next read. called
+	 * when the container is rotated.
+	 *
+	 * @param pathId
+	 */
+	public void invalidate(long pathId) {
+		FSDataInputStream in = streams.remove(pathId);
+		if (in != null) {
+			IOUtils.closeStream(in);
+		}
+	}
+
+	public void close() {
+		for (Long pathId : streams.keySet()) {
+			invalidate(pathId);
+		}
+	}
+
+	private static long readLong(byte[] buf, int pos) {
+		return ((long) readInt(buf, pos) << 32)
+				| (readInt(buf, pos + 4) & 0xffffffffL);
+	}
+
+	private static int readInt(byte[] buf, int pos) {
+		return ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+				| ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+	}
+}
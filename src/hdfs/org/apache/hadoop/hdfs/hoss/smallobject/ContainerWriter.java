@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.smallobject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+/**
+ * writes a small object container and keeps the id, offset and length of
+ * every object appended, so that the objects are registered by one call when
+ * the container is sealed. the container is an uncompressed sequence file,
+ * the offset of an object is the start of its bytes.
+ */
+public class ContainerWriter implements Closeable {
+
+	private static final int BUFFERSIZE = 4 * 1024;
+
+	private static final long BLOCKSIZE = 64 * 1024 * 1024L;
+
+	private final Path path;
+
+	private final SequenceFile.Writer writer;
+
+	private long[] ids = new long[16];
+
+	private long[] offsets = new long[16];
+
+	private long[] lengths = new long[16];
+
+	private int size = 0;
+
+	private long bytes = 0;
+
+	public ContainerWriter(FileSystem fs, Configuration conf, Path path,
+			short replication) throws IOException {
+		this.path = path;
+		this.writer = SequenceFile.createWriter(fs, conf, path,
+				KeyWritable.class, ValueWritable.class, BUFFERSIZE,
+				replication, BLOCKSIZE, CompressionType.NONE, null, null,
+				new SequenceFile.Metadata());
+	}
+
+	public void append(long objId, byte[] value) throws IOException {
+		append(new KeyWritable(objId, value.length), new ValueWritable(value,
+				"object " + objId));
+	}
+
+	/**
+	 * append a record read from another container
+	 */
+	void append(KeyWritable kw, ValueWritable vw) throws IOException {
+		writer.append(kw, vw);
+		int length = vw.getLength();
+		// the object bytes end the value, before its comment
+		long offset = writer.getLength() - vw.trailerLength() - length;
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+		}
+		ids[size] = kw.getObjId();
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+		bytes += length;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the length of the container file
+	 * @throws IOException
+	 */
+	public long getLength() throws IOException {
+		return writer.getLength();
+	}
+
+	/**
+	 * @return the bytes of the objects
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long[] getIds() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	public long[] getOffsets() {
+		return Arrays.copyOf(offsets, size);
+	}
+
+	public long[] getLengths() {
+		return Arrays.copyOf(lengths, size);
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
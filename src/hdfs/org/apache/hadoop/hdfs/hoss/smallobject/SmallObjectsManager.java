@@ -18,8 +18,16 @@
 package org.apache.hadoop.hdfs.hoss.smallobject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,11 +37,14 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.hoss.db.HosMetaData;
 import org.apache.hadoop.hdfs.hoss.db.PathPosition;
+import org.apache.hadoop.hdfs.hoss.metrics.HossInstrumentation;
 import org.apache.hadoop.hdfs.hoss.util.HDFSUtil;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.util.ReflectionUtils;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class SmallObjectsManager {
 	
 	private static final Log LOG = LogFactory.getLog(SmallObjectsManager.class);
@@ -44,120 +55,256 @@ public class SmallObjectsManager {
 
 	private static final String ACTIVEOBJECT = "activeobject";
 
-	public static final String STABLEOBJECT = "0000000000";
+	private static final float GARBAGERATIO = 0.5f;
+
+	private static final int PARALLELISM = 8;
+
+	private static final long INFLIGHTBYTES = 64 * 1024 * 1024L;
+
+	// containers with this ratio of deleted bytes are compacted
+	private final float garbageRatio;
+
+	// small objects read in parallel
+	private final int parallelism;
+
+	// bytes of the small objects read but not appended yet
+	private final long inFlightBytes;
+
+	private final HossInstrumentation metrics = HossInstrumentation.get();
 
 	public SmallObjectsManager(HosMetaData hmd) {
 		metaDataDb = hmd;
+		Configuration conf = new Configuration();
+		garbageRatio = conf.getFloat("hoss.container.garbageRatio",
+				GARBAGERATIO);
+		parallelism = Math.max(1, conf.getInt("hoss.combine.parallelism",
+				PARALLELISM));
+		inFlightBytes = conf.getLong("hoss.combine.inflightBytes",
+				INFLIGHTBYTES);
 	}
 
 	/**
-	 * combine small object
+	 * combine the new small objects into a new container, together with the
+	 * live objects of the containers which have too many deleted bytes.
 	 */
 	public boolean combine() {
 		Map<Long, Integer> smallObjects = metaDataDb.smallObjects();
+		List<Long> garbage = metaDataDb.garbageContainers(garbageRatio);
+		if (smallObjects.size() == 0 && garbage.size() == 0) {
+			LOG.info("The number of small objects is too little");
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		metrics.combineStarted(smallObjects.size());
+		ExecutorService fetchers = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+						"hoss combine fetcher %d").build());
 		boolean success = false;
-		boolean isCombined = true;
-		Configuration conf = new Configuration();
-		if (smallObjects.size() != 0) {
-			SequenceFile.Writer writer = null;
-			try {
-				writer = SequenceFile.createWriter(fs, conf, new Path(
-						ACTIVEOBJECT), KeyWritable.class, ValueWritable.class);
-				success = batchWrite(writer, smallObjects, conf);
-				LOG.info("Batch write objects successfully");
-			} catch (IOException e) {
-				LOG.error("Combine small object initilize SequenceFile Writer error: "
-						+ e);
-			} finally {
-				IOUtils.closeStream(writer);
+		ContainerWriter writer = null;
+		// ids of the new small objects written to the container
+		List<Long> combined = new ArrayList<Long>();
+		// create times of the objects in the container when they were chosen
+		List<Long> createTimes = new ArrayList<Long>();
+		try {
+			writer = new ContainerWriter(fs, new Configuration(), new Path(
+					ACTIVEOBJECT), (short) 1);
+			success = true;
+			for (long pathId : garbage) {
+				success &= compactContainer(writer, pathId, createTimes);
 			}
+			success &= writeNewSmallObjects(writer, smallObjects, combined,
+					createTimes, fetchers);
+			writer.close();
+			LOG.info("Batch write objects successfully");
+		} catch (IOException e) {
+			success = false;
+			LOG.error("Combine small object initilize SequenceFile Writer error: "
+					+ e);
+			IOUtils.closeStream(writer);
+		}
 
-			if (success) {
-				updateMetadata(conf);
-				metaDataDb.setNameId("super object", 0);
-				try {
-					fs.rename(new Path(ACTIVEOBJECT), new Path(STABLEOBJECT));
-				} catch (IOException e) {
-					LOG.error("Rename super object container error: " + e);
+		try {
+			if (success && writer.size() == 0) {
+				// the compacted containers had no live object, drop the empty one
+				removeContainers(garbage);
+				success = false;
+			} else if (success) {
+				// one call points all the objects into the container
+				long pathId = metaDataDb.sealContainer(ACTIVEOBJECT, writer
+						.getIds(), toArray(createTimes), writer.getOffsets(),
+						writer.getLengths());
+				if (pathId >= 0) {
+					deleteOriginalObjects(combined, pathId, fetchers);
+					removeContainers(garbage);
+					LOG.info("Update small objects metadata successfully, container "
+							+ PathPosition.toPath(pathId) + " holds "
+							+ writer.getBytes() + " bytes");
+				} else {
+					success = false;
 				}
-				LOG.info("Update small objects metadata successfully");
 			}
-			//metaDataDb.listPathPosition();
-		} else {
-			isCombined = false;
-			LOG.info("The number of small objects is too little");
+		} catch (IOException e) {
+			success = false;
+			LOG.error("Seal small object container error: " + e);
+		} finally {
+			fetchers.shutdownNow();
+		}
+		if (!success) {
+			deleteOriginalObject(ACTIVEOBJECT);
 		}
-		return isCombined;
+		metrics.combineFinished(writer == null ? 0 : writer.getBytes(),
+				System.currentTimeMillis() - start);
+		return true;
 	}
 
 	/**
-	 * batch write small object to sequence file
-	 * 
-	 * @param writer
-	 * @param smallObjects
-	 * @return
+	 * a small object being read by a fetcher
 	 */
-	private boolean batchWrite(SequenceFile.Writer writer,
-			Map<Long, Integer> smallObjects, Configuration conf) {
-		boolean suc = false;
-		boolean suc1 = updateCombinedObjects(writer, smallObjects, conf);
-		boolean suc2 = writeNewSmallObjects(writer, smallObjects);
-		suc = suc1 & suc2;
-		return suc;
+	private static class Fetch {
+		final long objId;
+
+		final long createTime;
+
+		final int size;
+
+		final Future<byte[]> value;
+
+		Fetch(long objId, long createTime, int size, Future<byte[]> value) {
+			this.objId = objId;
+			this.createTime = createTime;
+			this.size = size;
+			this.value = value;
+		}
+	}
+
+	private static long[] toArray(List<Long> list) {
+		long[] array = new long[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
 	}
 
 	/**
-	 * write new small objects
+	 * write new small objects. the objects are read by the fetchers while
+	 * this thread appends them in order, at most inFlightBytes are read ahead
+	 * of the appender. an object which could not be read is left uncombined.
 	 * 
 	 * @param writer
 	 * @param smallObjects
+	 * @param combined
+	 *            the ids of the appended objects
+	 * @param createTimes
+	 *            the create times of the appended objects
+	 * @param fetchers
 	 * @return
 	 */
-	private boolean writeNewSmallObjects(SequenceFile.Writer writer,
-			Map<Long, Integer> smallObjects) {
-		boolean success = true;
+	private boolean writeNewSmallObjects(ContainerWriter writer,
+			Map<Long, Integer> smallObjects, List<Long> combined,
+			List<Long> createTimes, ExecutorService fetchers)
+			throws IOException {
+		LinkedList<Fetch> inFlight = new LinkedList<Fetch>();
+		long bytes = 0;
 		for (Entry<Long, Integer> entry : smallObjects.entrySet()) {
-			long objId = entry.getKey();
-			int size = entry.getValue();
-			byte[] value = readFully(objId, size);
-			KeyWritable kw = new KeyWritable(objId, size);
-			ValueWritable vw = new ValueWritable(value, "object " + objId);
-			try {
-				writer.append(kw, vw);
-			} catch (IOException e) {
-				success = false;
-				LOG.error("Write new small objects  " + objId + " error. " + e);
+			final long objId = entry.getKey();
+			final int size = entry.getValue();
+			while (!inFlight.isEmpty() && bytes + size > inFlightBytes) {
+				Fetch fetch = inFlight.poll();
+				bytes -= fetch.size;
+				if (!append(writer, fetch, combined, createTimes)) {
+					return false;
+				}
 			}
+			final Path path = new Path(metaDataDb.getPathPosition(objId)
+					.getPath());
+			// taken before the read, a reused id has a later one
+			long createTime = metaDataDb.getCreateTime(objId);
+			inFlight.add(new Fetch(objId, createTime, size, fetchers
+					.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return readFully(path, size);
+						}
+					})));
+			bytes += size;
 		}
-		return success;
+		while (!inFlight.isEmpty()) {
+			if (!append(writer, inFlight.poll(), combined, createTimes)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
-	private boolean updateCombinedObjects(SequenceFile.Writer writer,
-			Map<Long, Integer> smallObjects, Configuration conf) {
+	/**
+	 * wait for a fetched object and append it
+	 * 
+	 * @return false if interrupted
+	 */
+	private boolean append(ContainerWriter writer, Fetch fetch,
+			List<Long> combined, List<Long> createTimes) throws IOException {
+		byte[] value = null;
+		try {
+			value = fetch.value.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			LOG.error("Read small object " + fetch.objId + " error. "
+					+ e.getCause());
+			metrics.objectSkipped();
+			return true;
+		}
+		writer.append(fetch.objId, value);
+		combined.add(fetch.objId);
+		createTimes.add(fetch.createTime);
+		metrics.objectCombined(value.length);
+		return true;
+	}
+
+	/**
+	 * copy the live objects of a container, an object is live if its path
+	 * position still points into the container and its id is not deleted.
+	 * 
+	 * @param writer
+	 * @param pathId
+	 * @return
+	 */
+	private boolean compactContainer(ContainerWriter writer, long pathId,
+			List<Long> createTimes) {
 		boolean success = true;
 		SequenceFile.Reader reader = null;
-
-		Path stable = new Path(STABLEOBJECT);
-		boolean exist = exists(stable);
-		// stable object is not exist
-		if (!exist) {
+		Path container = new Path(PathPosition.toPath(pathId));
+		// container is not exist
+		if (!exists(container)) {
 			return true;
 		}
-
+		long live = 0;
+		long dead = 0;
 		try {
-			reader = new SequenceFile.Reader(fs, stable, conf);
+			Configuration conf = new Configuration();
+			reader = new SequenceFile.Reader(fs, container, conf);
 			KeyWritable kw = (KeyWritable) ReflectionUtils.newInstance(
 					reader.getKeyClass(), conf);
 			ValueWritable vw = (ValueWritable) ReflectionUtils.newInstance(
 					reader.getValueClass(), conf);
+			long start = reader.getPosition();
 			while (reader.next(kw, vw)) {
 				long objId = kw.getObjId();
-				// if combined object is deleted, object id is reused
-				// small object / object / unused
-				if (!(smallObjects.containsKey(objId) || metaDataDb
-						.exist(objId))) {
+				long end = reader.getPosition();
+				// taken before the check, a reused id has a later one
+				long createTime = metaDataDb.getCreateTime(objId);
+				PathPosition pp = metaDataDb.getPathPosition(objId);
+				boolean located = pp != null && pp.getPathId() == pathId
+						&& pp.getOffset() >= start && pp.getOffset() < end;
+				if (located && !metaDataDb.deleted(objId)) {
 					writer.append(kw, vw);
+					createTimes.add(createTime);
+					live++;
+				} else {
+					dead++;
 				}
+				start = end;
 			}
 		} catch (IOException e) {
 			success = false;
@@ -166,12 +313,62 @@ public class SmallObjectsManager {
 		} finally {
 			IOUtils.closeStream(reader);
 		}
-		if (success) {
-			deleteOriginalObject(STABLEOBJECT);
-		}
+		LOG.info("compact container " + container + ": " + live
+				+ " live objects, " + dead + " deleted");
 		return success;
 	}
 
+	/**
+	 * delete the compacted containers, their objects have been moved
+	 * 
+	 * @param garbage
+	 * @throws IOException
+	 */
+	private void removeContainers(List<Long> garbage) throws IOException {
+		ContainerReader reader = ContainerReader.get(fs);
+		for (long pathId : garbage) {
+			deleteOriginalObject(PathPosition.toPath(pathId));
+			reader.invalidate(pathId);
+			metaDataDb.removeContainer(pathId);
+		}
+	}
+
+	/**
+	 * delete the files of the combined objects by the fetchers, an object
+	 * the seal did not point into the container keeps its file
+	 * 
+	 * @param combined
+	 * @param pathId
+	 *            path id of the container
+	 * @param fetchers
+	 */
+	private void deleteOriginalObjects(List<Long> combined, long pathId,
+			ExecutorService fetchers) {
+		List<Future<?>> deletes = new ArrayList<Future<?>>(combined.size());
+		for (final long objId : combined) {
+			PathPosition pp = metaDataDb.getPathPosition(objId);
+			if (pp == null || pp.getPathId() != pathId) {
+				continue;
+			}
+			deletes.add(fetchers.submit(new Runnable() {
+				@Override
+				public void run() {
+					deleteOriginalObject(PathPosition.toPath(objId));
+				}
+			}));
+		}
+		for (Future<?> delete : deletes) {
+			try {
+				delete.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				LOG.error("delete original object error " + e.getCause());
+			}
+		}
+	}
+
 	private boolean exists(Path path) {
 		boolean exist = false;
 		try {
@@ -182,55 +379,18 @@ public class SmallObjectsManager {
 		return exist;
 	}
 
-	private synchronized byte[] readFully(long objId, int size) {
+	private static byte[] readFully(Path path, int size) throws IOException {
 		FSDataInputStream in = null;
 		byte[] buf = new byte[size];
-		PathPosition pp = metaDataDb.getPathPosition(objId);
 		try {
-			in = fs.open(new Path(pp.getPath()));
+			in = fs.open(path);
 			IOUtils.readFully(in, buf, 0, size);
-		} catch (IOException e) {
-			LOG.error("combine small object initilize FSDataInputStream error: "
-					+ e);
 		} finally {
 			IOUtils.closeStream(in);
 		}
 		return buf;
 	}
 
-	/**
-	 * update the object metadata after combining
-	 */
-	private void updateMetadata(Configuration conf) {
-		SequenceFile.Reader reader = null;
-		try {
-			reader = new SequenceFile.Reader(fs, new Path(ACTIVEOBJECT), conf);
-			KeyWritable kw = (KeyWritable) ReflectionUtils.newInstance(
-					reader.getKeyClass(), conf);
-			ValueWritable vw = (ValueWritable) ReflectionUtils.newInstance(
-					reader.getValueClass(), conf);
-			long offset = reader.getPosition();
-			while (reader.next(kw, vw)) {
-				long objId = kw.getObjId();
-				PathPosition pp = metaDataDb.getPathPosition(objId);
-				String originalPath = pp.getPath();
-				// uncombined file
-				if (pp.getOffset() == 0) {
-					deleteOriginalObject(originalPath);
-				}
-				// pathID is 0 because it is a super large object container
-				metaDataDb.updatePathPos(objId, 0L, offset);
-				//LOG.info("updatePathPos objID " + objId + " offset " + offset);
-				offset = reader.getPosition();
-			}
-		} catch (IOException e) {
-			LOG.error("combine small object initilize SequenceFile Reader error: "
-					+ e);
-		} finally {
-			IOUtils.closeStream(reader);
-		}
-	}
-
 	private void deleteOriginalObject(String objPath) {
 		try {
 			fs.delete(new Path(objPath), false);
@@ -242,30 +402,8 @@ public class SmallObjectsManager {
 	 * byte array for small object 
 	 *
 	 */
-	public byte[] getSmallObject(long objId, long offset) {
-		SequenceFile.Reader reader = null;
-		byte[] bytes = null;
-		try {
-			Configuration conf = new Configuration();
-			reader = new SequenceFile.Reader(fs, new Path(STABLEOBJECT), conf);
-			KeyWritable kw = (KeyWritable) ReflectionUtils.newInstance(
-					reader.getKeyClass(), conf);
-			ValueWritable vw = (ValueWritable) ReflectionUtils.newInstance(
-					reader.getKeyClass(), conf);
-			reader.seek(offset);
-			reader.next(kw, vw);
-			if (kw.getObjId() == objId) {
-				bytes = vw.getValue();
-			} else {
-				LOG.error("read small object mismatch ");
-			}
-		} catch (IOException e) {
-			LOG.error("combine small object initilize SequenceFile Reader error: "
-					+ e);
-		} finally {
-			IOUtils.closeStream(reader);
-		}
-		return bytes;
+	public byte[] getSmallObject(long objId, PathPosition pp) {
+		return ContainerReader.get(fs).read(objId, pp);
 	}
 
 }
@@ -20,10 +20,12 @@ package org.apache.hadoop.hdfs.hoss.smallobject;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 public class ValueWritable  implements Writable {
 
@@ -51,7 +53,26 @@ public class ValueWritable  implements Writable {
 		comment.write(out);
 	}
 
+	/**
+	 * @return the value bytes, without the padding of the buffer
+	 */
 	public byte[] getValue() {
-		return value.getBytes();
+		byte[] bytes = value.getBytes();
+		if (bytes.length == value.getLength()) {
+			return bytes;
+		}
+		return Arrays.copyOf(bytes, value.getLength());
+	}
+
+	public int getLength() {
+		return value.getLength();
+	}
+
+	/**
+	 * @return serialized size of the fields after the value bytes
+	 */
+	int trailerLength() {
+		return WritableUtils.getVIntSize(comment.getLength())
+				+ comment.getLength();
 	}
 }
\ No newline at end of file
@@ -26,6 +26,10 @@ import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.hoss.cache.HotObject;
+import org.apache.hadoop.hdfs.hoss.db.ObjectAttributes;
+import org.apache.hadoop.hdfs.hoss.db.ObjectInfo;
+import org.apache.hadoop.hdfs.hoss.db.ObjectListing;
+import org.apache.hadoop.hdfs.hoss.db.ObjectQuery;
 import org.apache.hadoop.hdfs.hoss.db.PathPosition;
 import org.apache.hadoop.hdfs.protocol.FSConstants.UpgradeAction;
 import org.apache.hadoop.hdfs.security.token.delegation.DelegationTokenIdentifier;
@@ -53,13 +57,14 @@ public interface ClientProtocol extends VersionedProtocol {
 	/**
 	 * Compared to the previous version the following changes have been
 	 * introduced: (Only the latest change is reflected. The log of historical
-	 * changes can be retrieved from the svn). 61: Serialized format of
-	 * BlockTokenIdentifier changed to contain multiple blocks within a single
-	 * BlockTokenIdentifier
-	 * 
-	 * (bumped to 61 to bring in line with trunk)
+	 * changes can be retrieved from the svn). 70: added putObject with
+	 * attributes, getObjectAttributes, queryObjects, closeObject, openObject,
+	 * putObjects, getPathPositions, deleteObjects, putInlineObjects,
+	 * leaseObjectIds, releaseObjectIds, putLeasedObjects, sealContainer and
+	 * the paged listObjects; deprecated the unpaged listObjects; PathPosition
+	 * carries a numeric path id and the object length
 	 */
-	public static final long versionID = 61L;
+	public static final long versionID = 70L;
 
 	// /////////////////////////////////////
 	// File contents
@@ -640,6 +645,42 @@ public interface ClientProtocol extends VersionedProtocol {
 	 */
 	public PathPosition putObject(String objName);
 
+	/**
+	 * put object to hoss with user defined attributes, which are indexed for
+	 * {@link #queryObjects(ObjectQuery, int)}.
+	 * @param objName
+	 * @param attributes
+	 * @return null if the object has existed or an attribute is invalid
+	 */
+	public PathPosition putObject(String objName, ObjectAttributes attributes);
+
+	/**
+	 * get the user defined attributes of an object.
+	 * @param objName
+	 * @return null if the object has none
+	 */
+	public ObjectAttributes getObjectAttributes(String objName);
+
+	/**
+	 * find the objects whose attributes match the query, from the attribute
+	 * index without a scan of all the objects.
+	 * @param query equality and range terms of attributes, all must match
+	 * @param limit objects in a page, at most hoss.list.maxKeys
+	 * @return the names and ids of the page in the value order of the first
+	 *         term, and the continuation token passed to
+	 *         {@link ObjectQuery#startAfter(String)} for the next page. null
+	 *         if the query fails
+	 */
+	public ObjectListing queryObjects(ObjectQuery query, int limit);
+
+	/**
+	 * record the size of an object when the client closes its writer.
+	 * @param objName
+	 * @param size object size(unit:bytes)
+	 * @return false if object does not exist
+	 */
+	public boolean closeObject(String objName, long size);
+
 	/**
 	 * get object id from hoss.
 	 * @param objName
@@ -655,6 +696,13 @@ public interface ClientProtocol extends VersionedProtocol {
 	public PathPosition getPathPosition(String objName);
 	
 
+	/**
+	 * get object id + path position + size from hoss in one call.
+	 * @param objName
+	 * @return null if object does not exist
+	 */
+	public ObjectInfo openObject(String objName);
+
 	/**
 	 * delete object from hoss.
 	 * @param objName
@@ -668,12 +716,104 @@ public interface ClientProtocol extends VersionedProtocol {
 	 * @return
 	 */
 	public boolean exist(String objName);
+
+	/**
+	 * put a batch of objects to hoss in one call, an object which fails does
+	 * not fail the others.
+	 * @param objNames
+	 * @return path positions in the order of objNames, null for the object
+	 *         which has existed or could not be put
+	 */
+	public PathPosition[] putObjects(String[] objNames);
+
+	/**
+	 * register a container of small objects written by the client and put
+	 * its objects with the ids leased by {@link #leaseObjectIds(int)}. an
+	 * object which exists or whose lease expired is not put, its bytes are
+	 * garbage of the container. the container is renamed to the path of its
+	 * path id.
+	 * @param path the written container
+	 * @param objNames
+	 * @param objIds
+	 * @param offsets offsets of the object bytes in the container
+	 * @param lengths
+	 * @return path id of the container, -1 if it could not be registered
+	 */
+	public long sealContainer(String path, String[] objNames, long[] objIds,
+			long[] offsets, long[] lengths);
+
+	/**
+	 * put a batch of tiny objects with their bytes, which are kept in the
+	 * meta data and returned by {@link #openObject(String)}.
+	 * @param objNames
+	 * @param data
+	 * @return object ids in the order of objNames, -1 for the object which
+	 *         exists or is larger than the inline threshold
+	 */
+	public long[] putInlineObjects(String[] objNames, byte[][] data);
+
+	/**
+	 * lease a block of new contiguous object ids, used by
+	 * {@link #putLeasedObjects(String[], long[])}. the ids not used before
+	 * the lease expires are reused.
+	 * @param count
+	 * @return the first id of the block, -1 if the lease is refused
+	 */
+	public long leaseObjectIds(int count);
+
+	/**
+	 * give back the ids of a lease which were not used.
+	 * @param start
+	 * @param count
+	 */
+	public void releaseObjectIds(long start, int count);
+
+	/**
+	 * put a batch of objects with leased ids in one call.
+	 * @param objNames
+	 * @param objIds
+	 * @return path positions in the order of objNames, null for the object
+	 *         which has existed or whose id is not leased
+	 */
+	public PathPosition[] putLeasedObjects(String[] objNames, long[] objIds);
+
+	/**
+	 * get path + position of a batch of objects in one call.
+	 * @param objNames
+	 * @return path positions in the order of objNames, null for the object
+	 *         which does not exist or could not be read
+	 */
+	public PathPosition[] getPathPositions(String[] objNames);
+
+	/**
+	 * delete a batch of objects from hoss in one call, an object which fails
+	 * does not fail the others.
+	 * @param objNames
+	 * @return deleted object ids in the order of objNames, -1 for the object
+	 *         which does not exist or could not be deleted
+	 */
+	public long[] deleteObjects(String[] objNames);
 	
 	/**
 	 * get all the objects(name and id)in hoss
 	 * @return
+	 * @deprecated the whole namespace in one reply, use
+	 *             {@link #listObjects(String, String, int)}
 	 */
+	@Deprecated
 	public Text listObjects(); 
+
+	/**
+	 * list a page of the objects whose name has the prefix, in name order.
+	 * @param prefix null or empty to list all the objects
+	 * @param startAfter the continuation token of the previous page, null for
+	 *        the first page
+	 * @param maxKeys objects in a page, at most hoss.list.maxKeys
+	 * @return the names and ids of the page and the continuation token of the
+	 *         next one, null if the listing fails
+	 */
+	public ObjectListing listObjects(String prefix, String startAfter,
+			int maxKeys);
 	
 	/**
 	 * get the top hottest object
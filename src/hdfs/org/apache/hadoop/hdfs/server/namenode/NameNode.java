@@ -45,6 +45,10 @@ import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.HDFSPolicyProvider;
 import org.apache.hadoop.hdfs.hoss.cache.HotObject;
 import org.apache.hadoop.hdfs.hoss.db.HosMetaData;
+import org.apache.hadoop.hdfs.hoss.db.ObjectAttributes;
+import org.apache.hadoop.hdfs.hoss.db.ObjectInfo;
+import org.apache.hadoop.hdfs.hoss.db.ObjectListing;
+import org.apache.hadoop.hdfs.hoss.db.ObjectQuery;
 import org.apache.hadoop.hdfs.hoss.db.PathPosition;
 import org.apache.hadoop.hdfs.hoss.smallobject.SmallObjectsManager;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -656,6 +660,42 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 		return pp;
 	}
 
+	@Override
+	public PathPosition putObject(String objName, ObjectAttributes attributes) {
+		PathPosition pp = null;
+		try {
+			pp = metaDataDb.put(objName, attributes);
+		} catch (IOException e) {
+			LOG.error("put object " + objName + " with attributes "
+					+ attributes + " error: " + e.getMessage());
+		}
+		return pp;
+	}
+
+	@Override
+	public ObjectAttributes getObjectAttributes(String objName) {
+		return metaDataDb.getAttributes(objName);
+	}
+
+	@Override
+	public ObjectListing queryObjects(ObjectQuery query, int limit) {
+		return metaDataDb.queryObjects(query, limit);
+	}
+
+	/**
+	 * record object size
+	 */
+	@Override
+	public boolean closeObject(String objName, long size) {
+		boolean closed = false;
+		try {
+			closed = metaDataDb.closeObject(objName, size);
+		} catch (IOException e) {
+			LOG.error("close object " + objName + " error");
+		}
+		return closed;
+	}
+
 	/**
 	 * get object id
 	 */
@@ -684,6 +724,20 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 		}
 		return pp;
 	}
+
+	/**
+	 * get object id + path position + size
+	 */
+	@Override
+	public ObjectInfo openObject(String objName) {
+		ObjectInfo info = null;
+		try {
+			info = metaDataDb.openObject(objName);
+		} catch (IOException e) {
+			LOG.error("open object " + objName + " error");
+		}
+		return info;
+	}
 	
 	@Override
 	public long deleteObject(String objName) {
@@ -700,11 +754,95 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 	public boolean exist(String objName) {
 		return metaDataDb.exist(objName);
 	}
+
+	@Override
+	public PathPosition[] putObjects(String[] objNames) {
+		PathPosition[] pps = new PathPosition[objNames.length];
+		try {
+			pps = metaDataDb.put(objNames);
+		} catch (IOException e) {
+			LOG.error("put " + objNames.length + " objects error");
+		}
+		return pps;
+	}
+
+	@Override
+	public PathPosition[] getPathPositions(String[] objNames) {
+		PathPosition[] pps = new PathPosition[objNames.length];
+		try {
+			pps = metaDataDb.getPathPositions(objNames);
+		} catch (IOException e) {
+			LOG.error("get " + objNames.length + " objects path position error");
+		}
+		return pps;
+	}
+
+	@Override
+	public long sealContainer(String path, String[] objNames, long[] objIds,
+			long[] offsets, long[] lengths) {
+		long pathId = -1L;
+		try {
+			pathId = metaDataDb.sealContainer(path, objNames, objIds, offsets,
+					lengths);
+		} catch (IOException e) {
+			LOG.error("seal container " + path + " of " + objIds.length
+					+ " objects error");
+		}
+		return pathId;
+	}
+
+	@Override
+	public long[] putInlineObjects(String[] objNames, byte[][] data) {
+		long[] ids = new long[objNames.length];
+		Arrays.fill(ids, -1L);
+		try {
+			ids = metaDataDb.putInline(objNames, data);
+		} catch (IOException e) {
+			LOG.error("put " + objNames.length + " inline objects error");
+		}
+		return ids;
+	}
+
+	@Override
+	public long leaseObjectIds(int count) {
+		return metaDataDb.leaseIds(count);
+	}
+
+	@Override
+	public void releaseObjectIds(long start, int count) {
+		metaDataDb.releaseIds(start, count);
+	}
+
+	@Override
+	public PathPosition[] putLeasedObjects(String[] objNames, long[] objIds) {
+		PathPosition[] pps = new PathPosition[objNames.length];
+		try {
+			pps = metaDataDb.put(objNames, objIds);
+		} catch (IOException e) {
+			LOG.error("put " + objNames.length + " leased objects error");
+		}
+		return pps;
+	}
+
+	@Override
+	public long[] deleteObjects(String[] objNames) {
+		long[] ids = new long[objNames.length];
+		Arrays.fill(ids, -1L);
+		try {
+			ids = metaDataDb.delete(objNames);
+		} catch (IOException e) {
+			LOG.error("delete " + objNames.length + " objects error");
+		}
+		return ids;
+	}
 	
 	/**
 	 * get all the objects(name and id)in hoss
 	 * @return
+	 * @deprecated use {@link #listObjects(String, String, int)}
 	 */
+	@Override
+	@Deprecated
 	public Text listObjects(){
 		Map<String, Long> objects = metaDataDb.listObjects();
 		StringBuilder sb = new StringBuilder();
@@ -717,6 +855,12 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 		String text = sb.toString().trim();
 		return new Text(text);
 	}
+
+	@Override
+	public ObjectListing listObjects(String prefix, String startAfter,
+			int maxKeys) {
+		return metaDataDb.listObjects(prefix, startAfter, maxKeys);
+	}
 	
 	/**
 	 * get the top hottest object
@@ -1424,12 +1568,14 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 		DefaultMetricsSystem.initialize("NameNode");
 		NameNode namenode = new NameNode(conf);
 		LOG.info("Hoss MetaDataServer start...Zzzzzz");
-		metaDataDb = new HosMetaData();
-		if (metaDataDb != null) {
-			LOG.info("load metadata from disk successfully.");
-		} else {
-			LOG.error("initlize hoss db fail.");
+		try {
+			metaDataDb = new HosMetaData();
+		} catch (IOException e) {
+			LOG.error("initlize hoss db fail.", e);
+			namenode.stop();
+			throw e;
 		}
+		LOG.info("load metadata from disk successfully.");
 
 		return namenode;
 	}
@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.bloomfilter;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the locked {@link BloomFilter} with the lock free
+ * {@link BlockedBloomFilter}, both in memory only and sized for the same
+ * false positive rate.
+ *
+ * Each filter is filled with the given number of names. Then the average
+ * latency of add, of contains of present names and of contains of absent
+ * names is printed, with the false positive rate measured on the absent
+ * names. At last the throughput of contains, and of a mix of 90% contains and
+ * 10% add/remove, is measured with 1, 2, 4 ... up to the given number of
+ * threads.
+ *
+ * Usage: BloomFilterBenchmark [items] [ops] [maxThreads]
+ */
+public class BloomFilterBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int ITEMS = 4000000;
+
+	private static final int OPS = 1000000;
+
+	private static final int MAX_THREADS = 32;
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * the operations measured, implemented by both filters
+	 */
+	private interface Filter {
+		void add(byte[] data);
+
+		void remove(byte[] data);
+
+		boolean contains(byte[] data);
+	}
+
+	private static byte[] name(long i) {
+		return ("obj" + i).getBytes(UTF8);
+	}
+
+	private static void print(String filter, String phase, int ops,
+			long nanos) {
+		System.out.println(filter + "\t" + phase + "\t" + ops + "\t"
+				+ (nanos / ops) + " ns/op");
+	}
+
+	public static void main(String[] args) throws IOException {
+		int items = args.length > 0 ? Integer.parseInt(args[0]) : ITEMS;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : OPS;
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+				: MAX_THREADS;
+
+		// one filter at a time, so that the other does not share the cache
+		System.out.println("filter\tphase\tops\tlatency");
+		run("locked", locked(items), items, ops, maxThreads);
+		System.gc();
+		run("blocked", blocked(items), items, ops, maxThreads);
+	}
+
+	private static Filter locked(int items) throws IOException {
+		final BloomFilter filter = BloomFilter.createOptimal(null, items,
+				FALSE_POSITIVE_RATE, false);
+		return new Filter() {
+			public void add(byte[] data) {
+				filter.add(data);
+			}
+
+			public void remove(byte[] data) {
+				filter.remove(data);
+			}
+
+			public boolean contains(byte[] data) {
+				return filter.contains(data);
+			}
+		};
+	}
+
+	private static Filter blocked(int items) throws IOException {
+		final BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(
+				null, items, FALSE_POSITIVE_RATE);
+		return new Filter() {
+			public void add(byte[] data) {
+				filter.add(data);
+			}
+
+			public void remove(byte[] data) {
+				filter.remove(data);
+			}
+
+			public boolean contains(byte[] data) {
+				return filter.contains(data);
+			}
+		};
+	}
+
+	private static void run(String name, Filter filter, int items, int ops,
+			int maxThreads) {
+		// names are built before timing, so only the filter is measured
+		byte[][] present = new byte[ops][];
+		byte[][] absent = new byte[ops][];
+		Random random = new Random(0);
+		for (int i = 0; i < ops; i++) {
+			present[i] = name(random.nextInt(items));
+			absent[i] = name(items + (long) i);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < items; i++) {
+			filter.add(name(i));
+		}
+		print(name, "add", items, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			filter.contains(present[i]);
+		}
+		print(name, "hit", ops, System.nanoTime() - start);
+
+		int falsePositives = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			if (filter.contains(absent[i])) {
+				falsePositives++;
+			}
+		}
+		print(name, "miss", ops, System.nanoTime() - start);
+		System.out.println(name + "\tfalse positive rate\t"
+				+ ((double) falsePositives / ops));
+
+		System.out.println(name + "\tthreads\tcontains ops/s\tmixed ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			long contains = throughput(filter, present, absent, ops, threads,
+					false);
+			long mixed = throughput(filter, present, absent, ops, threads,
+					true);
+			System.out.println(name + "\t" + threads + "\t" + contains + "\t"
+					+ mixed);
+		}
+	}
+
+	private static long throughput(final Filter filter,
+			final byte[][] present, final byte[][] absent, final int ops,
+			int threads, final boolean mixed) {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					ready.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < ops; i++) {
+						int r = random.nextInt(present.length);
+						if (mixed && i % 10 == 0) {
+							// a new object put and deleted again
+							filter.add(absent[r]);
+							filter.remove(absent[r]);
+						} else {
+							filter.contains((i & 1) == 0 ? present[r]
+									: absent[r]);
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		try {
+			ready.await();
+			long start = System.nanoTime();
+			go.countDown();
+			done.await();
+			return (long) ops * threads * 1000000000L
+					/ (System.nanoTime() - start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.bloomfilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockedBloomFilter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int ITEMS = 100000;
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final File dir = new File(System.getProperty("test.build.data",
+			"build/test/data"), "blockedbloomfilter");
+
+	private static byte[] key(String prefix, int i) {
+		return (prefix + i).getBytes(UTF8);
+	}
+
+	@Before
+	public void setUp() {
+		dir.mkdirs();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testNoFalseNegatives() throws IOException {
+		BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(null,
+				ITEMS, FALSE_POSITIVE_RATE);
+		for (int i = 0; i < ITEMS; i++) {
+			filter.add(key("present", i));
+		}
+		for (int i = 0; i < ITEMS; i++) {
+			assertTrue(filter.contains(key("present", i)));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < ITEMS; i++) {
+			if (filter.contains(key("absent", i))) {
+				falsePositives++;
+			}
+		}
+		// the blocking overhead keeps the rate near the desired one
+		assertTrue("false positives " + falsePositives,
+				falsePositives < 2 * FALSE_POSITIVE_RATE * ITEMS);
+		assertTrue(filter.capacity(FALSE_POSITIVE_RATE) >= ITEMS);
+		long count = filter.approximateCount();
+		assertTrue("approximate count " + count, Math.abs(count - ITEMS) < ITEMS / 10);
+	}
+
+	@Test
+	public void testRemove() throws IOException {
+		BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(null,
+				ITEMS, FALSE_POSITIVE_RATE);
+		for (int i = 0; i < ITEMS; i++) {
+			filter.add(key("k", i));
+		}
+		for (int i = 0; i < ITEMS; i += 2) {
+			filter.remove(key("k", i));
+		}
+		int stale = 0;
+		for (int i = 0; i < ITEMS; i++) {
+			if (i % 2 == 1) {
+				assertTrue(filter.contains(key("k", i)));
+			} else if (filter.contains(key("k", i))) {
+				stale++;
+			}
+		}
+		assertTrue("removed keys still contained " + stale,
+				stale < 2 * FALSE_POSITIVE_RATE * ITEMS);
+		for (int i = 1; i < ITEMS; i += 2) {
+			filter.remove(key("k", i));
+		}
+		assertEquals(0L, filter.approximateCount());
+	}
+
+	/**
+	 * Keys added by many threads at once are all contained, no update of a
+	 * shared word is lost
+	 */
+	@Test
+	public void testConcurrentAdd() throws Exception {
+		final BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(
+				null, ITEMS, FALSE_POSITIVE_RATE);
+		final int threads = 8;
+		List<Thread> adders = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int start = t;
+			Thread adder = new Thread() {
+				@Override
+				public void run() {
+					for (int i = start; i < ITEMS; i += threads) {
+						filter.add(key("c", i));
+					}
+				}
+			};
+			adders.add(adder);
+			adder.start();
+		}
+		for (Thread adder : adders) {
+			adder.join();
+		}
+		for (int i = 0; i < ITEMS; i++) {
+			assertTrue(filter.contains(key("c", i)));
+		}
+		for (int t = 0; t < threads; t++) {
+			final int start = t;
+			Thread remover = new Thread() {
+				@Override
+				public void run() {
+					for (int i = start; i < ITEMS; i += threads) {
+						filter.remove(key("c", i));
+					}
+				}
+			};
+			adders.set(t, remover);
+			remover.start();
+		}
+		for (Thread remover : adders) {
+			remover.join();
+		}
+		assertEquals(0L, filter.approximateCount());
+	}
+
+	@Test
+	public void testFlushAndReopen() throws IOException {
+		File file = new File(dir, "filter");
+		BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(file,
+				ITEMS, FALSE_POSITIVE_RATE);
+		assertTrue(BlockedBloomFilter.isBlocked(file));
+		assertFalse(filter.unflushedChanges());
+		for (int i = 0; i < ITEMS / 2; i++) {
+			filter.add(key("f", i));
+		}
+		assertTrue(filter.unflushedChanges());
+		filter.flush();
+		assertFalse(filter.unflushedChanges());
+		// only the pages changed since are flushed again
+		for (int i = ITEMS / 2; i < ITEMS; i++) {
+			filter.add(key("f", i));
+		}
+		filter.remove(key("f", 0));
+		filter.close();
+		assertFalse(filter.unflushedChanges());
+
+		BlockedBloomFilter reopened = BlockedBloomFilter.openExisting(file);
+		assertEquals(filter.getBucketCount(), reopened.getBucketCount());
+		assertEquals(filter.getHashFns(), reopened.getHashFns());
+		for (int i = 1; i < ITEMS; i++) {
+			assertTrue(reopened.contains(key("f", i)));
+		}
+		assertEquals(filter.approximateCount(), reopened.approximateCount());
+		reopened.close();
+	}
+
+	@Test
+	public void testMoveTo() throws IOException {
+		File file = new File(dir, "filter.grow");
+		File target = new File(dir, "filter");
+		BlockedBloomFilter old = BlockedBloomFilter.createOptimal(target, 10,
+				FALSE_POSITIVE_RATE);
+		old.close();
+		BlockedBloomFilter filter = BlockedBloomFilter.createOptimal(file,
+				ITEMS, FALSE_POSITIVE_RATE);
+		filter.add(key("m", 1));
+		filter.flush();
+		filter.moveTo(target);
+		assertFalse(file.exists());
+		assertEquals(target, filter.getFile());
+		// the mapping moved with the file
+		filter.add(key("m", 2));
+		filter.close();
+		BlockedBloomFilter reopened = BlockedBloomFilter.openExisting(target);
+		assertEquals(filter.getBucketCount(), reopened.getBucketCount());
+		assertTrue(reopened.contains(key("m", 1)));
+		assertTrue(reopened.contains(key("m", 2)));
+		reopened.close();
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.cache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.hdfs.hoss.db.PathPosition;
+
+/**
+ * Hit and eviction latency of the hot/warm {@link HossCache}.
+ *
+ * The warm and hot caches are filled to capacity first. Then random objects
+ * are hit, which promotes warm objects to the hot cache and migrates the
+ * least hot ones back, and new objects are added, which evicts the least hot
+ * warm objects. The average latency of each phase is printed. At last the
+ * throughput of cached hits is measured with 1, 2, 4 ... up to the given
+ * number of threads.
+ *
+ * Usage: CacheBenchmark [warmCapacity] [hotCapacity] [ops] [maxThreads]
+ */
+public class CacheBenchmark {
+
+	private static final int WARM_CAPACITY = 1000000;
+
+	private static final int HOT_CAPACITY = 200000;
+
+	private static final int OPS = 1000000;
+
+	private static final int MAX_THREADS = 32;
+
+	private static Metadata metadata(long id) {
+		return new Metadata(id, new PathPosition(id, id), null);
+	}
+
+	private static void print(String phase, int ops, long nanos) {
+		System.out.println(phase + "\t" + ops + "\t" + (nanos / ops)
+				+ " ns/op");
+	}
+
+	public static void main(String[] args) {
+		int warmCapacity = args.length > 0 ? Integer.parseInt(args[0])
+				: WARM_CAPACITY;
+		int hotCapacity = args.length > 1 ? Integer.parseInt(args[1])
+				: HOT_CAPACITY;
+		int ops = args.length > 2 ? Integer.parseInt(args[2]) : OPS;
+		int maxThreads = args.length > 3 ? Integer.parseInt(args[3])
+				: MAX_THREADS;
+		HossCache cache = new HossCache(warmCapacity, hotCapacity);
+		Random random = new Random(0);
+
+		// fill the warm cache, then promote objects until the hot one is full
+		long start = System.nanoTime();
+		for (int i = 0; i < warmCapacity; i++) {
+			cache.addCache("obj" + i, metadata(i), 1.0f);
+		}
+		print("fill", warmCapacity, System.nanoTime() - start);
+
+		long next = warmCapacity;
+		System.out.println("phase\tops\tlatency");
+		start = System.nanoTime();
+		int hits = 0;
+		for (int i = 0; i < ops; i++) {
+			String objName = "obj" + random.nextInt((int) next);
+			if (cache.exist(objName)) {
+				cache.hit(objName, 1.0f);
+				hits++;
+			}
+		}
+		print("hit", Math.max(hits, 1), System.nanoTime() - start);
+
+		// every miss adds an object and evicts the least hot warm object
+		start = System.nanoTime();
+		for (int i = 0; i < ops; i++, next++) {
+			cache.addCache("obj" + next, metadata(next), 1.0f);
+		}
+		print("miss+evict", ops, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		cache.topHot(100);
+		print("top100", 1, System.nanoTime() - start);
+
+		// free 10% of a full warm cache at once
+		Cache warm = new Cache(warmCapacity);
+		for (int i = 0; i < warmCapacity; i++) {
+			warm.add("obj" + i, metadata(i), random.nextFloat());
+		}
+		int free = warmCapacity / 10 + 1;
+		start = System.nanoTime();
+		warm.freeSpace(free);
+		print("freeSpace", free, System.nanoTime() - start);
+
+		System.out.println("threads\thit ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			long opsPerSec = hitThroughput(cache, next, ops, threads);
+			System.out.println(threads + "\t" + opsPerSec);
+		}
+	}
+
+	private static long hitThroughput(final HossCache cache,
+			final long names, final int ops, int threads) {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					ready.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < ops; i++) {
+						cache.hit("obj" + random.nextInt((int) names), 1.0f);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		try {
+			ready.await();
+			long start = System.nanoTime();
+			go.countDown();
+			done.await();
+			return (long) ops * threads * 1000000000L
+					/ (System.nanoTime() - start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded put/get benchmark of {@link HosMetaData}.
+ * 
+ * The metadata engine is called directly, no RPC is involved. For every
+ * thread count (1, 2, 4 ... up to the given maximum) each thread puts its own
+ * object names and then gets them back, and the throughput of both phases is
+ * printed.
+ * 
+ * Usage: HosMetaDataBenchmark [opsPerThread] [maxThreads]
+ */
+public class HosMetaDataBenchmark {
+
+	private static final int OPS_PER_THREAD = 100000;
+
+	private static final int MAX_THREADS = 32;
+
+	private static final AtomicLong round = new AtomicLong();
+
+	private interface Op {
+		void run(HosMetaData meta, String objName) throws IOException;
+	}
+
+	private static final Op PUT = new Op() {
+		@Override
+		public void run(HosMetaData meta, String objName) throws IOException {
+			meta.put(objName);
+		}
+	};
+
+	private static final Op GET = new Op() {
+		@Override
+		public void run(HosMetaData meta, String objName) throws IOException {
+			meta.getPathPosition(objName);
+		}
+	};
+
+	/**
+	 * run op on nThreads threads
+	 * 
+	 * @return operations per second
+	 */
+	private static double run(final HosMetaData meta, final Op op,
+			final String prefix, final int nThreads, final int opsPerThread)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(nThreads);
+		for (int t = 0; t < nThreads; t++) {
+			final String threadPrefix = prefix + "-" + t + "-";
+			new Thread("hoss-bench-" + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < opsPerThread; i++) {
+							op.run(meta, threadPrefix + i);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		return (double) nThreads * opsPerThread * 1000000000L / elapsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int opsPerThread = args.length > 0 ? Integer.parseInt(args[0])
+				: OPS_PER_THREAD;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+				: MAX_THREADS;
+		HosMetaData meta = new HosMetaData();
+		System.out.println("threads\tput ops/s\tget ops/s");
+		for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+			String prefix = "bench-" + System.currentTimeMillis() + "-"
+					+ round.incrementAndGet();
+			double puts = run(meta, PUT, prefix, nThreads, opsPerThread);
+			double gets = run(meta, GET, prefix, nThreads, opsPerThread);
+			System.out.println(nThreads + "\t" + (long) puts + "\t"
+					+ (long) gets);
+		}
+		meta.saveMetaData();
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The meta data is kept in the meta directory of the working directory and
+ * the containers in the working directory of the file system, so the test
+ * does not run over the meta data of a name node.
+ */
+public class TestHosMetaData {
+
+	private final File metaDir = new File(HosMetaData.HOSSDIR);
+
+	private final File dir = new File(System.getProperty("test.build.data",
+			"build/test/data"), "hosmetadata");
+
+	private FileSystem fs;
+
+	private HosMetaData meta;
+
+	private long pathId = -1;
+
+	private static void delete(File f) {
+		if (f.isDirectory()) {
+			for (File child : f.listFiles()) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		assumeTrue(!metaDir.exists());
+		fs = FileSystem.getLocal(new Configuration());
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (meta != null) {
+			meta.saveMetaData();
+		}
+		if (pathId > 0) {
+			fs.delete(new Path(PathPosition.toPath(pathId)), false);
+		}
+		delete(metaDir);
+		delete(dir);
+	}
+
+	private String writeContainer() throws IOException {
+		Path container = new Path(new File(dir, "container").getAbsolutePath());
+		fs.create(container, true).close();
+		return container.toString();
+	}
+
+	/**
+	 * An object deleted between choosing it and sealing its container is not
+	 * pointed into the container, also when its name is held in a segment
+	 */
+	@Test
+	public void testSealSkipsDeletedInSegment() throws IOException {
+		meta = new HosMetaData();
+		meta.put("a");
+		meta.put("b");
+		assertTrue(meta.closeObject("a", 100));
+		assertTrue(meta.closeObject("b", 200));
+		// flush the names to a segment
+		meta.saveMetaData();
+		meta = new HosMetaData();
+
+		long a = meta.getId("a");
+		long b = meta.getId("b");
+		Map<Long, Integer> small = meta.smallObjects();
+		assertTrue(small.containsKey(a));
+		assertTrue(small.containsKey(b));
+		long[] ids = { a, b };
+		long[] createTimes = { meta.getCreateTime(a), meta.getCreateTime(b) };
+
+		meta.delete("a");
+		assertFalse(meta.exist(a));
+		assertTrue(meta.deleted(a));
+		assertFalse(meta.deleted(b));
+
+		pathId = meta.sealContainer(writeContainer(), ids, createTimes,
+				new long[] { 1, 101 }, new long[] { 100, 200 });
+		assertTrue(pathId > 0);
+		PathPosition pp = meta.getPathPosition(a);
+		assertTrue(pp.isDeleted());
+		pp = meta.getPathPosition(b);
+		assertEquals(pathId, pp.getPathId());
+		assertEquals(101, pp.getOffset());
+		// the bytes of the deleted object are garbage
+		assertTrue(meta.garbageContainers(0.3f).contains(pathId));
+		assertFalse(meta.garbageContainers(0.4f).contains(pathId));
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNameIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir = new File(System.getProperty("test.build.data",
+			"build/test/data"), "nameindex");
+
+	private static void delete(File f) {
+		if (f.isDirectory()) {
+			for (File child : f.listFiles()) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	@Before
+	public void setUp() {
+		delete(dir);
+		dir.mkdirs();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF8);
+	}
+
+	private static String name(int i) {
+		return String.format("dir%d/obj%05d", i % 3, i);
+	}
+
+	/**
+	 * A seek lands on every name, before the first and after the last
+	 */
+	@Test
+	public void testSeek() throws IOException {
+		File file = new File(dir, "name.names");
+		TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(
+				NameIndex.BYTEORDER);
+		// spans several intervals of the sparse index
+		for (int i = 0; i < 1000; i++) {
+			expected.put(bytes(String.format("k%05d", 2 * i)), bytes("v" + i));
+		}
+		NameIndex.Writer writer = new NameIndex.Writer(file);
+		for (byte[] key : expected.keySet()) {
+			writer.append(key, expected.get(key));
+		}
+		writer.close();
+		NameIndex index = NameIndex.open(file);
+		assertEquals(expected.size(), index.size());
+
+		NameIndex.Cursor cursor = index.seek(null);
+		for (byte[] key : expected.keySet()) {
+			assertArrayEquals(key, cursor.key());
+			assertArrayEquals(expected.get(key), cursor.value());
+			cursor.advance();
+		}
+		assertNull(cursor.key());
+
+		for (int i = 0; i <= 2000; i += 7) {
+			byte[] from = bytes(String.format("k%05d", i));
+			cursor = index.seek(from);
+			byte[] first = expected.ceilingKey(from);
+			if (first == null) {
+				assertNull(cursor.key());
+			} else {
+				assertArrayEquals(first, cursor.key());
+				cursor.advance();
+				byte[] second = expected.higherKey(first);
+				if (second == null) {
+					assertNull(cursor.key());
+				} else {
+					assertArrayEquals(second, cursor.key());
+				}
+			}
+			cursor.close();
+		}
+		cursor = index.seek(bytes("a"));
+		assertArrayEquals(expected.firstKey(), cursor.key());
+		cursor.close();
+		cursor = index.seek(bytes("z"));
+		assertNull(cursor.key());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		File file = new File(dir, "empty.names");
+		new NameIndex.Writer(file).close();
+		NameIndex index = NameIndex.open(file);
+		assertEquals(0, index.size());
+		assertNull(index.seek(null).key());
+		assertNull(index.seek(bytes("k")).key());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnordered() throws IOException {
+		NameIndex.Writer writer = new NameIndex.Writer(new File(dir,
+				"unordered.names"));
+		try {
+			writer.append(bytes("b"), bytes("1"));
+			writer.append(bytes("a"), bytes("2"));
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Page through a prefix with the continuation token
+	 */
+	private static List<String> listAll(ObjectsMap map, String prefix,
+			int maxKeys, TreeMap<String, Long> expected) throws IOException {
+		List<String> names = new ArrayList<String>();
+		String token = null;
+		do {
+			ObjectListing page = map.list(prefix, token, maxKeys);
+			assertTrue(page.getNames().length <= maxKeys);
+			for (int i = 0; i < page.getNames().length; i++) {
+				String name = page.getNames()[i];
+				assertEquals(expected.get(name).longValue(), page.getIds()[i]);
+				names.add(name);
+			}
+			token = page.getContinuationToken();
+		} while (token != null);
+		return names;
+	}
+
+	private static void assertListing(ObjectsMap map,
+			TreeMap<String, Long> expected) throws IOException {
+		for (String prefix : new String[] { "", "dir1/", "dir2/obj00",
+				"none/" }) {
+			List<String> names = new ArrayList<String>();
+			for (String name : expected.keySet()) {
+				if (name.startsWith(prefix)) {
+					names.add(name);
+				}
+			}
+			for (int maxKeys : new int[] { 1, 7, 100, 10000 }) {
+				assertEquals(names, listAll(map, prefix, maxKeys, expected));
+			}
+		}
+	}
+
+	/**
+	 * A listing merges the memory map with the segments, the newest value of
+	 * a name wins and a deleted name is left out
+	 */
+	@Test
+	public void testListPaging() throws IOException {
+		ObjectsMap map = new ObjectsMap(new File(dir, "objects"));
+		TreeMap<String, Long> expected = new TreeMap<String, Long>();
+		Random r = new Random(1);
+		long id = 0;
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 500; i++) {
+				String name = name(r.nextInt(1500));
+				if (r.nextInt(4) == 0) {
+					map.delete(name);
+					expected.remove(name);
+				} else {
+					map.put(name, ++id);
+					expected.put(name, id);
+				}
+			}
+			assertListing(map, expected);
+			map.append();
+			assertListing(map, expected);
+		}
+		map.compact();
+		assertListing(map, expected);
+		// the memory map holds names both before and after the segments'
+		map.put("dir0/", ++id);
+		expected.put("dir0/", id);
+		map.put("dir1/zzz", ++id);
+		expected.put("dir1/zzz", id);
+		map.delete(expected.firstKey());
+		expected.remove(expected.firstKey());
+		assertListing(map, expected);
+		map.append();
+		map.close();
+
+		map = new ObjectsMap(new File(dir, "objects"));
+		assertListing(map, expected);
+		map.close();
+	}
+
+	/**
+	 * The token of a page is the last name of it, the next page starts after
+	 */
+	@Test
+	public void testContinuationToken() throws IOException {
+		ObjectsMap map = new ObjectsMap(new File(dir, "objects"));
+		for (int i = 0; i < 10; i++) {
+			map.put(name(3 * i), i);
+		}
+		map.append();
+		ObjectListing page = map.list("dir0/", null, 4);
+		assertEquals(4, page.getNames().length);
+		assertTrue(page.isTruncated());
+		assertEquals(page.getNames()[3], page.getContinuationToken());
+		page = map.list("dir0/", page.getContinuationToken(), 4);
+		assertEquals(name(12), page.getNames()[0]);
+		page = map.list("dir0/", name(27), 4);
+		assertEquals(0, page.getNames().length);
+		assertNull(page.getContinuationToken());
+		page = map.list("dir0/", name(24), 4);
+		assertArrayEquals(new String[] { name(27) }, page.getNames());
+		assertNull(page.getContinuationToken());
+		map.close();
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hdfs.hoss.db.FileBlockStore.WriteBuffer;
+import org.apache.hadoop.hdfs.hoss.util.StringSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPathStore {
+
+	// records of the old pathposition file: a 10 chars path and the offset
+	private static final int LEGACYPATHLENGTH = 32;
+
+	private final File dir = new File(System.getProperty("test.build.data",
+			"build/test/data"), "pathstore");
+
+	@Before
+	public void setUp() {
+		dir.mkdirs();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Write records the way the string path store did
+	 */
+	private void writeLegacy(long[][] records) {
+		FileBlockStore legacy = new FileBlockStore(new File(dir,
+				HosMetaData.LEGACYPATHFILE), LEGACYPATHLENGTH, false);
+		legacy.open();
+		for (long[] record : records) {
+			WriteBuffer wbuf = legacy.set(record[0]);
+			ByteBuffer buf = wbuf.buf();
+			StringSerializer.fromStringToBuffer(buf, String.format("%010d",
+					record[1]), 10);
+			buf.putLong(record[2]);
+			buf.flip();
+			wbuf.save();
+		}
+		legacy.sync();
+		legacy.close();
+	}
+
+	private static void assertPosition(long pathId, long offset,
+			long length, PathPosition pp) {
+		assertEquals(pathId, pp.getPathId());
+		assertEquals(offset, pp.getOffset());
+		assertEquals(length, pp.getLength());
+	}
+
+	@Test
+	public void testMigrate() {
+		// object 2 was never written
+		writeLegacy(new long[][] { { 0, 0, 0 }, { 1, 1, 0 }, { 3, 7, 4096 },
+				{ 4, 1234567890L, 1L << 33 } });
+		PathStore store = new PathStore(dir);
+		assertFalse(new File(dir, HosMetaData.LEGACYPATHFILE).exists());
+		assertFalse(new File(dir, HosMetaData.PATHFILE + ".tmp").exists());
+		assertTrue(new File(dir, HosMetaData.PATHFILE).exists());
+		assertPosition(0, 0, -1, store.get(0));
+		assertPosition(1, 0, -1, store.get(1));
+		assertPosition(7, 4096, -1, store.get(3));
+		assertEquals("0000000007", store.get(3).getPath());
+		assertPosition(1234567890L, 1L << 33, -1, store.get(4));
+		store.put(5, 7, 8192, 100);
+		store.close();
+
+		// the migrated file is opened as it is
+		store = new PathStore(dir);
+		assertPosition(7, 4096, -1, store.get(3));
+		assertPosition(7, 8192, 100, store.get(5));
+		store.close();
+	}
+
+	/**
+	 * A legacy file left next to the new one is not migrated again
+	 */
+	@Test
+	public void testNoMigrateOverExisting() {
+		PathStore store = new PathStore(dir);
+		store.put(0, 3, 0, 10);
+		store.close();
+		writeLegacy(new long[][] { { 0, 9, 9 } });
+		store = new PathStore(dir);
+		assertPosition(3, 0, 10, store.get(0));
+		store.close();
+		assertTrue(new File(dir, HosMetaData.LEGACYPATHFILE).exists());
+	}
+}
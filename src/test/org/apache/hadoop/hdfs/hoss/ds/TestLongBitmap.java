@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.hoss.ds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestLongBitmap {
+
+	private static final long PARTITION = 1L << 16;
+
+	/**
+	 * Check the values, the cardinality and the scans against a sorted set
+	 */
+	private static void assertSame(TreeSet<Long> expected, LongBitmap bitmap) {
+		assertEquals(expected.size(), bitmap.cardinality());
+		assertEquals(expected.isEmpty(), bitmap.isEmpty());
+		assertEquals(expected.isEmpty() ? -1L : expected.first(), bitmap
+				.first());
+		long value = bitmap.next(0);
+		for (long v : expected) {
+			assertEquals(v, value);
+			assertTrue(bitmap.contains(v));
+			value = bitmap.next(v + 1);
+		}
+		assertEquals(-1L, value);
+	}
+
+	private static LongBitmap replay(byte[] log, int records)
+			throws IOException {
+		LongBitmap bitmap = new LongBitmap();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(log));
+		for (int i = 0; i < records; i++) {
+			bitmap.readPartition(in);
+		}
+		assertEquals(-1, in.read());
+		return bitmap;
+	}
+
+	@Test
+	public void testAddRemove() {
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		assertSame(expected, bitmap);
+		assertTrue(bitmap.add(7));
+		assertFalse(bitmap.add(7));
+		assertTrue(bitmap.add(3 * PARTITION + 1));
+		expected.add(7L);
+		expected.add(3 * PARTITION + 1);
+		assertSame(expected, bitmap);
+		assertFalse(bitmap.remove(8));
+		assertFalse(bitmap.remove(-1));
+		assertTrue(bitmap.remove(7));
+		assertFalse(bitmap.contains(7));
+		expected.remove(7L);
+		assertSame(expected, bitmap);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegative() {
+		new LongBitmap().add(-1);
+	}
+
+	/**
+	 * A partition grows from an array to a bitmap and shrinks back
+	 */
+	@Test
+	public void testArrayBitmapConversions() throws IOException {
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		Random r = new Random(1);
+		while (expected.size() < 20000) {
+			long value = PARTITION + r.nextInt((int) PARTITION);
+			assertEquals(expected.add(value), bitmap.add(value));
+		}
+		assertSame(expected, bitmap);
+		bitmap.writeAll(new DataOutputStream(new ByteArrayOutputStream()));
+		assertSame(expected, bitmap);
+		while (expected.size() > 100) {
+			long value = expected.pollFirst();
+			assertTrue(bitmap.remove(value));
+		}
+		bitmap.writeAll(new DataOutputStream(new ByteArrayOutputStream()));
+		assertSame(expected, bitmap);
+	}
+
+	/**
+	 * Ranges are kept as runs, values added and removed inside split them
+	 */
+	@Test
+	public void testRangeConversions() throws IOException {
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		// spans three partitions
+		bitmap.addRange(PARTITION - 10, 2 * PARTITION + 10);
+		for (long v = PARTITION - 10; v < 2 * PARTITION + 10; v++) {
+			expected.add(v);
+		}
+		bitmap.addRange(5, 5);
+		assertSame(expected, bitmap);
+		ByteArrayOutputStream small = new ByteArrayOutputStream();
+		bitmap.writeAll(new DataOutputStream(small));
+		// three runs are much smaller than a bitmap
+		assertTrue(small.size() < 1024);
+		assertEquals(small.size(), bitmap.serializedSize());
+		Random r = new Random(2);
+		for (int i = 0; i < 3000; i++) {
+			long value = PARTITION + r.nextInt((int) PARTITION);
+			assertEquals(expected.remove(value), bitmap.remove(value));
+		}
+		assertSame(expected, bitmap);
+		bitmap.writeAll(new DataOutputStream(new ByteArrayOutputStream()));
+		assertSame(expected, bitmap);
+		bitmap.addRange(PARTITION, 2 * PARTITION);
+		for (long v = PARTITION; v < 2 * PARTITION; v++) {
+			expected.add(v);
+		}
+		assertSame(expected, bitmap);
+	}
+
+	@Test
+	public void testPollFirstAndNext() {
+		LongBitmap bitmap = new LongBitmap();
+		long[] values = { 3, 70000, 70001, 5 * PARTITION, 9 * PARTITION + 4 };
+		for (long v : values) {
+			bitmap.add(v);
+		}
+		assertEquals(3L, bitmap.next(0));
+		assertEquals(70000L, bitmap.next(4));
+		assertEquals(5 * PARTITION, bitmap.next(70002));
+		assertEquals(9 * PARTITION + 4, bitmap.next(5 * PARTITION + 1));
+		assertEquals(-1L, bitmap.next(9 * PARTITION + 5));
+		for (long v : values) {
+			assertEquals(v, bitmap.pollFirst());
+		}
+		assertEquals(-1L, bitmap.pollFirst());
+		assertTrue(bitmap.isEmpty());
+	}
+
+	/**
+	 * The dirty partitions appended to a log replay to the same bitmap, a
+	 * partition emptied since the last write is replayed as empty
+	 */
+	@Test
+	public void testWriteDirtyReplay() throws IOException {
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(log);
+		Random r = new Random(3);
+		int records = 0;
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 2000; i++) {
+				long value = r.nextInt((int) (8 * PARTITION));
+				if (r.nextInt(3) == 0) {
+					assertEquals(expected.remove(value), bitmap.remove(value));
+				} else {
+					assertEquals(expected.add(value), bitmap.add(value));
+				}
+			}
+			if (round % 5 == 0) {
+				bitmap.addRange(round * PARTITION / 2, round * PARTITION / 2
+						+ 5000);
+				for (long v = round * PARTITION / 2; v < round * PARTITION / 2 + 5000; v++) {
+					expected.add(v);
+				}
+			}
+			if (round == 10) {
+				// empty the partition 2
+				long v = bitmap.next(2 * PARTITION);
+				while (v >= 0 && v < 3 * PARTITION) {
+					assertTrue(bitmap.remove(v));
+					expected.remove(v);
+					v = bitmap.next(v);
+				}
+				long next = bitmap.next(2 * PARTITION);
+				assertTrue(next < 0 || next >= 3 * PARTITION);
+			}
+			assertTrue(bitmap.dirtyPartitions() > 0);
+			records += bitmap.writeDirty(out);
+			assertEquals(0, bitmap.dirtyPartitions());
+			assertSame(expected, replay(log.toByteArray(), records));
+		}
+		assertEquals(0, bitmap.writeDirty(out));
+		assertSame(expected, bitmap);
+	}
+
+	@Test
+	public void testWriteAllAfterClear() throws IOException {
+		LongBitmap bitmap = new LongBitmap();
+		bitmap.addRange(0, 3 * PARTITION);
+		bitmap.clear();
+		assertTrue(bitmap.isEmpty());
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		int records = bitmap.writeAll(new DataOutputStream(all));
+		assertTrue(replay(all.toByteArray(), records).isEmpty());
+	}
+}